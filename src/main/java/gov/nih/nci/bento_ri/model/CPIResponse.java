@@ -0,0 +1,106 @@
+package gov.nih.nci.bento_ri.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+
+/**
+ * Data model for API response from CPI service; supplementary_domains and other fields not used are ignored
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CPIResponse {
+    @JsonProperty("participant_ids")
+    private List<Participant> participantIds;
+
+    public CPIResponse() {}
+
+    public List<Participant> getParticipantIds() {
+        return participantIds;
+    }
+
+    public void setParticipantIds(List<Participant> participantIds) {
+        this.participantIds = participantIds;
+    }
+
+    /**
+     * Nested class for a requested participant and its associated participants
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Participant {
+        @JsonProperty("participant_id")
+        private String participantId;
+
+        @JsonProperty("domain_name")
+        private String domainName;
+
+        @JsonProperty("associated_ids")
+        private List<AssociatedId> associatedIds;
+
+        public Participant() {}
+
+        public String getParticipantId() {
+            return participantId;
+        }
+
+        public void setParticipantId(String participantId) {
+            this.participantId = participantId;
+        }
+
+        public String getDomainName() {
+            return domainName;
+        }
+
+        public void setDomainName(String domainName) {
+            this.domainName = domainName;
+        }
+
+        public List<AssociatedId> getAssociatedIds() {
+            return associatedIds;
+        }
+
+        public void setAssociatedIds(List<AssociatedId> associatedIds) {
+            this.associatedIds = associatedIds;
+        }
+    }
+
+    /**
+     * Nested class for an associated participant
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class AssociatedId {
+        @JsonProperty("participant_id")
+        private String participantId;
+
+        @JsonProperty("domain_name")
+        private String domainName;
+
+        @JsonProperty("domain_category")
+        private String domainCategory;
+
+        public AssociatedId() {}
+
+        public String getParticipantId() {
+            return participantId;
+        }
+
+        public void setParticipantId(String participantId) {
+            this.participantId = participantId;
+        }
+
+        public String getDomainName() {
+            return domainName;
+        }
+
+        public void setDomainName(String domainName) {
+            this.domainName = domainName;
+        }
+
+        public String getDomainCategory() {
+            return domainCategory;
+        }
+
+        public void setDomainCategory(String domainCategory) {
+            this.domainCategory = domainCategory;
+        }
+    }
+}
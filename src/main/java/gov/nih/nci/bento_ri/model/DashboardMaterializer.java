@@ -0,0 +1,236 @@
+package gov.nih.nci.bento_ri.model;
+
+import graphql.language.ArrayValue;
+import graphql.language.BooleanValue;
+import graphql.language.EnumValue;
+import graphql.language.FieldDefinition;
+import graphql.language.FloatValue;
+import graphql.language.InputValueDefinition;
+import graphql.language.IntValue;
+import graphql.language.ObjectTypeDefinition;
+import graphql.language.StringValue;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most requested results precomputed: the unfiltered searchParticipants dashboard and,
+ * for every study, its studyDetails and its dashboard filtered by dbgap_accession.
+ *
+ * They are computed on startup and then every materializer.refresh_interval_minutes. Each refresh
+ * swaps the new value in for the old one, which keeps being served until then, and resets the
+ * entry's time to live, so as long as the interval is shorter than the region's expiry these
+ * pages never see a cold miss.
+ *
+ * Runs are timed as materializer.run, entries that failed or were left to another node counted as
+ * materializer.failures and materializer.skipped, and the age of the oldest and of the unfiltered
+ * entry published as materializer.max_staleness_seconds and materializer.all_staleness_seconds.
+ */
+@Component
+public class DashboardMaterializer {
+    private static final Logger logger = LogManager.getLogger(DashboardMaterializer.class);
+
+    static final String ALL = "all";
+
+    private final PrivateESDataFetcher dataFetcher;
+    private final String schemaPath;
+    private final ScheduledExecutorService scheduler;
+
+    // When each materialized entry was last refreshed by this node
+    private final Map<String, Long> refreshedAt = new ConcurrentHashMap<>();
+    private final AtomicLong lastRunMillis = new AtomicLong();
+    private final Timer runTimer;
+    private final Counter failures;
+    private final Counter skipped;
+
+    public DashboardMaterializer(PrivateESDataFetcher dataFetcher,
+                                 @Value("${graphql.es_schema}") String schemaPath,
+                                 @Value("${materializer.enable:true}") boolean enabled,
+                                 @Value("${materializer.refresh_interval_minutes:60}") long refreshIntervalMinutes,
+                                 MeterRegistry meterRegistry) {
+        this.dataFetcher = dataFetcher;
+        this.schemaPath = schemaPath;
+        this.runTimer = Timer.builder("materializer.run")
+                .description("Time to refresh every materialized dashboard result")
+                .register(meterRegistry);
+        this.failures = Counter.builder("materializer.failures")
+                .description("Materialized entries, or whole runs, that failed to refresh")
+                .register(meterRegistry);
+        this.skipped = Counter.builder("materializer.skipped")
+                .description("Materialized entries left to another node already refreshing them")
+                .register(meterRegistry);
+        // NaN until the first refresh, so that a missing entry doesn't read as a fresh one
+        Gauge.builder("materializer.max_staleness_seconds", this, materializer -> toGauge(materializer.maxStalenessSeconds()))
+                .description("Age of the oldest materialized entry")
+                .register(meterRegistry);
+        Gauge.builder("materializer.all_staleness_seconds", this, materializer -> toGauge(materializer.allStalenessSeconds()))
+                .description("Age of the materialized unfiltered searchParticipants result")
+                .register(meterRegistry);
+        if (enabled && refreshIntervalMinutes > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dashboard-materializer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::materialize, 0, refreshIntervalMinutes, TimeUnit.MINUTES);
+            logger.info("Materializing dashboard results every {} minutes", refreshIntervalMinutes);
+        } else {
+            scheduler = null;
+            logger.info("Dashboard materializer disabled");
+        }
+    }
+
+    @PreDestroy
+    private void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Refreshes every materialized entry once. Failures are logged and the previous values kept.
+     */
+    void materialize() {
+        long start = System.nanoTime();
+        try {
+            Map<String, Object> defaults = readDefaultArguments("searchParticipants");
+            refresh(ALL, () -> dataFetcher.refreshSearchParticipants(defaults));
+
+            for (Map<String, Object> study : dataFetcher.listStudies()) {
+                String studyId = (String) study.get("study_id");
+                String dbgapAccession = (String) study.get("dbgap_accession");
+                if (studyId != null) {
+                    refresh("studyDetails:" + studyId, () -> dataFetcher.refreshStudyDetails(studyId));
+                }
+                if (dbgapAccession != null) {
+                    Map<String, Object> params = new HashMap<>(defaults);
+                    params.put("dbgap_accession", List.of(dbgapAccession));
+                    refresh("searchParticipants:" + dbgapAccession, () -> dataFetcher.refreshSearchParticipants(params));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            logger.error("Failed to materialize dashboard results", e);
+        }
+        long durationNanos = System.nanoTime() - start;
+        runTimer.record(durationNanos, TimeUnit.NANOSECONDS);
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        lastRunMillis.set(durationMillis);
+        logger.info("Materialized dashboard results in {} ms: {}", durationMillis, getStats());
+    }
+
+    @FunctionalInterface
+    private interface Refresh {
+        boolean run() throws IOException;
+    }
+
+    private void refresh(String name, Refresh refresh) {
+        try {
+            if (refresh.run()) {
+                refreshedAt.put(name, System.currentTimeMillis());
+            } else {
+                skipped.increment();
+            }
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            logger.warn("Failed to refresh materialized {}, keeping the previous value", name, e);
+        }
+    }
+
+    /**
+     * @return Run count, duration of the last run, failures, entries left to another node, entry count,
+     * and the age of the oldest and of the unfiltered entry, in seconds
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runs", runTimer.count());
+        stats.put("last_run_ms", lastRunMillis.get());
+        stats.put("failures", (long) failures.count());
+        stats.put("skipped", (long) skipped.count());
+        stats.put("entries", refreshedAt.size());
+        stats.put("max_staleness_seconds", maxStalenessSeconds());
+        stats.put("all_staleness_seconds", allStalenessSeconds());
+        return stats;
+    }
+
+    // -1 when nothing was refreshed yet
+    private long maxStalenessSeconds() {
+        long now = System.currentTimeMillis();
+        return refreshedAt.values().stream().mapToLong(time -> (now - time) / 1000).max().orElse(-1);
+    }
+
+    private long allStalenessSeconds() {
+        Long allRefreshedAt = refreshedAt.get(ALL);
+        return allRefreshedAt == null ? -1 : (System.currentTimeMillis() - allRefreshedAt) / 1000;
+    }
+
+    private static double toGauge(long seconds) {
+        return seconds < 0 ? Double.NaN : seconds;
+    }
+
+    // The arguments GraphQL passes to a query when the client sets none, so that materialized entries share the clients' cache keys
+    private Map<String, Object> readDefaultArguments(String queryName) throws IOException {
+        try (Reader reader = new InputStreamReader(new ClassPathResource(schemaPath).getInputStream(), StandardCharsets.UTF_8)) {
+            TypeDefinitionRegistry registry = new SchemaParser().parse(reader);
+            ObjectTypeDefinition queryType = registry.getType("QueryType", ObjectTypeDefinition.class)
+                    .orElseThrow(() -> new IOException("QueryType not found in " + schemaPath));
+            FieldDefinition query = queryType.getFieldDefinitions().stream()
+                    .filter(field -> field.getName().equals(queryName))
+                    .findFirst()
+                    .orElseThrow(() -> new IOException(queryName + " not found in " + schemaPath));
+
+            Map<String, Object> defaults = new HashMap<>();
+            for (InputValueDefinition argument : query.getInputValueDefinitions()) {
+                if (argument.getDefaultValue() != null) {
+                    defaults.put(argument.getName(), toJava(argument.getDefaultValue()));
+                }
+            }
+            return defaults;
+        }
+    }
+
+    private static Object toJava(graphql.language.Value<?> value) {
+        if (value instanceof ArrayValue) {
+            List<Object> list = new ArrayList<>();
+            for (graphql.language.Value<?> element : ((ArrayValue) value).getValues()) {
+                list.add(toJava(element));
+            }
+            return list;
+        } else if (value instanceof StringValue) {
+            return ((StringValue) value).getValue();
+        } else if (value instanceof IntValue) {
+            return ((IntValue) value).getValue().intValue();
+        } else if (value instanceof FloatValue) {
+            return ((FloatValue) value).getValue().doubleValue();
+        } else if (value instanceof BooleanValue) {
+            return ((BooleanValue) value).isValue();
+        } else if (value instanceof EnumValue) {
+            return ((EnumValue) value).getName();
+        }
+        return null;
+    }
+}
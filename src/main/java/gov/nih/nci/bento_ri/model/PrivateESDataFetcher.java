@@ -4,8 +4,15 @@ import gov.nih.nci.bento.constants.Const;
 import gov.nih.nci.bento.model.AbstractPrivateESDataFetcher;
 import gov.nih.nci.bento.model.search.yaml.YamlQueryFactory;
 import gov.nih.nci.bento.service.ESService;
+import gov.nih.nci.bento_ri.service.AsyncFieldService;
 import gov.nih.nci.bento_ri.service.InventoryESService;
 import gov.nih.nci.bento_ri.service.CPIFetcherService;
+import gov.nih.nci.bento_ri.service.CacheService;
+import gov.nih.nci.bento_ri.service.FilterQueries;
+import gov.nih.nci.bento_ri.service.QueryFanOutService;
+import gov.nih.nci.bento_ri.service.QueryFingerprint;
+import gov.nih.nci.bento_ri.service.QueryWriter;
+import gov.nih.nci.bento_ri.service.TieredCacheService;
 import gov.nih.nci.bento_ri.model.FormattedCPIResponse;
 import graphql.schema.idl.RuntimeWiring;
 import org.apache.logging.log4j.LogManager;
@@ -16,7 +23,6 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Component;
 import org.yaml.snakeyaml.Yaml;
 
-import com.github.benmanes.caffeine.cache.Cache;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -26,6 +32,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static graphql.schema.idl.TypeRuntimeWiring.newTypeWiring;
 
@@ -37,7 +44,11 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
     @Autowired
     private CPIFetcherService cpiFetcherService;
     @Autowired
-    private Cache<String, Object> caffeineCache;
+    private TieredCacheService tieredCacheService;
+    @Autowired
+    private QueryFanOutService queryFanOutService;
+    @Autowired
+    private AsyncFieldService asyncFieldService;
 
     final String CARDINALITY_AGG_NAME = "cardinality_agg_name";
     final String CARDINALITY_INDEX_NAME = "cardinality_index_name";
@@ -145,7 +156,8 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
 
     @Override
     public RuntimeWiring buildRuntimeWiring() throws IOException {
-        return RuntimeWiring.newRuntimeWiring()
+        // Query fields are resolved concurrently, each on the field pool
+        RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
                 .type(newTypeWiring("QueryType")
                         .dataFetchers(yamlQueryFactory.createYamlQueries(Const.ES_ACCESS_TYPE.PRIVATE))
                         .dataFetcher("idsLists", env -> idsLists())
@@ -163,7 +175,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                         })
                         .dataFetcher("cohortCharts", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return cohortCharts(args);
+                            return cachedQuery(CacheService.COHORT_CHARTS, "cohortCharts", args, () -> cohortCharts(args));
                         })
                         .dataFetcher("studyDetails", env -> {
                             Map<String, Object> args = env.getArguments();
@@ -171,7 +183,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                         })
                         .dataFetcher("studiesListing", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return studiesListing(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "studiesListing", args, () -> studiesListing(args));
                         })
                         .dataFetcher("participantOverview", env -> {
                             Map<String, Object> args = env.getArguments();
@@ -179,35 +191,35 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                         })
                         .dataFetcher("diagnosisOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return diagnosisOverview(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "diagnosisOverview", args, () -> diagnosisOverview(args));
                         })
                         .dataFetcher("geneticAnalysisOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return geneticAnalysisOverview(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "geneticAnalysisOverview", args, () -> geneticAnalysisOverview(args));
                         })
                         .dataFetcher("survivalOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return survivalOverview(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "survivalOverview", args, () -> survivalOverview(args));
                         })
                         .dataFetcher("treatmentOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return treatmentOverview(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "treatmentOverview", args, () -> treatmentOverview(args));
                         })
                         .dataFetcher("treatmentResponseOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return treatmentResponseOverview(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "treatmentResponseOverview", args, () -> treatmentResponseOverview(args));
                         })
                         .dataFetcher("studyOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return studyOverview(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "studyOverview", args, () -> studyOverview(args));
                         })
                         .dataFetcher("sampleOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return sampleOverview(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "sampleOverview", args, () -> sampleOverview(args));
                         })
                         .dataFetcher("fileOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return fileOverview(args);
+                            return cachedQuery(CacheService.OVERVIEWS, "fileOverview", args, () -> fileOverview(args));
                         })
                         .dataFetcher("numberOfDiseases", env -> {
                             Map<String, Object> args = env.getArguments();
@@ -247,6 +259,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                         })
                 )
                 .build();
+        return asyncFieldService.wrap(wiring, "QueryType");
     }
 
     private Map<String, Object> addHighlight(Map<String, Object> query, Map<String, Object> category) {
@@ -308,7 +321,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                 "size", 10000
         );
         Request request = new Request("GET", GS_ABOUT_END_POINT);
-        request.setJsonEntity(gson.toJson(query));
+        request.setEntity(QueryWriter.toEntity(query));
         JsonObject jsonObject = esService.send(request);
 
         List<Map<String, Object>> result = new ArrayList<>();
@@ -476,18 +489,20 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
 
         Set<String> combinedCategories = Set.of("model") ;
 
+        // Counts and pages of every category travel together in one _msearch request
+        List<Request> requests = new ArrayList<>();
+        List<Request> pageRequests = new ArrayList<>();
+        List<Map<String, Object>> pageQueries = new ArrayList<>();
+        List<int[]> pageBounds = new ArrayList<>();
         for (Map<String, Object> category: searchCategories) {
-            String countResultFieldName = (String) category.get(GS_COUNT_RESULT_FIELD);
             String resultFieldName = (String) category.get(GS_RESULT_FIELD);
             String[][] properties = (String[][]) category.get(GS_COLLECT_FIELDS);
             Map<String, Object> query = getGlobalSearchQuery(input, category);
 
             // Get count
             Request countRequest = new Request("GET", (String) category.get(GS_COUNT_ENDPOINT));
-            countRequest.setJsonEntity(gson.toJson(query));
-            JsonObject countResult = esService.send(countRequest);
-            int oldCount = (int)result.getOrDefault(countResultFieldName, 0);
-            result.put(countResultFieldName, countResult.get("count").getAsInt() + oldCount);
+            countRequest.setEntity(QueryWriter.toEntity(query));
+            requests.add(countRequest);
 
             // Get results
             Request request = new Request("GET", (String)category.get(GS_END_POINT));
@@ -507,8 +522,42 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             }
             query.put("_source", Map.of("includes", dataFields));
 
-            request.setJsonEntity(gson.toJson(query));
-            List<Map<String, Object>> objects = inventoryESService.collectPage(request, query, properties, size, offset);
+            // Pages beyond the from/size window need the scroll API and can't be batched
+            if (size + offset <= ESService.MAX_ES_SIZE) {
+                query.put("size", size);
+                query.put("from", offset);
+                request.setEntity(QueryWriter.toEntity(query));
+                requests.add(request);
+            } else {
+                request.setEntity(QueryWriter.toEntity(query));
+                requests.add(null);
+            }
+            pageRequests.add(request);
+            pageQueries.add(query);
+            pageBounds.add(new int[]{size, offset});
+        }
+        List<Request> batchedRequests = new ArrayList<>(requests);
+        batchedRequests.removeIf(Objects::isNull);
+        Iterator<JsonObject> batchedResults = inventoryESService.sendAll(batchedRequests).iterator();
+
+        for (int i = 0; i < searchCategories.size(); i++) {
+            Map<String, Object> category = searchCategories.get(i);
+            String countResultFieldName = (String) category.get(GS_COUNT_RESULT_FIELD);
+            String resultFieldName = (String) category.get(GS_RESULT_FIELD);
+            String[][] properties = (String[][]) category.get(GS_COLLECT_FIELDS);
+            int pageSize = pageBounds.get(i)[0];
+            int pageOffset = pageBounds.get(i)[1];
+
+            JsonObject countResult = batchedResults.next();
+            int oldCount = (int)result.getOrDefault(countResultFieldName, 0);
+            result.put(countResultFieldName, countResult.get("count").getAsInt() + oldCount);
+
+            List<Map<String, Object>> objects;
+            if (requests.get(2 * i + 1) != null) {
+                objects = inventoryESService.collectPage(batchedResults.next(), properties, pageSize);
+            } else {
+                objects = inventoryESService.collectPage(pageRequests.get(i), pageQueries.get(i), properties, pageSize, pageOffset);
+            }
 
             for (var object: objects) {
                 object.put(GS_CATEGORY_TYPE, category.get(GS_CATEGORY_TYPE));
@@ -574,14 +623,15 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
 
     private List<Map<String, Object>> subjectCountBy(String category, Map<String, Object> params, String endpoint, Map<String, Object> additionalParams, String cardinalityAggName, String indexType) throws IOException {
         Map<String, Object> query = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(PAGE_SIZE), Set.of(), "nested_filters", indexType);
-        List<String> only_includes;
+        return getGroupCount(category, query, endpoint, cardinalityAggName, getOnlyIncludes(category, params));
+    }
+
+    private List<String> getOnlyIncludes(String category, Map<String, Object> params) {
         List<String> valueSet = INCLUDE_PARAMS.contains(category) ? (List<String>)params.get(category) : List.of();
         if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))){
-            only_includes = valueSet;
-        } else {
-            only_includes = List.of();
+            return valueSet;
         }
-        return getGroupCount(category, query, endpoint, cardinalityAggName, only_includes);
+        return List.of();
     }
 
     private List<Map<String, Object>> subjectCountByRange(String category, Map<String, Object> params, String endpoint, String cardinalityAggName, String indexType) throws IOException {
@@ -604,8 +654,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
 
     private JsonArray getNodeCount(String category, Map<String, Object> query, String endpoint) throws IOException {
         query = inventoryESService.addNodeCountAggregations(query, category);
-        Request request = new Request("GET", endpoint);
-        request.setJsonEntity(gson.toJson(query));
+        Request request = inventoryESService.searchRequest(endpoint, query);
         JsonObject jsonObject = inventoryESService.send(request);
         Map<String, JsonArray> aggs = inventoryESService.collectNodeCountAggs(jsonObject, category);
         JsonArray buckets = aggs.get(category);
@@ -615,9 +664,8 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
 
     private List<Map<String, Object>> getGroupCountByRange(String category, Map<String, Object> query, String endpoint, String cardinalityAggName) throws IOException {
         query = inventoryESService.addRangeCountAggregations(query, category, cardinalityAggName);
-        Request request = new Request("GET", endpoint);
         // System.out.println(gson.toJson(query));
-        request.setJsonEntity(gson.toJson(query));
+        Request request = inventoryESService.searchRequest(endpoint, query);
         JsonObject jsonObject = inventoryESService.send(request);
         Map<String, JsonArray> aggs = inventoryESService.collectRangCountAggs(jsonObject, category);
         JsonArray buckets = aggs.get(category);
@@ -626,28 +674,32 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
     }
 
     private List<Map<String, Object>> getGroupCount(String category, Map<String, Object> query, String endpoint, String cardinalityAggName, List<String> only_includes) throws IOException {
+        Request request = getGroupCountRequest(category, query, endpoint, cardinalityAggName, only_includes);
+        return collectGroupCount(category, inventoryESService.send(request), cardinalityAggName);
+    }
+
+    private Request getGroupCountRequest(String category, Map<String, Object> query, String endpoint, String cardinalityAggName, List<String> only_includes) {
         if (RANGE_PARAMS.contains(category)) {
             query = inventoryESService.addRangeAggregations(query, category, only_includes);
-            Request request = new Request("GET", endpoint);
-            // System.out.println(gson.toJson(query));
-            request.setJsonEntity(gson.toJson(query));
-            JsonObject jsonObject = inventoryESService.send(request);
+        } else {
+            query = inventoryESService.addAggregations(query, new String[] {category}, cardinalityAggName, only_includes);
+        }
+        return inventoryESService.searchRequest(endpoint, query);
+    }
+
+    private List<Map<String, Object>> collectGroupCount(String category, JsonObject jsonObject, String cardinalityAggName) throws IOException {
+        if (RANGE_PARAMS.contains(category)) {
             Map<String, JsonObject> aggs = inventoryESService.collectRangAggs(jsonObject, category);
             JsonObject ranges = aggs.get(category);
 
             return getRangeGroupCountHelper(ranges);
         } else {
             String[] AGG_NAMES = new String[] {category};
-            query = inventoryESService.addAggregations(query, AGG_NAMES, cardinalityAggName, only_includes);
-            Request request = new Request("GET", endpoint);
-            request.setJsonEntity(gson.toJson(query));
-            JsonObject jsonObject = inventoryESService.send(request);
             Map<String, JsonArray> aggs = inventoryESService.collectTermAggs(jsonObject, AGG_NAMES);
             JsonArray buckets = aggs.get(category);
 
             return getGroupCountHelper(buckets, cardinalityAggName);
         }
-        
     }
 
     private List<Map<String, Object>> getRangeGroupCountHelper(JsonObject ranges) throws IOException {
@@ -692,6 +744,10 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
     }
 
     private Map<String, String[]> idsLists() throws IOException {
+        return tieredCacheService.get(CacheService.ID_LISTS, "participantIDs", this::queryIdsLists);
+    }
+
+    private Map<String, String[]> queryIdsLists() throws IOException {
         Map<String, String[][]> indexProperties = Map.of(
             PARTICIPANTS_END_POINT, new String[][]{
                     new String[]{"participantIds", "participant_id"}
@@ -703,41 +759,29 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         Map<String, String[]> results = new HashMap<>();
         //Iterate through each index properties map and make a request to each endpoint then format the results as
         // String arrays
-        String cacheKey = "participantIDs";
-        Map<String, String[]> data = (Map<String, String[]>)caffeineCache.asMap().get(cacheKey);
-        if (data != null) {
-            logger.info("hit cache!");
-            return data;
-        } else {
-            for (String endpoint: indexProperties.keySet()){
-                Request request = new Request("GET", endpoint);
-                String[][] properties = indexProperties.get(endpoint);
-                List<String> fields = new ArrayList<>();
-                for (String[] prop: properties) {
-                    fields.add(prop[1]);
-                }
-                query.put("_source", fields);
-                
-                List<Map<String, Object>> result = esService.collectPage(request, query, properties, 200000,
-                        0);
-                Map<String, List<String>> indexResults = new HashMap<>();
-                Arrays.asList(properties).forEach(x -> indexResults.put(x[0], new ArrayList<>()));
-                for(Map<String, Object> resultElement: result){
-                    for(String key: indexResults.keySet()){
-                        List<String> tmp = indexResults.get(key);
-                        String v = (String) resultElement.get(key);
-                        if (!tmp.contains(v)) {
-                            tmp.add(v);
-                        }
-                    }
-                }
+        for (String endpoint: indexProperties.keySet()){
+            Request request = new Request("GET", endpoint);
+            String[][] properties = indexProperties.get(endpoint);
+            List<String> fields = new ArrayList<>();
+            for (String[] prop: properties) {
+                fields.add(prop[1]);
+            }
+            query.put("_source", fields);
+
+            List<Map<String, Object>> result = inventoryESService.streamPage(request, query, properties, 200000,
+                    0);
+            Map<String, Set<String>> indexResults = new HashMap<>();
+            Arrays.asList(properties).forEach(x -> indexResults.put(x[0], new LinkedHashSet<>()));
+            for(Map<String, Object> resultElement: result){
                 for(String key: indexResults.keySet()){
-                    results.put(key, indexResults.get(key).toArray(new String[indexResults.size()]));
+                    indexResults.get(key).add((String) resultElement.get(key));
                 }
             }
-            caffeineCache.put(cacheKey, results);
+            for(String key: indexResults.keySet()){
+                results.put(key, indexResults.get(key).toArray(new String[0]));
+            }
         }
-        
+
         return results;
     }
 
@@ -754,7 +798,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
 
         Request participantsCountRequest = new Request("GET", PARTICIPANTS_END_POINT);
 
-        participantsCountRequest.setJsonEntity(gson.toJson(query_participants));
+        participantsCountRequest.setEntity(QueryWriter.toEntity(query_participants));
         JsonObject participantsCountResult = inventoryESService.send(participantsCountRequest);
         int numberOfParticipants = participantsCountResult.getAsJsonObject("hits").getAsJsonObject("total").get("value").getAsInt();
 
@@ -763,20 +807,67 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
     }
 
     private Map<String, Object> searchParticipants(Map<String, Object> params) throws IOException {
+        return cachedQuery(CacheService.FACET_COUNTS, "searchParticipants", params, () -> querySearchParticipants(params));
+    }
+
+    /**
+     * Serves a query from the given cache region, keyed by a canonical fingerprint of its arguments.
+     * Queries against an uploaded list of participants are one-off and bypass the cache.
+     * @param region CacheService region name
+     * @param operation Query name
+     * @param params GraphQL arguments
+     * @param loader Runs the query on a miss
+     * @return Cached or computed result
+     * @throws IOException
+     */
+    private <T> T cachedQuery(String region, String operation, Map<String, Object> params, TieredCacheService.Loader<T> loader) throws IOException {
         List<String> importData = (List<String>) params.get("import_data");
-        String cacheKey = "no_cache";
-        Map<String, Object> data = null;
-        if (importData == null || importData.size() == 0 || importData.get(0).equals("")) {
-            cacheKey = generateCacheKey(params);
-            data = (Map<String, Object>)caffeineCache.asMap().get(cacheKey);
-        }
-        
-        if (data != null) {
-            logger.info("hit cache!");
-            return data;
+        if (importData != null && importData.size() > 0 && !importData.get(0).equals("")) {
+            return loader.load();
         }
-        // logger.info("cache miss... querying for data.");
-        data = new HashMap<>();
+        return tieredCacheService.get(region, QueryFingerprint.of(operation, params, RANGE_PARAMS), loader);
+    }
+
+    /**
+     * Recomputes the cached searchParticipants result for the given arguments, used by DashboardMaterializer
+     * @param params GraphQL arguments, including defaults
+     * @return Whether this node recomputed it, false if another node is already doing so
+     * @throws IOException
+     */
+    boolean refreshSearchParticipants(Map<String, Object> params) throws IOException {
+        return tieredCacheService.refresh(CacheService.FACET_COUNTS, QueryFingerprint.of("searchParticipants", params, RANGE_PARAMS),
+                () -> querySearchParticipants(params));
+    }
+
+    /**
+     * Recomputes the cached studyDetails result for a study, used by DashboardMaterializer
+     * @param studyId Study ID
+     * @return Whether this node recomputed it, false if another node is already doing so
+     * @throws IOException
+     */
+    boolean refreshStudyDetails(String studyId) throws IOException {
+        return tieredCacheService.refresh(CacheService.STUDY_DETAILS, QueryFingerprint.of("studyDetails", Map.of("study_id", studyId), RANGE_PARAMS),
+                () -> queryStudyDetails(studyId));
+    }
+
+    /**
+     * @return study_id and dbgap_accession of every study
+     * @throws IOException
+     */
+    List<Map<String, Object>> listStudies() throws IOException {
+        final String[][] properties = new String[][]{
+                new String[]{"study_id", "study_id"},
+                new String[]{"dbgap_accession", "dbgap_accession"}
+        };
+        Map<String, Object> query = esService.buildListQuery();
+        query.put("_source", List.of("study_id", "dbgap_accession"));
+        Request request = new Request("GET", STUDIES_END_POINT);
+
+        return inventoryESService.streamPage(request, query, properties, ESService.MAX_ES_SIZE, 0);
+    }
+
+    private Map<String, Object> querySearchParticipants(Map<String, Object> params) throws IOException {
+        Map<String, Object> data = new HashMap<>();
         // Query related values
         final List<Map<String, Object>> PARTICIPANT_TERM_AGGS = new ArrayList<>();
         // file related aggregations
@@ -844,211 +935,19 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         //         ADDITIONAL_UPDATE, Map.of("WXS", 2000, "Other", 500, "RNA-Seq", 1000, "WGS", 1500),
         //         AGG_ENDPOINT, FILES_END_POINT
         // ));
-        Map<String, Object> query_participants = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "participants_table");
-        // System.out.println(gson.toJson(query_participants));
-        Map<String, Object> newQuery_participants = new HashMap<>(query_participants);
-        newQuery_participants.put("size", 0);
-        newQuery_participants.put("track_total_hits", 10000000);
-        Map<String, Object> fields = new HashMap<String, Object>();
-        fields.put("file_count", Map.of("sum", Map.of("field", "file_count")));
-        newQuery_participants.put("aggs", fields);
-        Request participantsCountRequest = new Request("GET", PARTICIPANTS_END_POINT);
-        // System.out.println(gson.toJson(newQuery_participants));
-        participantsCountRequest.setJsonEntity(gson.toJson(newQuery_participants));
-        JsonObject participantsCountResult = inventoryESService.send(participantsCountRequest);
-        int numberOfParticipants = participantsCountResult.getAsJsonObject("hits").getAsJsonObject("total").get("value").getAsInt();
-        int participants_file_count = participantsCountResult.getAsJsonObject("aggregations").getAsJsonObject("file_count").get("value").getAsInt();
-        Map<String, Object> query_diagnosis = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "diagnoses_table");
-        // System.out.println(gson.toJson(query_diagnosis));
-        Request diagnosisCountRequest = new Request("GET", DIAGNOSIS_COUNT_END_POINT);
-        diagnosisCountRequest.setJsonEntity(gson.toJson(query_diagnosis));
-        JsonObject diagnosisCountResult = inventoryESService.send(diagnosisCountRequest);
-        int numberOfDiagnosis = diagnosisCountResult.get("count").getAsInt();
-        Map<String, Object> query_genetic_analyses = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "genetic_analyses_table");
-        Request geneticAnalysesCountRequest = new Request("GET", GENETIC_ANALYSES_COUNT_END_POINT);
-        geneticAnalysesCountRequest.setJsonEntity(gson.toJson(query_genetic_analyses));
-        JsonObject geneticAnalysesCountResult = inventoryESService.send(geneticAnalysesCountRequest);
-        int numberOfGeneticAnalyses = geneticAnalysesCountResult.get("count").getAsInt();
-        Map<String, Object> query_treatments = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "treatments_table");
-        Request treatmentsCountRequest = new Request("GET", TREATMENTS_COUNT_END_POINT);
-        treatmentsCountRequest.setJsonEntity(gson.toJson(query_treatments));
-        JsonObject treatmentsCountResult = inventoryESService.send(treatmentsCountRequest);
-        int numberOfTreatments = treatmentsCountResult.get("count").getAsInt();
-        Map<String, Object> query_treatment_responses = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "treatment_responses_table");
-        Request treatmentResponsesCountRequest = new Request("GET", TREATMENT_RESPONSES_COUNT_END_POINT);
-        treatmentResponsesCountRequest.setJsonEntity(gson.toJson(query_treatment_responses));
-        JsonObject treatmentResponsesCountResult = inventoryESService.send(treatmentResponsesCountRequest);
-        int numberOfTreatmentResponses = treatmentResponsesCountResult.get("count").getAsInt();
-        Map<String, Object> query_survivals = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "survivals_table");
-        Request survivalsCountRequest = new Request("GET", SURVIVALS_COUNT_END_POINT);
-        survivalsCountRequest.setJsonEntity(gson.toJson(query_survivals));
-        JsonObject survivalsCountResult = inventoryESService.send(survivalsCountRequest);
-        int numberOfSurvivals = survivalsCountResult.get("count").getAsInt();
-        Map<String, Object> query_samples = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "samples_table");
-        Request samplesCountRequest = new Request("GET", SAMPLES_COUNT_END_POINT);
-        samplesCountRequest.setJsonEntity(gson.toJson(query_samples));
-        JsonObject samplesCountResult = inventoryESService.send(samplesCountRequest);
-        int numberOfSamples = samplesCountResult.get("count").getAsInt();
-        
-        Map<String, Object> query_studies = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "study_participants_faceted");
-        int numberOfStudies = getNodeCount("study_id", query_studies, STUDIES_FACET_END_POINT).size();
-
-        Request filesCountRequest = new Request("GET", FILES_COUNT_END_POINT);
-        Map<String, Object> query_files = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), Set.of(), "nested_filters", "files_table");
-        filesCountRequest.setJsonEntity(gson.toJson(query_files));
-        JsonObject filesCountResult = inventoryESService.send(filesCountRequest);
-        int numberOfFiles = filesCountResult.get("count").getAsInt();
-
-        data.put("numberOfStudies", numberOfStudies);
-        data.put("numberOfParticipants", numberOfParticipants);
-        data.put("numberOfDiagnosis", numberOfDiagnosis);
-        data.put("numberOfGeneticAnalyses", numberOfGeneticAnalyses);
-        data.put("numberOfTreatments", numberOfTreatments);
-        data.put("numberOfTreatmentResponses", numberOfTreatmentResponses);
-        data.put("numberOfSurvivals", numberOfSurvivals);
-        data.put("numberOfSamples", numberOfSamples);
-        data.put("numberOfFiles", numberOfFiles);
-        data.put("participantsFileCount", participants_file_count);
-
-        // Iterate through facet filters to query their counts
-        for (Map.Entry<String, List<Map<String, Object>>> entry : facetFilters.entrySet()) {
-            String index = entry.getKey();
-            List<Map<String, Object>> filters = entry.getValue();
-            String endpoint = ENDPOINTS.get(index);
-
-            // Query this index for counts of each relevant facet filter
-            for (Map<String, Object> filter : filters) {
-                String cardinalityAggName = (String) filter.get(CARDINALITY_AGG_NAME);
-                String cardinalityIndexName = filter.containsKey(CARDINALITY_INDEX_NAME) ? (String) filter.get(CARDINALITY_INDEX_NAME) : null;
-                String field = (String) filter.get(AGG_NAME);
-                String filterCountQueryName = (String) filter.get(FILTER_COUNT_QUERY);
-                boolean isRangeParam = RANGE_PARAMS.contains(field);
-                Map<String, Integer> thresholds = (Map<String, Integer>) filter.get(ADDITIONAL_UPDATE);
-                List<String> values = null;
-                Object valuesRaw = params.get(field);
-                String widgetQueryName = (String) filter.get(WIDGET_QUERY);
-                List<Map<String, Object>> filterCounts = filterSubjectCountBy(field, params, endpoint, cardinalityAggName, index);
-                List<Map<String, Object>> widgetCounts = filterCounts;
-                List<Map<String, Object>> newFilterCounts;
-                List<Map<String, Object>> newWidgetCounts;
-
-                if (isRangeParam) {
-                    data.put(filterCountQueryName, filterCounts.get(0));
-                } else {
-                    data.put(filterCountQueryName, filterCounts);
-                }
-
-                // TODO use type checker
-                // Get the values we're filtering the field by
-                // if (TypeChecker.isOfType(valuesRaw, new TypeToken<List<String>>() {})) {
-                //     @SuppressWarnings("unchecked")
-                //     List<String> castedValues = (List<String>) valuesRaw;
-                //     values = castedValues;
-                // }
-                values = (List<String>) valuesRaw;
-
-                // Get widget counts
-                if (widgetQueryName != null) {
-                    // Fetch data for widgets
-                    if (isRangeParam) { // Numerical range widgets - these counts will be exact!
-                        String queryIndex = cardinalityIndexName != null ? cardinalityIndexName : index;
-                        String queryEndpoint = ENDPOINTS.get(queryIndex);
-                        if (queryEndpoint == null) {
-                            throw new IOException("No OpenSearch endpoint mapping found for index: " + queryIndex);
-                        }
-                        widgetCounts = subjectCountByRange(field, params, queryEndpoint, cardinalityAggName, queryIndex);
-                    } else if (params.containsKey(field) && values.size() > 0) { // Non-range widgets - these counts might be inaccurate!
-                        widgetCounts = subjectCountBy(field, params, endpoint, cardinalityAggName, index);
-                    }
-
-                    data.put(widgetQueryName, widgetCounts);
-                }
-
-                // Nothing left to do if counts don't need to be redone
-                if (thresholds == null) {
-                    continue;
-                }
-
-                // newFilterCounts = recalculateCounts(filterCounts, thresholds, params, index, field);
+        // The count and facet queries below are independent, so they are dispatched together, and share filters built once for the request
+        FilterQueries filterQueries = inventoryESService.filterQueries(params, RANGE_PARAMS, Set.of(PAGE_SIZE));
+        List<Callable<Map<String, Object>>> tasks = new ArrayList<>();
+        tasks.add(() -> dashboardCounts(filterQueries));
 
-                // // Replace old counts with new counts
-                // data.put(filterCountQueryName, newFilterCounts);
+        // Query counts of the facet filters of every index, one planned request per index
+        for (Map.Entry<String, List<Map<String, Object>>> entry : facetFilters.entrySet()) {
+            tasks.add(() -> facetFilterCounts(entry.getKey(), entry.getValue(), params, filterQueries));
+        }
 
-                // // Replace widget counts if there is a widget
-                // if (widgetQueryName != null) {
-                //     newWidgetCounts = recalculateCounts(widgetCounts, thresholds, params, index, field);
-                //     data.put(widgetQueryName, newWidgetCounts);
-                // }
-                List<Map<String, Object>> filterCount_2_update = (List<Map<String, Object>>)data.get(filterCountQueryName);
-                List<Map<String, Object>> widgetCount_2_update = (List<Map<String, Object>>)data.get(widgetQueryName);
-                List<String> facetValues_need_update = new ArrayList<String>();
-                //check if the count for each of the group within the filterCount is smaller than the marked number
-                for (Map<String, Object> map : filterCount_2_update) {
-                    String group = (String)map.get("group");
-                    if (thresholds.containsKey(group)) {
-                        int count = (Integer)map.get("subjects");
-                        int marked = (Integer)thresholds.get(group);
-                        if (count > marked) {
-                            //need to perform query
-                            facetValues_need_update.add(group);
-                        }
-                    }
-                }
-                //if any facet value is above the number, perform the query
-                if (facetValues_need_update.size() > 0) {
-                    Map<String, Object> query_4_update = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(field), Set.of(), "nested_filters", "participants_table");
-                    String prop = field;
-                    String nestedProperty = "";
-                    if (index.equals("survivals_table")) {
-                        nestedProperty = "survival_filters";
-                    } else if (index.equals("treatments_table")) {
-                        nestedProperty = "treatment_filters";
-                    } else if (index.equals("treatment_responses_table")) {
-                        nestedProperty = "treatment_response_filters";
-                    } else if (index.equals("samples_table")) {
-                        nestedProperty = "sample_diagnosis_genetic_analysis_file_filters";
-                    } else if (index.equals("diagnoses_table")) {
-                        nestedProperty = "sample_diagnosis_genetic_analysis_file_filters";
-                    } else if (index.equals("genetic_analyses_table")) {
-                        nestedProperty = "sample_diagnosis_genetic_analysis_file_filters";
-                    } else if (index.equals("files_table")) {
-                        nestedProperty = "sample_diagnosis_genetic_analysis_file_filters";
-                    } else {
-                        nestedProperty = "";
-                    }
-                    query_4_update = inventoryESService.addCustomAggregations(query_4_update, "facetAgg", prop, nestedProperty);
-                    Request request = new Request("GET", PARTICIPANTS_END_POINT);
-                    request.setJsonEntity(gson.toJson(query_4_update));
-                    JsonObject jsonObject = inventoryESService.send(request);
-                    Map<String, Integer> updated_values = inventoryESService.collectCustomTerms(jsonObject, "facetAgg");
-                    //update the facet value one more time
-                    List<Map<String, Object>> filterCount_new = new ArrayList<Map<String, Object>>();
-                    for (Map<String, Object> map : filterCount_2_update) {
-                        String group = (String)map.get("group");
-                        int count = (Integer)map.get("subjects");
-                        // System.out.println(count);
-                        if (facetValues_need_update.indexOf(group) >= 0) {
-                            count = updated_values.get(group);
-                            // System.out.println("-->"+ count);
-                        }
-                        filterCount_new.add(Map.of("group", group, "subjects", count));
-                    }
-                    data.put(filterCountQueryName, filterCount_new);
-                    //update the widget facet value if widget exists
-                    if (widgetCount_2_update != null) {
-                        List<Map<String, Object>> widgetCount_new = new ArrayList<Map<String, Object>>();
-                        for (Map<String, Object> map : widgetCount_2_update) {
-                            String group = (String)map.get("group");
-                            int count = (Integer)map.get("subjects");
-                            if (facetValues_need_update.indexOf(group) >= 0) {
-                                count = updated_values.get(group);
-                            }
-                            widgetCount_new.add(Map.of("group", group, "subjects", count));
-                        }
-                        data.put(widgetQueryName, widgetCount_new);
-                    }
-                }
-            }
+        // Merge in task order so that results don't depend on completion order
+        for (Map<String, Object> partialData : queryFanOutService.invokeAll(tasks)) {
+            data.putAll(partialData);
         }
 
         // widgets data and facet filter counts for projects
@@ -1122,8 +1021,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                         nestedProperty = "";
                     }
                     query_4_update = inventoryESService.addCustomAggregations(query_4_update, "facetAgg", prop, nestedProperty);
-                    Request request = new Request("GET", PARTICIPANTS_END_POINT);
-                    request.setJsonEntity(gson.toJson(query_4_update));
+                    Request request = inventoryESService.searchRequest(PARTICIPANTS_END_POINT, query_4_update);
                     JsonObject jsonObject = inventoryESService.send(request);
                     Map<String, Integer> updated_values = inventoryESService.collectCustomTerms(jsonObject, "facetAgg");
                     //update the facet value one more time
@@ -1155,8 +1053,217 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                 }
             }
         }
-        if (!cacheKey.equals("no_cache")) {
-            caffeineCache.put(cacheKey, data);
+        return data;
+    }
+
+    /**
+     * Queries the filter counts, widget counts and corrected counts for the facet filters of an index.
+     * Filter counts and non-range widget counts are answered by a single planned request.
+     * @param index Opensearch index the facet filters are defined on
+     * @param filters Facet filter definitions from facet_filters.yaml
+     * @param params Dashboard filter parameters
+     * @param filterQueries Filter queries of the parameters
+     * @return GraphQL field names mapped to their counts
+     * @throws IOException
+     */
+    private Map<String, Object> facetFilterCounts(String index, List<Map<String, Object>> filters, Map<String, Object> params, FilterQueries filterQueries) throws IOException {
+        Map<String, Object> data = new HashMap<>();
+        String endpoint = ENDPOINTS.get(index);
+        Map<String, Map<String, Object>> facets = new HashMap<>();
+
+        // Plan every facet of this index into one request
+        for (Map<String, Object> filter : filters) {
+            String cardinalityAggName = (String) filter.get(CARDINALITY_AGG_NAME);
+            String field = (String) filter.get(AGG_NAME);
+            String widgetQueryName = (String) filter.get(WIDGET_QUERY);
+            List<String> values = (List<String>) params.get(field);
+            Map<String, Object> excludingQuery = filterQueries.buildExcluding(index, field);
+            facets.put((String) filter.get(FILTER_COUNT_QUERY), inventoryESService.buildFacetAggregation(excludingQuery, field, cardinalityAggName, List.of()));
+
+            // Non-range widgets - these counts might be inaccurate!
+            if (widgetQueryName != null && !RANGE_PARAMS.contains(field) && params.containsKey(field) && values.size() > 0) {
+                facets.put(widgetQueryName, inventoryESService.buildFacetAggregation(filterQueries.build(index), field, cardinalityAggName, getOnlyIncludes(field, params)));
+            }
+        }
+        Request request = inventoryESService.searchRequest(endpoint, inventoryESService.buildFacetPlanQuery(facets, RANGE_PARAMS));
+        JsonObject jsonObject = inventoryESService.send(request);
+        Map<String, JsonElement> facetAggs = inventoryESService.collectFacetPlanAggs(jsonObject, facets, RANGE_PARAMS);
+
+        for (Map<String, Object> filter : filters) {
+            data.putAll(facetFilterCounts(index, filter, filterQueries, facets, facetAggs));
+        }
+        return data;
+    }
+
+    /**
+     * Reads the counts of a single facet filter out of a planned request's results,
+     * then queries range widgets and corrected counts that couldn't be planned
+     * @param index Opensearch index the facet filter is defined on
+     * @param filter Facet filter definition from facet_filters.yaml
+     * @param filterQueries Filter queries of the dashboard filter parameters
+     * @param facets Facets the planned request was built from
+     * @param facetAggs Results of the planned request
+     * @return GraphQL field names mapped to their counts
+     * @throws IOException
+     */
+    private Map<String, Object> facetFilterCounts(String index, Map<String, Object> filter, FilterQueries filterQueries, Map<String, Map<String, Object>> facets, Map<String, JsonElement> facetAggs) throws IOException {
+        Map<String, Object> data = new HashMap<>();
+        String cardinalityAggName = (String) filter.get(CARDINALITY_AGG_NAME);
+        String cardinalityIndexName = filter.containsKey(CARDINALITY_INDEX_NAME) ? (String) filter.get(CARDINALITY_INDEX_NAME) : null;
+        String field = (String) filter.get(AGG_NAME);
+        String filterCountQueryName = (String) filter.get(FILTER_COUNT_QUERY);
+        boolean isRangeParam = RANGE_PARAMS.contains(field);
+        Map<String, Integer> thresholds = (Map<String, Integer>) filter.get(ADDITIONAL_UPDATE);
+        String widgetQueryName = (String) filter.get(WIDGET_QUERY);
+        List<Map<String, Object>> filterCounts;
+        List<Map<String, Object>> widgetCounts;
+
+        if (isRangeParam) {
+            filterCounts = getRangeGroupCountHelper(facetAggs.get(filterCountQueryName).getAsJsonObject());
+            data.put(filterCountQueryName, filterCounts.get(0));
+        } else {
+            filterCounts = getGroupCountHelper(facetAggs.get(filterCountQueryName).getAsJsonArray(), cardinalityAggName);
+            data.put(filterCountQueryName, filterCounts);
+        }
+
+        // Get widget counts
+        if (widgetQueryName != null) {
+            // Fetch data for widgets
+            if (isRangeParam) { // Numerical range widgets - these counts will be exact!
+                String queryIndex = cardinalityIndexName != null ? cardinalityIndexName : index;
+                String queryEndpoint = ENDPOINTS.get(queryIndex);
+                if (queryEndpoint == null) {
+                    throw new IOException("No OpenSearch endpoint mapping found for index: " + queryIndex);
+                }
+                widgetCounts = getGroupCountByRange(field, filterQueries.build(queryIndex), queryEndpoint, cardinalityAggName);
+            } else if (facets.containsKey(widgetQueryName)) {
+                widgetCounts = getGroupCountHelper(facetAggs.get(widgetQueryName).getAsJsonArray(), cardinalityAggName);
+            } else {
+                widgetCounts = filterCounts;
+            }
+
+            data.put(widgetQueryName, widgetCounts);
+        }
+
+        // Nothing left to do if counts don't need to be redone
+        if (thresholds == null) {
+            return data;
+        }
+
+        List<Map<String, Object>> filterCount_2_update = (List<Map<String, Object>>)data.get(filterCountQueryName);
+        List<Map<String, Object>> widgetCount_2_update = (List<Map<String, Object>>)data.get(widgetQueryName);
+        List<String> facetValues_need_update = new ArrayList<String>();
+        //check if the count for each of the group within the filterCount is smaller than the marked number
+        for (Map<String, Object> map : filterCount_2_update) {
+            String group = (String)map.get("group");
+            if (thresholds.containsKey(group)) {
+                int count = (Integer)map.get("subjects");
+                int marked = (Integer)thresholds.get(group);
+                if (count > marked) {
+                    //need to perform query
+                    facetValues_need_update.add(group);
+                }
+            }
+        }
+        //if any facet value is above the number, perform the query
+        if (facetValues_need_update.size() > 0) {
+            Map<String, Object> query_4_update = filterQueries.buildExcluding("participants_table", field);
+            String prop = field;
+            String nestedProperty = "";
+            if (index.equals("survivals_table")) {
+                nestedProperty = "survival_filters";
+            } else if (index.equals("treatments_table")) {
+                nestedProperty = "treatment_filters";
+            } else if (index.equals("treatment_responses_table")) {
+                nestedProperty = "treatment_response_filters";
+            } else if (index.equals("samples_table")) {
+                nestedProperty = "sample_diagnosis_genetic_analysis_file_filters";
+            } else if (index.equals("diagnoses_table")) {
+                nestedProperty = "sample_diagnosis_genetic_analysis_file_filters";
+            } else if (index.equals("genetic_analyses_table")) {
+                nestedProperty = "sample_diagnosis_genetic_analysis_file_filters";
+            } else if (index.equals("files_table")) {
+                nestedProperty = "sample_diagnosis_genetic_analysis_file_filters";
+            } else {
+                nestedProperty = "";
+            }
+            query_4_update = inventoryESService.addCustomAggregations(query_4_update, "facetAgg", prop, nestedProperty);
+            Request request = inventoryESService.searchRequest(PARTICIPANTS_END_POINT, query_4_update);
+            JsonObject jsonObject = inventoryESService.send(request);
+            Map<String, Integer> updated_values = inventoryESService.collectCustomTerms(jsonObject, "facetAgg");
+            //update the facet value one more time
+            List<Map<String, Object>> filterCount_new = new ArrayList<Map<String, Object>>();
+            for (Map<String, Object> map : filterCount_2_update) {
+                String group = (String)map.get("group");
+                int count = (Integer)map.get("subjects");
+                if (facetValues_need_update.indexOf(group) >= 0) {
+                    count = updated_values.get(group);
+                }
+                filterCount_new.add(Map.of("group", group, "subjects", count));
+            }
+            data.put(filterCountQueryName, filterCount_new);
+            //update the widget facet value if widget exists
+            if (widgetCount_2_update != null) {
+                List<Map<String, Object>> widgetCount_new = new ArrayList<Map<String, Object>>();
+                for (Map<String, Object> map : widgetCount_2_update) {
+                    String group = (String)map.get("group");
+                    int count = (Integer)map.get("subjects");
+                    if (facetValues_need_update.indexOf(group) >= 0) {
+                        count = updated_values.get(group);
+                    }
+                    widgetCount_new.add(Map.of("group", group, "subjects", count));
+                }
+                data.put(widgetQueryName, widgetCount_new);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Queries the dashboard's summary counts in a single _msearch request
+     * @param filterQueries Filter queries of the dashboard filter parameters
+     * @return GraphQL field names mapped to their counts
+     * @throws IOException
+     */
+    private Map<String, Object> dashboardCounts(FilterQueries filterQueries) throws IOException {
+        Map<String, Object> data = new HashMap<>();
+        Map<String, String> countEndpoints = new LinkedHashMap<>();
+        countEndpoints.put("numberOfDiagnosis", DIAGNOSIS_COUNT_END_POINT);
+        countEndpoints.put("numberOfGeneticAnalyses", GENETIC_ANALYSES_COUNT_END_POINT);
+        countEndpoints.put("numberOfTreatments", TREATMENTS_COUNT_END_POINT);
+        countEndpoints.put("numberOfTreatmentResponses", TREATMENT_RESPONSES_COUNT_END_POINT);
+        countEndpoints.put("numberOfSurvivals", SURVIVALS_COUNT_END_POINT);
+        countEndpoints.put("numberOfSamples", SAMPLES_COUNT_END_POINT);
+        countEndpoints.put("numberOfFiles", FILES_COUNT_END_POINT);
+        List<Request> requests = new ArrayList<>();
+
+        Map<String, Object> query_participants = filterQueries.build("participants_table");
+        Map<String, Object> newQuery_participants = new HashMap<>(query_participants);
+        newQuery_participants.put("size", 0);
+        newQuery_participants.put("track_total_hits", 10000000);
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("file_count", Map.of("sum", Map.of("field", "file_count")));
+        newQuery_participants.put("aggs", fields);
+        requests.add(inventoryESService.searchRequest(PARTICIPANTS_END_POINT, newQuery_participants));
+
+        Map<String, Object> query_studies = filterQueries.build("study_participants_faceted");
+        requests.add(inventoryESService.searchRequest(STUDIES_FACET_END_POINT, inventoryESService.addNodeCountAggregations(query_studies, "study_id")));
+
+        for (String endpoint : countEndpoints.values()) {
+            String indexType = endpoint.replace("/", "").replace("_count", "");
+            Request countRequest = new Request("GET", endpoint);
+            countRequest.setEntity(QueryWriter.toEntity(filterQueries.build(indexType)));
+            requests.add(countRequest);
+        }
+
+        List<JsonObject> results = inventoryESService.sendAll(requests);
+        JsonObject participantsCountResult = results.get(0);
+        data.put("numberOfParticipants", participantsCountResult.getAsJsonObject("hits").getAsJsonObject("total").get("value").getAsInt());
+        data.put("participantsFileCount", participantsCountResult.getAsJsonObject("aggregations").getAsJsonObject("file_count").get("value").getAsInt());
+        data.put("numberOfStudies", inventoryESService.collectNodeCountAggs(results.get(1), "study_id").get("study_id").size());
+        int i = 2;
+        for (String countName : countEndpoints.keySet()) {
+            data.put(countName, results.get(i++).get("count").getAsInt());
         }
         return data;
     }
@@ -1409,8 +1516,12 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
 
 
     private Map<String, Object> studyDetails(Map<String, Object> params) throws IOException {
-        Map<String, Object> study;
         String studyId = (String) params.get("study_id");
+        return cachedQuery(CacheService.STUDY_DETAILS, "studyDetails", params, () -> queryStudyDetails(studyId));
+    }
+
+    private Map<String, Object> queryStudyDetails(String studyId) throws IOException {
+        Map<String, Object> study;
         List<Map<String, Object>> studies;
 
         final String[][] PROPERTIES = new String[][]{
@@ -1478,15 +1589,24 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                 ADDITIONAL_UPDATE, Map.of("Pathology Imaging", 1000, "Sequencing", 500, "Clinical", 1500),
                 AGG_ENDPOINT, FILES_END_POINT
         ));
+        // All facet aggregations are sent together in one _msearch request
+        List<Request> facetRequests = new ArrayList<>();
         for (var agg: PARTICIPANT_TERM_AGGS) {
             String field = (String)agg.get(AGG_NAME);
-            Map<String, Integer> additionalUpdate = (Map<String, Integer>)agg.get(ADDITIONAL_UPDATE);
-            String filterCountQueryName = (String)agg.get(FILTER_COUNT_QUERY);
             String endpoint = (String)agg.get(AGG_ENDPOINT);
             String indexType = endpoint.replace("/", "").replace("_search", "");
+            Map<String, Object> query = inventoryESService.buildFacetFilterQuery(query_params, RANGE_PARAMS, Set.of(PAGE_SIZE, field), Set.of(), "nested_filters", indexType);
+            facetRequests.add(getGroupCountRequest(field, query, endpoint, (String)agg.get(CARDINALITY_AGG_NAME), List.of()));
+        }
+        List<JsonObject> facetResults = inventoryESService.sendAll(facetRequests);
+
+        for (int i = 0; i < PARTICIPANT_TERM_AGGS.size(); i++) {
+            var agg = PARTICIPANT_TERM_AGGS.get(i);
+            String field = (String)agg.get(AGG_NAME);
+            Map<String, Integer> additionalUpdate = (Map<String, Integer>)agg.get(ADDITIONAL_UPDATE);
+            String filterCountQueryName = (String)agg.get(FILTER_COUNT_QUERY);
             String cardinalityAggName = (String)agg.get(CARDINALITY_AGG_NAME);
-            // System.out.println(cardinalityAggName);
-            List<Map<String, Object>> filterCount = filterSubjectCountBy(field, query_params, endpoint, cardinalityAggName, indexType);
+            List<Map<String, Object>> filterCount = collectGroupCount(field, facetResults.get(i), cardinalityAggName);
             if(RANGE_PARAMS.contains(field)) {
                 study.put(filterCountQueryName, filterCount.get(0));
             } else {
@@ -1513,8 +1633,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                     Map<String, Object> query_4_update = inventoryESService.buildFacetFilterQuery(query_params, RANGE_PARAMS, Set.of(field), Set.of(), "nested_filters", "participants_table");
                     String prop = field;
                     query_4_update = inventoryESService.addCustomAggregations(query_4_update, "facetAgg", prop, "sample_diagnosis_genetic_analysis_file_filters");
-                    Request request = new Request("GET", PARTICIPANTS_END_POINT);
-                    request.setJsonEntity(gson.toJson(query_4_update));
+                    Request request = inventoryESService.searchRequest(PARTICIPANTS_END_POINT, query_4_update);
                     JsonObject jsonObject = inventoryESService.send(request);
                     Map<String, Integer> updated_values = inventoryESService.collectCustomTerms(jsonObject, "facetAgg");
                     //update the facet value one more time
@@ -2113,14 +2232,12 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
                 Map.entry("num_of_files", "num_of_files")
         );
 
-        Request request = new Request("GET", FILES_END_POINT);
         Map<String, Object> query = inventoryESService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(PAGE_SIZE, OFFSET, ORDER_BY, SORT_DIRECTION), Set.of(), "nested_filters", "files_table");
         String[] AGG_NAMES = new String[] {"study_id"};
         query = inventoryESService.addAggregations(query, AGG_NAMES);
         // System.out.println(gson.toJson(query));
-        request.setJsonEntity(gson.toJson(query));
-        JsonObject jsonObject = inventoryESService.send(request);
-        Map<String, JsonArray> aggs = inventoryESService.collectTermAggs(jsonObject, AGG_NAMES);
+        Request request = inventoryESService.searchRequest(FILES_END_POINT, query);
+        Map<String, JsonArray> aggs = inventoryESService.streamTermAggs(request, AGG_NAMES);
         JsonArray buckets = aggs.get("study_id");
         List<String> data = new ArrayList<>();
         for (var bucket: buckets) {
@@ -2401,8 +2518,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             countQuery.put("size", 0);
             countQuery.put("track_total_hits", true);
             
-            Request countRequest = new Request("GET", FILES_END_POINT);
-            countRequest.setJsonEntity(gson.toJson(countQuery));
+            Request countRequest = inventoryESService.searchRequest(FILES_END_POINT, countQuery);
             JsonObject countResult = inventoryESService.send(countRequest);
             
             int totalCount = 0;
@@ -2473,7 +2589,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         }
         int pageSize = (int) params.get(PAGE_SIZE);
         int offset = (int) params.get(OFFSET);
-        List<Map<String, Object>> page = inventoryESService.collectPage(request, query, properties, pageSize, offset);
+        List<Map<String, Object>> page = inventoryESService.streamPage(request, query, properties, pageSize, offset);
         return page;
     }
 
@@ -2486,7 +2602,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         Map<String, Object> query = esService.buildListQuery(params, Set.of(), false);
         Request request = new Request("GET",PARTICIPANTS_END_POINT);
 
-        return esService.collectPage(request, query, properties, ESService.MAX_ES_SIZE, 0);
+        return inventoryESService.streamPage(request, query, properties, ESService.MAX_ES_SIZE, 0);
     }
 
     private Integer numberOfDiseases(Map<String, Object> params) throws IOException {
@@ -2552,9 +2668,8 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             Map<String, Object> query = inventoryESService.buildGetFileIDsQuery(participantIDsSet);
             Request request = new Request("GET", PARTICIPANTS_END_POINT);
             // System.out.println(gson.toJson(query));
-            request.setJsonEntity(gson.toJson(query));
-            JsonObject jsonObject = inventoryESService.send(request);
-            List<String> result = inventoryESService.collectFileIDs(jsonObject);
+            request.setEntity(QueryWriter.toEntity(query));
+            List<String> result = inventoryESService.streamFileIDs(request);
             return result;
         }
 
@@ -2562,9 +2677,8 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             Map<String, Object> query = inventoryESService.buildGetFileIDsQuery(studyIDsSet);
             Request request = new Request("GET", STUDIES_END_POINT);
             // System.out.println(gson.toJson(query));
-            request.setJsonEntity(gson.toJson(query));
-            JsonObject jsonObject = inventoryESService.send(request);
-            List<String> result = inventoryESService.collectFileIDs(jsonObject);
+            request.setEntity(QueryWriter.toEntity(query));
+            List<String> result = inventoryESService.streamFileIDs(request);
             return result;
         }
 
@@ -2572,9 +2686,8 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             Map<String, Object> query = inventoryESService.buildGetFileIDsQuery(sampleIDsSet);
             Request request = new Request("GET", SAMPLES_END_POINT);
             // System.out.println(gson.toJson(query));
-            request.setJsonEntity(gson.toJson(query));
-            JsonObject jsonObject = inventoryESService.send(request);
-            List<String> result = inventoryESService.collectFileIDs(jsonObject);
+            request.setEntity(QueryWriter.toEntity(query));
+            List<String> result = inventoryESService.streamFileIDs(request);
             return result;
         }
 
@@ -2594,38 +2707,6 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         return new ArrayList<>();
     }
 
-    private String generateCacheKey(Map<String, Object> params) throws IOException {
-        List<String> keys = new ArrayList<>();
-        for (String key: params.keySet()) {
-            if (RANGE_PARAMS.contains(key)) {
-                // Range parameters, should contain two doubles, first lower bound, then upper bound
-                // Any other values after those two will be ignored
-                List<Integer> bounds = (List<Integer>) params.get(key);
-                if (bounds.size() >= 2) {
-                    Integer lower = bounds.get(0);
-                    Integer higher = bounds.get(1);
-                    if (lower == null && higher == null) {
-                        throw new IOException("Lower bound and Upper bound can't be both null!");
-                    }
-                    keys.add(key.concat(lower.toString()).concat(higher.toString()));
-                }
-            } else {
-                List<String> valueSet = (List<String>) params.get(key);
-                // list with only one empty string [""] means return all records
-                if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))) {
-                    keys.add(key.concat(valueSet.toString()));
-                }
-            }
-        }
-        if (keys.size() == 0){
-            // System.out.println("all");
-            return "all";
-        } else {
-            // System.out.println(keys.toString());
-            return keys.toString();
-        }
-    }
-
     /**
      * Executes batch OpenSearch query for all study/participant combinations
      */
@@ -2641,7 +2722,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
 
         // Execute the query
         Request request = new Request("GET", PARTICIPANTS_END_POINT);
-        request.setJsonEntity(gson.toJson(query));
+        request.setEntity(QueryWriter.toEntity(query));
         
         JsonObject response = inventoryESService.send(request);
         JsonArray hits = response.getAsJsonObject("hits").getAsJsonArray("hits");
@@ -0,0 +1,283 @@
+package gov.nih.nci.bento_ri.service;
+
+import graphql.schema.DataFetcher;
+import graphql.schema.idl.RuntimeWiring;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static graphql.schema.idl.TypeRuntimeWiring.newTypeWiring;
+
+/**
+ * Runs GraphQL data fetchers on a pool of their own and hands graphql-java a CompletableFuture
+ * for each field, so that the root fields of a query, each waiting on Opensearch, are resolved
+ * at the same time rather than one after another on the request thread.
+ *
+ * The fields listed in graphql.bulk_fields run on a separate pool of graphql.async.bulk_pool_size
+ * threads, so that long exports never hold the threads dashboard fields need. Each pool queues at most
+ * graphql.async.queue_size fields; a field finding its pool busy and its queue full runs on the request
+ * thread, as it would without this service, so the pools never lower the concurrency the servlet
+ * container allows.
+ *
+ * Every field has a time limit, graphql.async.timeout_ms unless graphql.async.field_timeouts_ms
+ * sets its own, counted from when the field starts running, not while it is queued; a field that runs
+ * past it fails with a TimeoutException and its thread is interrupted. That only stops the fetcher from
+ * waiting: an Opensearch request already sent is not cancelled, and keeps running on the cluster until
+ * it completes. Fields running on the request thread have no time limit, as the request waits for them
+ * anyway, and its thread isn't interrupted.
+ *
+ * With graphql.async.virtual_threads, each field runs on a virtual thread of its own instead, so
+ * that fields blocked on Opensearch or the CPI hold no platform thread; OpenSearchLimiter then bounds
+ * the queries they send. Virtual threads are created through reflection, as the code is compiled for
+ * Java 17, and the pools are used when the JVM has none. This only moves the fields: the application
+ * is deployed as a war, and the request threads are those of the external Tomcat's connector, set in
+ * its server.xml.
+ *
+ * The fields listed in graphql.bulk_fields, exports and id lists, send their Opensearch queries as
+ * bulk work, which OpenSearchLimiter sheds first when the cluster is saturated; this holds whether
+ * or not fields run asynchronously. Their queries are also tagged with the field in OpenSearchMetrics,
+ * and each field is a graphql.field observation, the parent span of the requests it sends.
+ */
+@Service("AsyncFieldService")
+public class AsyncFieldService {
+    private static final Logger logger = LogManager.getLogger(AsyncFieldService.class);
+
+    private final boolean enabled;
+    private final long defaultTimeoutMs;
+    private final Map<String, Long> fieldTimeoutsMs;
+    private final Set<String> bulkFields;
+    private final ExecutorService executor;
+    private final ExecutorService bulkExecutor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicInteger active = new AtomicInteger();
+    private final Counter timeouts;
+    private final ObservationRegistry observationRegistry;
+
+    /**
+     * @param enabled Whether fetchers run asynchronously; if not, wrap leaves them as they are
+     * @param poolSize Threads running fetchers, shared by every GraphQL request
+     * @param queueSize Fields waiting for a thread of each pool, beyond which they run on the request thread
+     * @param bulkPoolSize Threads running the fetchers of bulk fields
+     * @param defaultTimeoutMs Time limit of a field, 0 for none
+     * @param fieldTimeoutsMs Time limits of single fields, as "field:ms,field:ms"
+     * @param bulkFields Fields whose Opensearch queries are bulk work, separated by commas
+     * @param virtualThreads Whether each field runs on a virtual thread, if the JVM has them
+     * @param meterRegistry Registry for the pool's metrics
+     * @param observationRegistry Registry for the field spans
+     */
+    public AsyncFieldService(@Value("${graphql.async.enabled:true}") boolean enabled,
+                             @Value("${graphql.async.pool_size:200}") int poolSize,
+                             @Value("${graphql.async.queue_size:0}") int queueSize,
+                             @Value("${graphql.async.bulk_pool_size:8}") int bulkPoolSize,
+                             @Value("${graphql.async.timeout_ms:60000}") long defaultTimeoutMs,
+                             @Value("${graphql.async.field_timeouts_ms:}") String fieldTimeoutsMs,
+                             @Value("${graphql.bulk_fields:}") String bulkFields,
+                             @Value("${graphql.async.virtual_threads:false}") boolean virtualThreads,
+                             MeterRegistry meterRegistry,
+                             ObservationRegistry observationRegistry) {
+        this.enabled = enabled;
+        this.observationRegistry = observationRegistry;
+        this.defaultTimeoutMs = defaultTimeoutMs;
+        this.fieldTimeoutsMs = parseTimeouts(fieldTimeoutsMs);
+        this.bulkFields = Arrays.stream(bulkFields.split(","))
+                .map(String::trim)
+                .filter(field -> !field.isEmpty())
+                .collect(Collectors.toSet());
+        ExecutorService virtualExecutor = virtualThreads ? virtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.bulkExecutor = virtualExecutor;
+        } else {
+            if (virtualThreads) {
+                logger.warn("Virtual threads aren't available in this JVM; GraphQL fields run on a pool of {} threads", poolSize);
+            }
+            this.executor = pool("graphql-field-", poolSize, queueSize);
+            this.bulkExecutor = pool("graphql-bulk-field-", bulkPoolSize, queueSize);
+        }
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "graphql-field-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Fields usually finish well within their limit, so their timeouts are dropped as soon as they do
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.timeouts = Counter.builder("graphql.fields.timeouts")
+                .description("GraphQL fields that ran past their time limit")
+                .register(meterRegistry);
+        Gauge.builder("graphql.fields.active", active, AtomicInteger::get)
+                .description("GraphQL fields started and not yet finished")
+                .register(meterRegistry);
+        Gauge.builder("graphql.fields.queued", this, service -> queued(service.executor) + queued(service.bulkExecutor))
+                .description("GraphQL fields waiting for a pool thread")
+                .register(meterRegistry);
+        if (enabled) {
+            logger.info("Initialized GraphQL field execution: {}, {} ms time limit, {} field limits",
+                    virtualExecutor != null ? "virtual threads" : poolSize + " threads and " + bulkPoolSize + " for bulk fields",
+                    defaultTimeoutMs, this.fieldTimeoutsMs.size());
+        }
+    }
+
+    // Fields the pool has no thread nor queue room for run on the submitting thread
+    private static ThreadPoolExecutor pool(String namePrefix, int size, int queueSize) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, size), Math.max(1, size), 60L, TimeUnit.SECONDS,
+                queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor, on JVMs that have it
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Virtual threads start at once, so only the pool has a queue
+    private static int queued(ExecutorService executor) {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    @PreDestroy
+    private void close() {
+        executor.shutdownNow();
+        bulkExecutor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Makes every data fetcher of a type asynchronous, and gives its Opensearch queries the field's priority and tag
+     * @param wiring Runtime wiring with synchronous data fetchers
+     * @param typeName Type whose fetchers are wrapped, usually the query type
+     * @return Wiring with the type's fetchers wrapped by async, or only by tagged if disabled
+     */
+    @SuppressWarnings("rawtypes")
+    public RuntimeWiring wrap(RuntimeWiring wiring, String typeName) {
+        Map<String, DataFetcher> wrapped = new LinkedHashMap<>();
+        wiring.getDataFetchers().getOrDefault(typeName, Map.of()).forEach((field, fetcher) ->
+                wrapped.put(field, enabled ? async(field, fetcher) : tagged(field, fetcher)));
+        return wiring.transform(builder -> builder.type(newTypeWiring(typeName).dataFetchers(wrapped)));
+    }
+
+    /**
+     * @param fieldName Field the fetcher resolves
+     * @param fetcher Synchronous data fetcher
+     * @return Data fetcher running the given one in the field's span, with its Opensearch priority and metrics tag
+     */
+    public DataFetcher<Object> tagged(String fieldName, DataFetcher<?> fetcher) {
+        OpenSearchLimiter.Priority priority = priorityOf(fieldName);
+        return env -> Observation.createNotStarted("graphql.field", observationRegistry)
+                .contextualName("graphql " + fieldName)
+                .lowCardinalityKeyValue("field", fieldName)
+                .lowCardinalityKeyValue("priority", priority.name().toLowerCase())
+                .observeChecked(() -> OpenSearchMetrics.withField(fieldName, () -> OpenSearchLimiter.withPriority(priority, () -> fetcher.get(env))));
+    }
+
+    /**
+     * @param fieldName GraphQL field
+     * @return Priority of the Opensearch queries sent to resolve the field
+     */
+    public OpenSearchLimiter.Priority priorityOf(String fieldName) {
+        return bulkFields.contains(fieldName) ? OpenSearchLimiter.Priority.BULK : OpenSearchLimiter.Priority.INTERACTIVE;
+    }
+
+    /**
+     * @param fieldName Field the fetcher resolves, for its time limit and errors
+     * @param fetcher Synchronous data fetcher
+     * @return Data fetcher running the given one on the field's pool, with the field's priority and tag
+     */
+    public DataFetcher<CompletableFuture<Object>> async(String fieldName, DataFetcher<?> fetcher) {
+        long timeoutMs = fieldTimeoutsMs.getOrDefault(fieldName, defaultTimeoutMs);
+        DataFetcher<?> tagged = tagged(fieldName, fetcher);
+        ExecutorService fieldExecutor = priorityOf(fieldName) == OpenSearchLimiter.Priority.BULK ? bulkExecutor : executor;
+        return env -> {
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            active.incrementAndGet();
+            result.whenComplete((value, error) -> active.decrementAndGet());
+            // The field's span belongs to the request's, which is only current on the request thread
+            Observation parent = observationRegistry.getCurrentObservation();
+            Thread requestThread = Thread.currentThread();
+            AtomicReference<Future<?>> task = new AtomicReference<>();
+            task.set(fieldExecutor.submit(() -> {
+                if (timeoutMs > 0 && Thread.currentThread() != requestThread) {
+                    startTimeout(fieldName, timeoutMs, result, task);
+                }
+                try (Observation.Scope scope = parent == null ? null : parent.openScope()) {
+                    result.complete(tagged.get(env));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }));
+            return result;
+        };
+    }
+
+    // Fails the field once it has run for its time limit, and interrupts its thread
+    private void startTimeout(String fieldName, long timeoutMs, CompletableFuture<Object> result, AtomicReference<Future<?>> task) {
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException(fieldName + " timed out after " + timeoutMs + " ms"))) {
+                logger.warn("{} timed out after {} ms", fieldName, timeoutMs);
+                timeouts.increment();
+                // Interrupts the thread waiting on the fetcher; requests already sent still run to completion
+                Future<?> running = task.get();
+                if (running != null) {
+                    running.cancel(true);
+                }
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        result.whenComplete((value, error) -> timeout.cancel(false));
+    }
+
+    // Entries that can't be parsed are ignored, so that a typo doesn't stop the application
+    static Map<String, Long> parseTimeouts(String fieldTimeoutsMs) {
+        Map<String, Long> timeouts = new HashMap<>();
+        if (fieldTimeoutsMs == null) {
+            return timeouts;
+        }
+        for (String entry : fieldTimeoutsMs.split(",")) {
+            String[] parts = entry.split(":");
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                timeouts.put(parts[0].trim(), Long.parseLong(parts[1].trim()));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring field time limit: {}", entry);
+            }
+        }
+        return timeouts;
+    }
+}
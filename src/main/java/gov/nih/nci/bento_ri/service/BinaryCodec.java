@@ -0,0 +1,233 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary encoding for the maps, lists, strings and numbers that make up GraphQL results.
+ * Each value is a one byte type tag followed by its payload, with lengths written as varints.
+ * Payloads above COMPRESSION_THRESHOLD bytes are deflated.
+ */
+public final class BinaryCodec {
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    private static final byte FORMAT_RAW = 0;
+    private static final byte FORMAT_DEFLATED = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte TRUE = 6;
+    private static final byte FALSE = 7;
+    private static final byte MAP = 8;
+    private static final byte LIST = 9;
+    private static final byte STRING_ARRAY = 10;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * @param value Value made of maps, collections, String arrays, strings, numbers and booleans
+     * @return Encoded bytes
+     * @throws IllegalArgumentException if the value contains any other type
+     */
+    public static byte[] encode(Object value) {
+        try {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            write(new DataOutputStream(raw), value);
+            if (raw.size() <= COMPRESSION_THRESHOLD) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.size() + 1);
+                out.write(FORMAT_RAW);
+                raw.writeTo(out);
+                return out.toByteArray();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.size() / 4);
+            out.write(FORMAT_DEFLATED);
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+                raw.writeTo(deflater);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            // Only in-memory streams are involved
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param bytes Bytes produced by encode
+     * @return Decoded value; maps and lists are mutable
+     * @throws IOException if the bytes are malformed
+     */
+    public static Object decode(byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            throw new IOException("Empty cache payload");
+        }
+        InputStream in = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+        if (bytes[0] == FORMAT_DEFLATED) {
+            in = new InflaterInputStream(in);
+        } else if (bytes[0] != FORMAT_RAW) {
+            throw new IOException("Unknown cache payload format: " + bytes[0]);
+        }
+        try (DataInputStream data = new DataInputStream(in)) {
+            return read(data);
+        }
+    }
+
+    private static void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            writeVarLong(out, zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, zigZag((Long) value));
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            writeVarLong(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            out.writeByte(LIST);
+            writeVarLong(out, collection.size());
+            for (Object element : collection) {
+                write(out, element);
+            }
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(STRING_ARRAY);
+            writeVarLong(out, array.length);
+            for (String element : array) {
+                write(out, element);
+            }
+        } else {
+            throw new IllegalArgumentException("Can't encode value of type " + value.getClass().getName());
+        }
+    }
+
+    private static Object read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return (int) unZigZag(readVarLong(in));
+            case LONG:
+                return unZigZag(readVarLong(in));
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case MAP: {
+                int size = readLength(in);
+                Map<Object, Object> map = new HashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    Object key = read(in);
+                    map.put(key, read(in));
+                }
+                return map;
+            }
+            case LIST: {
+                int size = readLength(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case STRING_ARRAY: {
+                String[] array = new String[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = (String) read(in);
+                }
+                return array;
+            }
+            default:
+                throw new IOException("Unknown type tag in cache payload: " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length in cache payload: " + length);
+        }
+        return (int) length;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in cache payload");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
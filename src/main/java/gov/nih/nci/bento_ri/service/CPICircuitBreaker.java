@@ -0,0 +1,137 @@
+package gov.nih.nci.bento_ri.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling the CPI service while it is failing or too slow, so that participant pages don't wait on it.
+ *
+ * After cpi.breaker.failure_threshold CPI fetches in a row failed or overran their budget, the breaker
+ * opens: participants are returned with their cached associations only, and CPI isn't called. After
+ * cpi.breaker.open_ms, a single fetch is let through as a probe, while the others still skip CPI; the
+ * breaker closes again if the probe succeeds, and opens for another cpi.breaker.open_ms otherwise.
+ *
+ * The current state is published as cpi.breaker.state, 1 for the state tag it is in, and the fetches by
+ * outcome as cpi.breaker.calls.
+ */
+@Service("CPICircuitBreaker")
+public class CPICircuitBreaker {
+    private static final Logger logger = LogManager.getLogger(CPICircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * How a fetch ended, or that it wasn't made, because the breaker was open or no fetch thread was free
+     */
+    public enum Outcome {
+        SUCCESS, FAILURE, TIMEOUT, REJECTED
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Map<Outcome, Counter> calls = new EnumMap<>(Outcome.class);
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    /**
+     * @param failureThreshold Fetches in a row that failed or timed out before the breaker opens
+     * @param openMs How long the breaker stays open before letting a probe through
+     * @param meterRegistry Registry for the breaker's metrics
+     */
+    public CPICircuitBreaker(@Value("${cpi.breaker.failure_threshold:5}") int failureThreshold,
+                             @Value("${cpi.breaker.open_ms:30000}") long openMs,
+                             MeterRegistry meterRegistry) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMs));
+        for (Outcome outcome : Outcome.values()) {
+            calls.put(outcome, Counter.builder("cpi.breaker.calls")
+                    .description("CPI fetches by outcome, rejected ones skipped while the breaker was open or no fetch thread was free")
+                    .tag("outcome", outcome.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        for (State gaugeState : State.values()) {
+            Gauge.builder("cpi.breaker.state", this, breaker -> breaker.getState() == gaugeState ? 1 : 0)
+                    .description("Whether the CPI circuit breaker is in this state")
+                    .tag("state", gaugeState.name().toLowerCase())
+                    .register(meterRegistry);
+        }
+        logger.info("Initialized CPI circuit breaker: opens after {} failures in a row, for {} ms", this.failureThreshold, openMs);
+    }
+
+    /**
+     * @return Whether a fetch may call CPI now; if so, its outcome must be reported with onSuccess, onFailure or onRejected
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            transition(State.HALF_OPEN);
+            return true;
+        }
+        if (state != State.CLOSED) {
+            calls.get(Outcome.REJECTED).increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reports a fetch that succeeded
+     */
+    public synchronized void onSuccess() {
+        calls.get(Outcome.SUCCESS).increment();
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            transition(State.CLOSED);
+        }
+    }
+
+    /**
+     * Reports a fetch that failed
+     * @param timeout Whether it failed by overrunning its budget
+     */
+    public synchronized void onFailure(boolean timeout) {
+        calls.get(timeout ? Outcome.TIMEOUT : Outcome.FAILURE).increment();
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            openedAt = System.nanoTime();
+            transition(State.OPEN);
+        }
+    }
+
+    /**
+     * Reports a fetch that was let through but couldn't be started. It isn't a failure of the CPI service:
+     * a probe that couldn't start leaves the breaker open, ready to let the next fetch probe instead
+     */
+    public synchronized void onRejected() {
+        calls.get(Outcome.REJECTED).increment();
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    // Called with the lock held
+    private void transition(State next) {
+        if (next == State.OPEN) {
+            logger.warn("CPI circuit breaker opened after {} failures in a row; CPI won't be called for {} ms",
+                    consecutiveFailures, TimeUnit.NANOSECONDS.toMillis(openNanos));
+        } else {
+            logger.info("CPI circuit breaker {}", next == State.CLOSED ? "closed" : "half-open, probing CPI");
+        }
+        state = next;
+    }
+}
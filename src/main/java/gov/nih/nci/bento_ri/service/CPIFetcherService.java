@@ -1,7 +1,10 @@
 package gov.nih.nci.bento_ri.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
 import gov.nih.nci.bento_ri.model.*;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,6 +13,8 @@ import org.springframework.stereotype.Service;
 
 import com.github.benmanes.caffeine.cache.Cache;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -17,27 +22,48 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 /**
- * Service for making OAuth2 authenticated API calls to CPI (Child Participant Index) service
+ * Service for making OAuth2 authenticated API calls to CPI (Child Participant Index) service.
+ *
+ * Participants are sent to the CPI service in chunks of cpi.chunk.size, at most cpi.chunk.max_concurrency
+ * chunks in flight at once across all requests. A chunk that times out or fails with a server error is
+ * retried after a backoff; a chunk that still fails leaves its participants without associations for
+ * this request only, rather than failing the whole page.
+ *
+ * Each request waits at most cpi.budget_ms for the CPI service. Participants it hasn't answered for by
+ * then are returned without associations, and cached once it does. While CPICircuitBreaker is open, the
+ * CPI service isn't called at all, and only cached associations are returned.
+ *
+ * Fetches run on at most cpi.fetch.max_threads threads, which late fetches keep busy until the CPI service
+ * answers. A request arriving while all of them are busy doesn't wait for one: its participants are returned
+ * without associations, and the fetch is counted as rejected.
  */
 @Service("CpiFetcherService")
 public class CPIFetcherService {
     
     private static final Logger logger = LogManager.getLogger(CPIFetcherService.class);
     
-    @Value("${cpi.oauth2.client.id:#{environment.OAUTH2_CLIENT_ID}}")
-    private String clientId;
+    private static final String ASSOCIATIONS_KEY_PREFIX = "cpi:associations:";
     
-    @Value("${cpi.oauth2.client.secret:#{environment.OAUTH2_CLIENT_SECRET}}")
-    private String clientSecret;
-    
-    @Value("${cpi.oauth2.token.uri:#{environment.OAUTH2_TOKEN_URI}}")
-    private String tokenUri;
+    // Cached for participants the CPI service has no associations for, so they aren't asked about again
+    private static final List<FormattedCPIResponse.CPIDataItem> NO_ASSOCIATIONS = List.of();
     
     @Value("${cpi.api.url:https://participantindex.ccdi.cancer.gov/v1/associated_participant_ids}")
     private String apiUrl;
@@ -45,110 +71,230 @@ public class CPIFetcherService {
     @Value("${cpi.domains.url:https://participantindex.ccdi.cancer.gov/v1/domains}")
     private String domainsUrl;
     
-    @Value("${cpi.oauth2.scope:custom}")
-    private String scope;
-    
     private final ObjectMapper objectMapper;
     private final HttpClient httpClient;
     private final Cache<String, Object> cache;
+    private final Cache<String, Object> associationsCache;
+    private final ObservationRegistry observationRegistry;
+    private final CPITokenManager tokenManager;
+    private final int chunkSize;
+    private final Semaphore chunkPermits;
+    private final Duration chunkTimeout;
+    private final int chunkRetries;
+    private final long chunkRetryBackoffMs;
+    private final long budgetMs;
+    private final CPICircuitBreaker circuitBreaker;
+    private final ExecutorService fetcher;
     
+    /**
+     * @param chunkSize Participants sent to the CPI service per request
+     * @param maxConcurrentChunks Chunk requests in flight at once
+     * @param chunkTimeoutMs Time allowed for each chunk request
+     * @param chunkRetries Times a failed chunk request is retried
+     * @param chunkRetryBackoffMs Wait before the first retry, doubled for each next one
+     * @param budgetMs Longest a request waits for the CPI service; 0 to wait for it however long it takes
+     * @param maxFetchThreads Fetches running at once, including those still running past their budget
+     * @param cacheService Cache of domains and associations
+     * @param observationRegistry Registry for the request spans
+     * @param tokenManager Holder of the access token
+     * @param circuitBreaker Breaker stopping CPI calls while the service fails
+     */
     @Autowired
-    public CPIFetcherService(Cache<String, Object> caffeineCache) {
+    public CPIFetcherService(@Value("${cpi.chunk.size:200}") int chunkSize,
+                             @Value("${cpi.chunk.max_concurrency:4}") int maxConcurrentChunks,
+                             @Value("${cpi.chunk.timeout_ms:30000}") long chunkTimeoutMs,
+                             @Value("${cpi.chunk.retries:2}") int chunkRetries,
+                             @Value("${cpi.chunk.retry_backoff_ms:200}") long chunkRetryBackoffMs,
+                             @Value("${cpi.budget_ms:5000}") long budgetMs,
+                             @Value("${cpi.fetch.max_threads:16}") int maxFetchThreads,
+                             CacheService cacheService, ObservationRegistry observationRegistry, CPITokenManager tokenManager,
+                             CPICircuitBreaker circuitBreaker) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.chunkPermits = new Semaphore(Math.max(1, maxConcurrentChunks));
+        this.chunkTimeout = Duration.ofMillis(chunkTimeoutMs);
+        this.chunkRetries = Math.max(0, chunkRetries);
+        this.chunkRetryBackoffMs = Math.max(0, chunkRetryBackoffMs);
         this.objectMapper = new ObjectMapper();
         this.httpClient = createHttpClient();
-        this.cache = caffeineCache;
+        this.cache = cacheService.getRegion(CacheService.CPI_DOMAINS);
+        this.associationsCache = cacheService.getRegion(CacheService.CPI_ASSOCIATIONS);
+        this.observationRegistry = observationRegistry;
+        this.tokenManager = tokenManager;
+        this.budgetMs = Math.max(0, budgetMs);
+        this.circuitBreaker = circuitBreaker;
+        // Without a queue, a fetch either gets a thread at once or is rejected
+        int fetchThreads = Math.max(1, maxFetchThreads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(fetchThreads, fetchThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "cpi-fetch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.fetcher = pool;
+    }
+    
+    @PreDestroy
+    private void close() {
+        fetcher.shutdownNow();
     }
     
     /**
-     * Fetch associated participant IDs from CPI service with formatted response
+     * Fetch associated participant IDs from CPI service with formatted response.
+     * Associations only change when the CPI index is rebuilt, so each participant's are cached in the
+     * cpi_associations region, participants without any too; only participants missing from the cache
+     * are sent to the CPI service. Participants whose chunk failed, or that the CPI service hasn't answered
+     * for within cpi.budget_ms, get no associations, and aren't cached until it answers; CPI failures don't
+     * fail the call.
      * 
      * @param participantRequests List of participant requests with participantId and studyId
      * @return Formatted response as List of FormattedCPIResponse
-     * @throws Exception if the API call fails
      */
-    public List<FormattedCPIResponse> fetchAssociatedParticipantIds(List<ParticipantRequest> participantRequests) throws Exception {
-        logger.info("Fetching associated participant IDs for {} participants", participantRequests.size());
-        
+    @SuppressWarnings("unchecked")
+    public List<FormattedCPIResponse> fetchAssociatedParticipantIds(List<ParticipantRequest> participantRequests) {
         if (participantRequests == null || participantRequests.isEmpty()) {
             return new ArrayList<>();
         }
         
-        // Get access token
-        String accessToken = getAccessToken();
-        
-        // Get domains information once
-        Map<String, DomainInfo> domainsMap = fetchDomainsInfo(accessToken);
-        
-        // Transform all input requests to CPI format in a single request
-        List<CPIParticipantRequest> cpiRequests = new ArrayList<>();
+        // Look up every participant in the cache, and collect the others once each
+        Map<String, List<FormattedCPIResponse.CPIDataItem>> associations = new HashMap<>();
+        List<ParticipantRequest> misses = new ArrayList<>();
         for (ParticipantRequest participantRequest : participantRequests) {
-            cpiRequests.add(new CPIParticipantRequest(participantRequest.getStudyId(), participantRequest.getParticipantId()));
+            String key = associationsKey(participantRequest);
+            if (associations.containsKey(key)) {
+                continue;
+            }
+            List<FormattedCPIResponse.CPIDataItem> cached = (List<FormattedCPIResponse.CPIDataItem>) associationsCache.getIfPresent(key);
+            if (cached == null) {
+                misses.add(participantRequest);
+            }
+            associations.put(key, cached);
         }
-        CPIRequestBody requestBody = new CPIRequestBody(cpiRequests);
+        logger.info("Fetching associated participant IDs for {} participants, {} of them not cached", participantRequests.size(), misses.size());
         
-        // Make single API call for all participants
-        Map<String, Object> apiResponse = makeApiCall(accessToken, requestBody);
+        if (!misses.isEmpty()) {
+            Map<String, List<FormattedCPIResponse.CPIDataItem>> fetched = fetchWithinBudget(misses);
+            for (ParticipantRequest participantRequest : misses) {
+                String key = associationsKey(participantRequest);
+                associations.put(key, fetched.getOrDefault(key, NO_ASSOCIATIONS));
+            }
+        }
         
-        // Format the response for each participant
+        // Callers enrich the items in place, so every response gets lists of its own
         List<FormattedCPIResponse> formattedResponses = new ArrayList<>();
         for (ParticipantRequest participantRequest : participantRequests) {
-            FormattedCPIResponse formattedResponse = formatResponse(participantRequest, apiResponse, domainsMap);
-            formattedResponses.add(formattedResponse);
+            formattedResponses.add(new FormattedCPIResponse(participantRequest.getParticipantId(), participantRequest.getStudyId(),
+                    new ArrayList<>(associations.get(associationsKey(participantRequest)))));
         }
         
         return formattedResponses;
     }
     
     /**
-     * Clear the domains cache - useful for testing or when domains are updated
+     * Fetch the associations of uncached participants, waiting for them at most cpi.budget_ms, unless the
+     * circuit breaker is open
+     * 
+     * @param misses Participants to fetch associations for, each once
+     * @return Associations of the participants fetched in time, by associationsKey
      */
-    public void clearDomainsCache() {
-        cache.invalidate("cpi:domains");
-        cache.invalidate("cpi:domains:count");
-        logger.info("Cleared domains cache");
+    private Map<String, List<FormattedCPIResponse.CPIDataItem>> fetchWithinBudget(List<ParticipantRequest> misses) {
+        if (!circuitBreaker.tryAcquire()) {
+            logger.info("CPI circuit breaker is open; {} participants returned without associations", misses.size());
+            return Map.of();
+        }
+        
+        // The fetch runs on its own thread, so a late response still fills the cache; each outcome is reported once
+        AtomicBoolean reported = new AtomicBoolean();
+        Observation parent = observationRegistry.getCurrentObservation();
+        CompletableFuture<Map<String, List<FormattedCPIResponse.CPIDataItem>>> fetch;
+        try {
+            fetch = CompletableFuture.supplyAsync(() -> {
+                try (Observation.Scope scope = parent == null ? null : parent.openScope()) {
+                    return fetchAndCache(misses);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, fetcher);
+        } catch (RejectedExecutionException e) {
+            circuitBreaker.onRejected();
+            logger.warn("No CPI fetch thread free; {} participants returned without associations", misses.size());
+            return Map.of();
+        }
+        fetch.whenComplete((fetched, error) -> {
+            if (reported.compareAndSet(false, true)) {
+                if (error == null) {
+                    circuitBreaker.onSuccess();
+                } else {
+                    circuitBreaker.onFailure(false);
+                }
+            }
+        });
+        
+        try {
+            return budgetMs > 0 ? fetch.get(budgetMs, TimeUnit.MILLISECONDS) : fetch.get();
+        } catch (TimeoutException e) {
+            if (reported.compareAndSet(false, true)) {
+                circuitBreaker.onFailure(true);
+            }
+            logger.warn("CPI didn't answer within {} ms; {} participants returned without associations", budgetMs, misses.size());
+        } catch (ExecutionException e) {
+            logger.error("Error fetching CPI data; {} participants returned without associations", misses.size(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Map.of();
     }
     
     /**
-     * Get OAuth2 access token using client credentials
+     * Fetch the associations of uncached participants and cache them, marking those without associations
+     * 
+     * @param misses Participants to fetch associations for, each once
+     * @return Associations of the participants whose chunk succeeded, by associationsKey
+     * @throws Exception if the domains or every chunk failed
      */
-    private String getAccessToken() throws Exception {
-        logger.debug("Requesting OAuth2 access token from: {}", tokenUri);
-        
-        if (clientId == null || clientSecret == null || tokenUri == null) {
-            throw new IllegalStateException("OAuth2 configuration is missing. Please set OAUTH2_CLIENT_ID, OAUTH2_CLIENT_SECRET, and OAUTH2_TOKEN_URI environment variables.");
-        }
-        
-        String credentials = clientId + ":" + clientSecret;
-        String encodedCredentials = Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
-        
-        String formData = "grant_type=client_credentials&scope=" + scope;
-        
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(tokenUri))
-                .header("Authorization", "Basic " + encodedCredentials)
-                .header("Content-Type", "application/x-www-form-urlencoded")
-                .header("Accept", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(formData))
-                .timeout(Duration.ofSeconds(30))
-                .build();
-        
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    private Map<String, List<FormattedCPIResponse.CPIDataItem>> fetchAndCache(List<ParticipantRequest> misses) throws Exception {
+        // Get domains information once
+        Map<String, DomainInfo> domainsMap = fetchDomainsInfo();
         
-        if (response.statusCode() == 200) {
-            OAuth2TokenResponse tokenResponse = objectMapper.readValue(response.body(), OAuth2TokenResponse.class);
-            String accessToken = tokenResponse.getAccessToken();
-            logger.debug("Successfully obtained access token");
-            return accessToken;
-        } else {
-            logger.error("Failed to get access token: {} - {}", response.statusCode(), response.body());
-            throw new Exception("Failed to get access token: " + response.statusCode() + " - " + response.body());
-        }
+        // Make API calls for the uncached participants in chunks; participants of failed chunks are asked about again next time
+        Map<String, List<FormattedCPIResponse.CPIDataItem>> fetched = fetchInChunks(misses, domainsMap);
+        fetched.replaceAll((key, cpiData) -> cpiData.isEmpty() ? NO_ASSOCIATIONS : List.copyOf(cpiData));
+        associationsCache.putAll(fetched);
+        return fetched;
+    }
+    
+    /**
+     * Cache key of a participant's associations
+     */
+    private static String associationsKey(ParticipantRequest participantRequest) {
+        return associationsKey(participantRequest.getStudyId(), participantRequest.getParticipantId());
+    }
+    
+    private static String associationsKey(String domainName, String participantId) {
+        return ASSOCIATIONS_KEY_PREFIX + domainName + "\t" + participantId;
+    }
+    
+    /**
+     * Clear the associations cache - useful for testing or when the CPI index is rebuilt
+     */
+    public void clearAssociationsCache() {
+        associationsCache.invalidateAll();
+        logger.info("Cleared associations cache");
+    }
+    
+    /**
+     * Clear the domains cache - useful for testing or when domains are updated
+     */
+    public void clearDomainsCache() {
+        cache.invalidate("cpi:domains");
+        cache.invalidate("cpi:domains:count");
+        logger.info("Cleared domains cache");
     }
     
     /**
      * Fetch domains information from CPI service with caching
      */
-    private Map<String, DomainInfo> fetchDomainsInfo(String accessToken) throws Exception {
+    private Map<String, DomainInfo> fetchDomainsInfo() throws Exception {
         final String CACHE_KEY = "cpi:domains";
         final String COUNT_CACHE_KEY = "cpi:domains:count";
         
@@ -165,15 +311,13 @@ public class CPIFetcherService {
         // Cache miss - fetch from API
         logger.debug("Cache miss - fetching domains information from: {}", domainsUrl);
         
-        HttpRequest request = HttpRequest.newBuilder()
+        HttpResponse<String> response = sendAuthorized("domains", accessToken -> HttpRequest.newBuilder()
                 .uri(URI.create(domainsUrl))
                 .header("Authorization", "Bearer " + accessToken)
                 .header("Accept", "application/json")
                 .GET()
                 .timeout(Duration.ofSeconds(30))
-                .build();
-        
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                .build());
         
         logger.debug("Domains API response status: {}", response.statusCode());
         
@@ -200,83 +344,60 @@ public class CPIFetcherService {
     }
     
     /**
-     * Format the API response into the desired output format
+     * Format the API response into the desired output format, in a single pass over it
+     * 
+     * @param apiResponse Response of the CPI service
+     * @param domainsMap Domains information, by domain name
+     * @return Associated participants of every participant in the response, by associationsKey of its domain and ID
      */
-    @SuppressWarnings("unchecked")
-    private FormattedCPIResponse formatResponse(ParticipantRequest originalRequest, Map<String, Object> apiResponse, Map<String, DomainInfo> domainsMap) {
-        List<FormattedCPIResponse.CPIDataItem> cpiDataItems = new ArrayList<>();
-        
-        logger.debug("Formatting response for participant: {}, API response: {}", originalRequest.getParticipantId(), apiResponse);
+    private Map<String, List<FormattedCPIResponse.CPIDataItem>> formatResponse(CPIResponse apiResponse, Map<String, DomainInfo> domainsMap) {
+        List<CPIResponse.Participant> participants = apiResponse.getParticipantIds();
+        if (participants == null) {
+            return Map.of();
+        }
         
-        // Parse the correct API response structure
-        if (apiResponse.containsKey("participant_ids")) {
-            Object participantIds = apiResponse.get("participant_ids");
-            if (participantIds instanceof List) {
-                List<Map<String, Object>> participantList = (List<Map<String, Object>>) participantIds;
+        Map<String, List<FormattedCPIResponse.CPIDataItem>> formatted = new HashMap<>(participants.size() * 4 / 3 + 1);
+        for (CPIResponse.Participant participant : participants) {
+            String key = associationsKey(participant.getDomainName(), participant.getParticipantId());
+            List<CPIResponse.AssociatedId> associatedIds = participant.getAssociatedIds();
+            // A participant listed twice keeps its first entry
+            if (formatted.containsKey(key) || associatedIds == null) {
+                continue;
+            }
+            
+            List<FormattedCPIResponse.CPIDataItem> cpiDataItems = new ArrayList<>(associatedIds.size());
+            for (CPIResponse.AssociatedId associated : associatedIds) {
+                String associatedDomainName = associated.getDomainName();
+                String domainCategory = associated.getDomainCategory();
                 
-                for (Map<String, Object> participant : participantList) {
-                    String participantId = (String) participant.get("participant_id");
-                    String domainName = (String) participant.get("domain_name");
-                    
-                    // Check if this is the participant we're looking for
-                    if (originalRequest.getParticipantId().equals(participantId) && 
-                        originalRequest.getStudyId().equals(domainName)) {
-                        
-                        // Process the associated_ids for this participant
-                        Object associatedIds = participant.get("associated_ids");
-                        if (associatedIds instanceof List) {
-                            List<Map<String, Object>> associatedList = (List<Map<String, Object>>) associatedIds;
-                            
-                            logger.debug("Found {} associated IDs for participant {}", associatedList.size(), participantId);
-                            
-                            for (Map<String, Object> associated : associatedList) {
-                                String associatedParticipantId = (String) associated.get("participant_id");
-                                String associatedDomainName = (String) associated.get("domain_name");
-                                String domainCategory = (String) associated.get("domain_category");
-                                
-                                logger.debug("Processing associated participant: id={}, domain={}, category={}", 
-                                            associatedParticipantId, associatedDomainName, domainCategory);
-                                
-                                // Get domain information with case-insensitive lookup
-                                DomainInfo domainInfo = findDomainInfo(associatedDomainName, domainsMap);
-                                
-                                String domainDescription = domainInfo != null ? domainInfo.getDomainDescription() : "";
-                                String dataLocation = domainInfo != null ? domainInfo.getDataLocation() : "";
-                                
-                                // If domain_category is null from API, try to get it from domain info
-                                if (domainCategory == null && domainInfo != null) {
-                                    domainCategory = domainInfo.getDomainCategory();
-                                    logger.debug("Retrieved domain_category from domain info: {}", domainCategory);
-                                }
-                                
-                                if (domainInfo == null) {
-                                    logger.warn("No domain info found for domain: {} (tried case variations)", associatedDomainName);
-                                }
-                                
-                                FormattedCPIResponse.CPIDataItem cpiDataItem = new FormattedCPIResponse.CPIDataItem(
-                                    associatedParticipantId,    // associated_id (the actual associated participant)
-                                    associatedDomainName,       // repository_of_synonym_id  
-                                    domainDescription,          // domain_description
-                                    domainCategory,             // domain_category
-                                    dataLocation               // data_location
-                                );
-                                
-                                cpiDataItems.add(cpiDataItem);
-                            }
-                        }
-                        break; // Found our participant, no need to continue
-                    }
+                // Get domain information with case-insensitive lookup
+                DomainInfo domainInfo = findDomainInfo(associatedDomainName, domainsMap);
+                
+                String domainDescription = domainInfo != null ? domainInfo.getDomainDescription() : "";
+                String dataLocation = domainInfo != null ? domainInfo.getDataLocation() : "";
+                
+                // If domain_category is null from API, try to get it from domain info
+                if (domainCategory == null && domainInfo != null) {
+                    domainCategory = domainInfo.getDomainCategory();
                 }
+                
+                if (domainInfo == null) {
+                    logger.warn("No domain info found for domain: {} (tried case variations)", associatedDomainName);
+                }
+                
+                cpiDataItems.add(new FormattedCPIResponse.CPIDataItem(
+                    associated.getParticipantId(),  // associated_id (the actual associated participant)
+                    associatedDomainName,           // repository_of_synonym_id
+                    domainDescription,              // domain_description
+                    domainCategory,                 // domain_category
+                    dataLocation                    // data_location
+                ));
             }
+            formatted.put(key, cpiDataItems);
         }
         
-        // If no associated participants found, the participant has no associations
-        if (cpiDataItems.isEmpty()) {
-            logger.debug("No associated participants found for participant: {}", originalRequest.getParticipantId());
-        }
-        
-        logger.info("Processed {} CPI data items for participant {}", cpiDataItems.size(), originalRequest.getParticipantId());
-        return new FormattedCPIResponse(originalRequest.getParticipantId(), originalRequest.getStudyId(), cpiDataItems);
+        logger.debug("Formatted associated participants of {} participants", formatted.size());
+        return formatted;
     }
     
     /**
@@ -311,40 +432,211 @@ public class CPIFetcherService {
     }
     
     /**
-     * Make the actual API call to CPI service
+     * Send the participants to the CPI service in chunks, concurrently, and index the responses
+     * 
+     * @param participantRequests Participants to fetch associations for, each once
+     * @param domainsMap Domains information, by domain name
+     * @return Associated participants of the participants whose chunk succeeded, by associationsKey
+     * @throws Exception if every chunk failed
      */
-    @SuppressWarnings("unchecked")
-    private Map<String, Object> makeApiCall(String accessToken, CPIRequestBody requestBody) throws Exception {
-        logger.debug("Making API call to: {}", apiUrl);
-        logger.debug("Request body: {}", requestBody);
+    private Map<String, List<FormattedCPIResponse.CPIDataItem>> fetchInChunks(List<ParticipantRequest> participantRequests, Map<String, DomainInfo> domainsMap) throws Exception {
+        List<List<ParticipantRequest>> chunks = Lists.partition(participantRequests, chunkSize);
+        // The request's span is only current on this thread, retries are traced in it too
+        Observation parent = observationRegistry.getCurrentObservation();
+        List<CompletableFuture<CPIResponse>> responses = new ArrayList<>(chunks.size());
+        for (List<ParticipantRequest> chunk : chunks) {
+            List<CPIParticipantRequest> cpiRequests = new ArrayList<>(chunk.size());
+            for (ParticipantRequest participantRequest : chunk) {
+                cpiRequests.add(new CPIParticipantRequest(participantRequest.getStudyId(), participantRequest.getParticipantId()));
+            }
+            String jsonBody = objectMapper.writeValueAsString(new CPIRequestBody(cpiRequests));
+            chunkPermits.acquire();
+            responses.add(makeApiCall(jsonBody, 0, parent).whenComplete((response, error) -> chunkPermits.release()));
+        }
         
-        String jsonBody = objectMapper.writeValueAsString(requestBody);
+        Map<String, List<FormattedCPIResponse.CPIDataItem>> associations = new HashMap<>(participantRequests.size() * 4 / 3 + 1);
+        Exception failure = null;
+        for (int i = 0; i < chunks.size(); i++) {
+            CPIResponse response;
+            try {
+                response = await(responses.get(i));
+            } catch (Exception e) {
+                logger.error("CPI request for {} participants failed after {} attempts", chunks.get(i).size(), chunkRetries + 1, e);
+                failure = e;
+                continue;
+            }
+            Map<String, List<FormattedCPIResponse.CPIDataItem>> formatted = formatResponse(response, domainsMap);
+            for (ParticipantRequest participantRequest : chunks.get(i)) {
+                String key = associationsKey(participantRequest);
+                associations.put(key, formatted.getOrDefault(key, NO_ASSOCIATIONS));
+            }
+        }
+        if (failure != null && associations.isEmpty()) {
+            throw failure;
+        }
+        return associations;
+    }
+    
+    /**
+     * Make the actual API call to CPI service for a chunk, retrying it after a backoff if it timed out or the service failed
+     * 
+     * @param jsonBody Request body of the chunk
+     * @param attempt Retries made so far
+     * @param parent Span the request belongs to, or null
+     * @return The parsed response, or the error of the last attempt
+     */
+    private CompletableFuture<CPIResponse> makeApiCall(String jsonBody, int attempt, Observation parent) {
+        logger.debug("Making API call to: {}", apiUrl);
+        logger.debug("Request body: {}", jsonBody);
         
-        HttpRequest request = HttpRequest.newBuilder()
+        return sendAuthorizedAsync("associations", accessToken -> HttpRequest.newBuilder()
                 .uri(URI.create(apiUrl))
                 .header("Authorization", "Bearer " + accessToken)
                 .header("Content-Type", "application/json")
                 .header("Accept", "application/json")
                 .method("GET", HttpRequest.BodyPublishers.ofString(jsonBody))
-                .timeout(Duration.ofSeconds(30))
-                .build();
-        
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        
+                .timeout(chunkTimeout)
+                .build())
+                .thenApply(this::readApiResponse)
+                .exceptionallyCompose(error -> {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (attempt >= chunkRetries || !isRetryable(cause)) {
+                        return CompletableFuture.failedFuture(cause);
+                    }
+                    // Backoff with jitter, so that chunks failing together don't retry together
+                    long backoffMs = (chunkRetryBackoffMs << attempt) / 2 + ThreadLocalRandom.current().nextLong((chunkRetryBackoffMs << attempt) / 2 + 1);
+                    logger.warn("CPI request failed ({}); retrying in {} ms", cause.getMessage(), backoffMs);
+                    return CompletableFuture.supplyAsync(() -> jsonBody, CompletableFuture.delayedExecutor(backoffMs, TimeUnit.MILLISECONDS))
+                            .thenCompose(body -> {
+                                try (Observation.Scope scope = parent == null ? null : parent.openScope()) {
+                                    return makeApiCall(body, attempt + 1, parent);
+                                }
+                            });
+                });
+    }
+    
+    private CPIResponse readApiResponse(HttpResponse<String> response) {
         logger.debug("API response status: {}", response.statusCode());
         logger.debug("API response body: {}", response.body());
         
-        if (response.statusCode() == 200) {
-            Map<String, Object> responseMap = objectMapper.readValue(response.body(), Map.class);
-            logger.info("Raw API response structure: {}", responseMap.keySet());
-            logger.info("Full API response for debugging: {}", responseMap);
-            return filterResponse(responseMap);
-        } else {
+        if (response.statusCode() != 200) {
             logger.error("API request failed: {} - {}", response.statusCode(), response.body());
-            throw new Exception("API request failed: " + response.statusCode() + " - " + response.body());
+            throw new CompletionException(new StatusException(response.statusCode(), "API request failed: " + response.statusCode() + " - " + response.body()));
+        }
+        try {
+            // Fields not in CPIResponse, like supplementary_domains, are skipped while parsing
+            return objectMapper.readValue(response.body(), CPIResponse.class);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+    
+    // Timeouts, connection failures and errors of the service, not rejected requests
+    private static boolean isRetryable(Throwable error) {
+        if (error instanceof StatusException) {
+            int statusCode = ((StatusException) error).statusCode;
+            return statusCode == 429 || statusCode >= 500;
+        }
+        return error instanceof IOException;
+    }
+    
+    /**
+     * Send a request with the cached access token; if the CPI service rejects the token, it is
+     * replaced and the request is sent once more
+     * 
+     * @param call Which CPI endpoint is called: domains or associations
+     * @param requestFor Builds the request for an access token
+     * @return The response, whatever its status
+     */
+    private HttpResponse<String> sendAuthorized(String call, Function<String, HttpRequest> requestFor) throws Exception {
+        return await(sendAuthorizedAsync(call, requestFor));
+    }
+    
+    private CompletableFuture<HttpResponse<String>> sendAuthorizedAsync(String call, Function<String, HttpRequest> requestFor) {
+        String accessToken;
+        try {
+            accessToken = tokenManager.getToken();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendAsync(httpClient, observationRegistry, call, requestFor.apply(accessToken))
+                .thenCompose(response -> {
+                    if (response.statusCode() != 401) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    logger.info("CPI rejected the access token for {}; retrying with a new one", call);
+                    // The new token is requested on the token manager's thread, not on the HTTP client's threads
+                    return tokenManager.refreshAsync(accessToken)
+                            .thenCompose(newToken -> sendAsync(httpClient, observationRegistry, call, requestFor.apply(newToken)));
+                });
+    }
+    
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
         }
     }
     
+    /**
+     * Send a request to the CPI service as a cpi.request observation, traced with its payload sizes and status
+     * 
+     * @param httpClient Client sending the request
+     * @param observationRegistry Registry for the request span
+     * @param call Which CPI endpoint is called: token, domains or associations
+     * @param request HTTP request
+     * @return The response, whatever its status
+     */
+    static HttpResponse<String> send(HttpClient httpClient, ObservationRegistry observationRegistry, String call, HttpRequest request) throws Exception {
+        Observation observation = startObservation(observationRegistry, call, request);
+        HttpResponse<String> response;
+        try (Observation.Scope scope = observation.openScope()) {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (Exception e) {
+            stopObservation(observation, null, e);
+            throw e;
+        }
+        stopObservation(observation, response, null);
+        return response;
+    }
+    
+    /**
+     * Send a request to the CPI service without blocking, as a cpi.request observation like send
+     * 
+     * @param httpClient Client sending the request
+     * @param observationRegistry Registry for the request span
+     * @param call Which CPI endpoint is called: token, domains or associations
+     * @param request HTTP request
+     * @return The response, whatever its status
+     */
+    static CompletableFuture<HttpResponse<String>> sendAsync(HttpClient httpClient, ObservationRegistry observationRegistry, String call, HttpRequest request) {
+        Observation observation = startObservation(observationRegistry, call, request);
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .whenComplete((response, error) -> stopObservation(observation, response, error));
+    }
+    
+    private static Observation startObservation(ObservationRegistry observationRegistry, String call, HttpRequest request) {
+        return Observation.createNotStarted("cpi.request", observationRegistry)
+                .contextualName("cpi " + call)
+                .lowCardinalityKeyValue("call", call)
+                .highCardinalityKeyValue("request.bytes", String.valueOf(request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L)))
+                .start();
+    }
+    
+    private static void stopObservation(Observation observation, HttpResponse<String> response, Throwable error) {
+        if (error != null) {
+            observation.error(error);
+        } else {
+            observation.lowCardinalityKeyValue("status", String.valueOf(response.statusCode()));
+            observation.highCardinalityKeyValue("response.bytes", String.valueOf(response.body().getBytes(StandardCharsets.UTF_8).length));
+        }
+        observation.stop();
+    }
+    
     /**
      * Create HTTP client with default SSL verification
      */
@@ -355,39 +647,14 @@ public class CPIFetcherService {
     }
     
     /**
-     * Filter the response to remove supplementary_domains
+     * Failure status of a CPI request
      */
-    @SuppressWarnings("unchecked")
-    private Map<String, Object> filterResponse(Map<String, Object> response) {
-        if (response == null) {
-            return response;
-        }
-        
-        // Create a copy of the response to avoid modifying the original
-        Map<String, Object> filteredResponse = new HashMap<>(response);
-        
-        // Remove supplementary_domains from the top level
-        filteredResponse.remove("supplementary_domains");
+    private static class StatusException extends Exception {
+        private final int statusCode;
         
-        // If there are participant data arrays, filter them too
-        Object data = filteredResponse.get("data");
-        if (data instanceof List) {
-            List<Object> dataList = (List<Object>) data;
-            for (Object item : dataList) {
-                if (item instanceof Map) {
-                    ((Map<String, Object>) item).remove("supplementary_domains");
-                }
-            }
-        } else if (data instanceof Map) {
-            ((Map<String, Object>) data).remove("supplementary_domains");
+        private StatusException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
         }
-        
-        // Check for any nested structures that might contain supplementary_domains
-        filteredResponse.entrySet().removeIf(entry -> 
-            "supplementary_domains".equals(entry.getKey())
-        );
-        
-        logger.debug("Filtered response, removed supplementary_domains");
-        return filteredResponse;
     }
 }
@@ -0,0 +1,215 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.nih.nci.bento_ri.model.OAuth2TokenResponse;
+import io.micrometer.observation.ObservationRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the OAuth2 access token of the CPI service, obtained with client credentials, for as long
+ * as its expires_in allows, so that CPI calls don't wait on the token endpoint each time.
+ *
+ * Within cpi.oauth2.refresh_before_expiry_seconds of its expiry, the token is still handed out while
+ * a new one is requested in the background. Only one token request is in flight at a time: callers
+ * needing a token while one is being requested wait for that one. A token the CPI service rejects
+ * is replaced through refreshAsync, which also requests a new token only once for all its callers,
+ * on the manager's own thread so that callers on HTTP client threads don't block.
+ */
+@Service("CPITokenManager")
+public class CPITokenManager {
+    private static final Logger logger = LogManager.getLogger(CPITokenManager.class);
+
+    private final String clientId;
+    private final String clientSecret;
+    private final String tokenUri;
+    private final String scope;
+    private final long refreshMarginNanos;
+    private final ObservationRegistry observationRegistry;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient;
+    private final ExecutorService refresher;
+
+    private volatile Token token;
+    private CompletableFuture<Token> refresh;
+
+    /**
+     * @param clientId OAuth2 client ID
+     * @param clientSecret OAuth2 client secret
+     * @param tokenUri Token endpoint
+     * @param scope Scope requested for the token
+     * @param refreshMarginSeconds How long before its expiry a token is replaced in the background
+     * @param observationRegistry Registry for the token request spans
+     */
+    public CPITokenManager(@Value("${cpi.oauth2.client.id:#{environment.OAUTH2_CLIENT_ID}}") String clientId,
+                           @Value("${cpi.oauth2.client.secret:#{environment.OAUTH2_CLIENT_SECRET}}") String clientSecret,
+                           @Value("${cpi.oauth2.token.uri:#{environment.OAUTH2_TOKEN_URI}}") String tokenUri,
+                           @Value("${cpi.oauth2.scope:custom}") String scope,
+                           @Value("${cpi.oauth2.refresh_before_expiry_seconds:60}") long refreshMarginSeconds,
+                           ObservationRegistry observationRegistry) {
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.tokenUri = tokenUri;
+        this.scope = scope;
+        this.refreshMarginNanos = TimeUnit.SECONDS.toNanos(Math.max(0, refreshMarginSeconds));
+        this.observationRegistry = observationRegistry;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+        this.refresher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cpi-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void close() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * @return A valid access token, requested only if none is cached or the cached one has expired
+     * @throws Exception if a token had to be requested and the request failed
+     */
+    public String getToken() throws Exception {
+        Token current = token;
+        long now = System.nanoTime();
+        if (current != null && now - current.refreshAt < 0) {
+            return current.value;
+        }
+        if (current != null && now - current.expiresAt < 0) {
+            request(true);
+            return current.value;
+        }
+        return await(request(false)).value;
+    }
+
+    /**
+     * Replaces a token the CPI service rejected, without blocking the calling thread
+     * @param rejected The token that was rejected
+     * @return A new access token, or the current one if it already replaced the rejected one; completed
+     * exceptionally if the token request failed
+     */
+    public CompletableFuture<String> refreshAsync(String rejected) {
+        Token current = token;
+        if (current != null && !current.value.equals(rejected)) {
+            return CompletableFuture.completedFuture(current.value);
+        }
+        return request(true).thenApply(fetched -> fetched.value);
+    }
+
+    // Joins the token request in flight, or starts one, on this thread or in the background
+    private CompletableFuture<Token> request(boolean background) {
+        CompletableFuture<Token> future;
+        boolean owner = false;
+        synchronized (this) {
+            if (refresh == null) {
+                refresh = new CompletableFuture<>();
+                owner = true;
+            }
+            future = refresh;
+        }
+        if (owner) {
+            if (background) {
+                refresher.execute(() -> complete(future));
+            } else {
+                complete(future);
+            }
+        }
+        return future;
+    }
+
+    private void complete(CompletableFuture<Token> future) {
+        try {
+            Token fetched = fetch();
+            synchronized (this) {
+                token = fetched;
+                refresh = null;
+            }
+            future.complete(fetched);
+        } catch (Throwable e) {
+            synchronized (this) {
+                refresh = null;
+            }
+            logger.error("Failed to get CPI access token", e);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static Token await(CompletableFuture<Token> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Requests a token with client credentials
+    private Token fetch() throws Exception {
+        logger.debug("Requesting OAuth2 access token from: {}", tokenUri);
+
+        if (clientId == null || clientSecret == null || tokenUri == null) {
+            throw new IllegalStateException("OAuth2 configuration is missing. Please set OAUTH2_CLIENT_ID, OAUTH2_CLIENT_SECRET, and OAUTH2_TOKEN_URI environment variables.");
+        }
+
+        String credentials = clientId + ":" + clientSecret;
+        String encodedCredentials = Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+
+        String formData = "grant_type=client_credentials&scope=" + scope;
+
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(tokenUri))
+                .header("Authorization", "Basic " + encodedCredentials)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(formData))
+                .timeout(Duration.ofSeconds(30))
+                .build();
+
+        long issued = System.nanoTime();
+        HttpResponse<String> response = CPIFetcherService.send(httpClient, observationRegistry, "token", request);
+
+        if (response.statusCode() == 200) {
+            OAuth2TokenResponse tokenResponse = objectMapper.readValue(response.body(), OAuth2TokenResponse.class);
+            logger.debug("Successfully obtained access token, expiring in {} s", tokenResponse.getExpiresIn());
+            return new Token(tokenResponse.getAccessToken(), tokenResponse.getExpiresIn(), issued, refreshMarginNanos);
+        } else {
+            logger.error("Failed to get access token: {} - {}", response.statusCode(), response.body());
+            throw new Exception("Failed to get access token: " + response.statusCode() + " - " + response.body());
+        }
+    }
+
+    private static class Token {
+        private final String value;
+        private final long expiresAt;
+        private final long refreshAt;
+
+        // Without expires_in, a token is only used once; tokens shorter-lived than the margin are refreshed halfway
+        private Token(String value, Integer expiresInSeconds, long issued, long refreshMarginNanos) {
+            long lifetime = expiresInSeconds == null ? 0 : TimeUnit.SECONDS.toNanos(expiresInSeconds);
+            this.value = value;
+            this.expiresAt = issued + lifetime;
+            this.refreshAt = lifetime > refreshMarginNanos ? expiresAt - refreshMarginNanos : issued + lifetime / 2;
+        }
+    }
+}
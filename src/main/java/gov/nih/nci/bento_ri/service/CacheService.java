@@ -1,24 +1,215 @@
 package gov.nih.nci.bento_ri.service;
 
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
-@Configuration
+/**
+ * Named cache regions, each with its own time to live and a memory budget.
+ * Regions are bounded by the estimated size of their values rather than by entry count, so a
+ * handful of multi-MB dashboard results can't crowd out the heap.
+ *
+ * Each region is configured with cache.{region}.expire_after_write_minutes and
+ * cache.{region}.max_weight_mb, falling back to the defaults below.
+ */
+@Service("CacheService")
 public class CacheService {
-    @Bean
-    public Cache<String, Object> caffeineCache() {
-        return Caffeine.newBuilder()
-                // Set a fixed time to expire after the last write or access.
-                .expireAfterWrite(8, TimeUnit.HOURS)
-                // The initial cache size 50MB
-                .initialCapacity(50000000)
-                // The maximum of cached entries: 100MB
-                .maximumSize(100000000)
-                .build();
-    }
-}
\ No newline at end of file
+    private static final Logger logger = LogManager.getLogger(CacheService.class);
+
+    public static final String FACET_COUNTS = "facet_counts";
+    public static final String ID_LISTS = "id_lists";
+    public static final String CPI_DOMAINS = "cpi_domains";
+    public static final String CPI_ASSOCIATIONS = "cpi_associations";
+    public static final String STUDY_DETAILS = "study_details";
+    public static final String OVERVIEWS = "overviews";
+    public static final String COHORT_CHARTS = "cohort_charts";
+
+    // Region name mapped to {expire after write in minutes, max weight in MB}
+    private static final Map<String, long[]> DEFAULTS = new LinkedHashMap<>();
+    static {
+        DEFAULTS.put(FACET_COUNTS, new long[]{480, 256});
+        DEFAULTS.put(ID_LISTS, new long[]{480, 64});
+        DEFAULTS.put(CPI_DOMAINS, new long[]{480, 1});
+        DEFAULTS.put(CPI_ASSOCIATIONS, new long[]{60, 64});
+        DEFAULTS.put(STUDY_DETAILS, new long[]{480, 16});
+        DEFAULTS.put(OVERVIEWS, new long[]{480, 128});
+        DEFAULTS.put(COHORT_CHARTS, new long[]{480, 32});
+    }
+
+    // Rough per-object overheads used by the size estimator, in bytes
+    private static final int OBJECT_OVERHEAD = 16;
+    private static final int REFERENCE_SIZE = 8;
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int UNKNOWN_OBJECT_SIZE = 256;
+
+    private final Map<String, Cache<String, Object>> regions = new LinkedHashMap<>();
+    private final ScheduledExecutorService statsLogger;
+
+    public CacheService(Environment environment) {
+        for (Map.Entry<String, long[]> entry : DEFAULTS.entrySet()) {
+            String region = entry.getKey();
+            long expireMinutes = environment.getProperty("cache." + region + ".expire_after_write_minutes", Long.class, entry.getValue()[0]);
+            long maxWeightMb = environment.getProperty("cache." + region + ".max_weight_mb", Long.class, entry.getValue()[1]);
+            regions.put(region, Caffeine.newBuilder()
+                    .expireAfterWrite(expireMinutes, TimeUnit.MINUTES)
+                    .maximumWeight(maxWeightMb * 1024 * 1024)
+                    .weigher((String key, Object value) -> (int) Math.min(Integer.MAX_VALUE, estimateSize(key) + estimateSize(value)))
+                    .recordStats()
+                    .build());
+            logger.info("Initialized cache region {}: {} minutes, {} MB", region, expireMinutes, maxWeightMb);
+        }
+
+        long logIntervalMinutes = environment.getProperty("cache.stats.log_interval_minutes", Long.class, 60L);
+        if (logIntervalMinutes > 0) {
+            statsLogger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            statsLogger.scheduleAtFixedRate(this::logStats, logIntervalMinutes, logIntervalMinutes, TimeUnit.MINUTES);
+        } else {
+            statsLogger = null;
+        }
+    }
+
+    @PreDestroy
+    private void close() {
+        if (statsLogger != null) {
+            statsLogger.shutdownNow();
+        }
+    }
+
+    /**
+     * @param region One of the region names defined by this class
+     * @return The region's cache
+     */
+    public Cache<String, Object> getRegion(String region) {
+        Cache<String, Object> cache = regions.get(region);
+        if (cache == null) {
+            throw new IllegalArgumentException("Unknown cache region: " + region);
+        }
+        return cache;
+    }
+
+    /**
+     * @return Every region name mapped to its cache
+     */
+    public Map<String, Cache<String, Object>> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Reports hit, miss and eviction statistics for every region
+     * @return Region names mapped to their statistics
+     */
+    public Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, Cache<String, Object>> entry : regions.entrySet()) {
+            Cache<String, Object> cache = entry.getValue();
+            CacheStats cacheStats = cache.stats();
+            Map<String, Object> regionStats = new LinkedHashMap<>();
+            regionStats.put("entries", cache.estimatedSize());
+            regionStats.put("weight_bytes", cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L));
+            regionStats.put("hits", cacheStats.hitCount());
+            regionStats.put("misses", cacheStats.missCount());
+            regionStats.put("hit_rate", cacheStats.hitRate());
+            regionStats.put("evictions", cacheStats.evictionCount());
+            regionStats.put("eviction_weight_bytes", cacheStats.evictionWeight());
+            stats.put(entry.getKey(), regionStats);
+        }
+        return stats;
+    }
+
+    private void logStats() {
+        getStats().forEach((region, stats) -> logger.info("Cache region {}: {}", region, stats));
+    }
+
+    /**
+     * Estimates the retained size of a cached value in bytes. Walks the maps, collections,
+     * arrays, strings and Gson trees that make up GraphQL results; anything else counts as a
+     * fixed-size object.
+     * @param value Cached value
+     * @return Estimated size in bytes
+     */
+    static long estimateSize(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return OBJECT_OVERHEAD + 24 + ((String) value).length();
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return OBJECT_OVERHEAD + 8;
+        }
+        if (value instanceof Map) {
+            long size = OBJECT_OVERHEAD + 32;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += ENTRY_OVERHEAD + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = OBJECT_OVERHEAD + 16;
+            for (Object element : (Collection<?>) value) {
+                size += REFERENCE_SIZE + estimateSize(element);
+            }
+            return size;
+        }
+        if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            long size = OBJECT_OVERHEAD + 8;
+            if (value.getClass().getComponentType().isPrimitive()) {
+                return size + length * 8L;
+            }
+            for (int i = 0; i < length; i++) {
+                size += REFERENCE_SIZE + estimateSize(Array.get(value, i));
+            }
+            return size;
+        }
+        if (value instanceof JsonElement) {
+            return estimateJsonSize((JsonElement) value);
+        }
+        return UNKNOWN_OBJECT_SIZE;
+    }
+
+    private static long estimateJsonSize(JsonElement element) {
+        if (element.isJsonObject()) {
+            long size = OBJECT_OVERHEAD + 32;
+            for (Map.Entry<String, JsonElement> entry : ((JsonObject) element).entrySet()) {
+                size += ENTRY_OVERHEAD + estimateSize(entry.getKey()) + estimateJsonSize(entry.getValue());
+            }
+            return size;
+        }
+        if (element.isJsonArray()) {
+            long size = OBJECT_OVERHEAD + 16;
+            for (JsonElement child : (JsonArray) element) {
+                size += REFERENCE_SIZE + estimateJsonSize(child);
+            }
+            return size;
+        }
+        if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = (JsonPrimitive) element;
+            return OBJECT_OVERHEAD + (primitive.isString() ? estimateSize(primitive.getAsString()) : 16);
+        }
+        return OBJECT_OVERHEAD;
+    }
+}
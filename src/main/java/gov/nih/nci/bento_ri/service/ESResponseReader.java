@@ -0,0 +1,250 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Pulls hits, totals and named aggregations out of an Opensearch search response while it is
+ * being read, instead of holding the whole body as a String and then as a JsonObject tree.
+ * Only the requested _source fields and aggregations are ever materialized.
+ *
+ * A reader can be fed several responses (e.g. the pages of a scroll); rows accumulate across
+ * them, and skip/limit apply to the combined stream of hits.
+ */
+public class ESResponseReader {
+    private static final TypeAdapter<JsonElement> ELEMENT_ADAPTER = new Gson().getAdapter(JsonElement.class);
+
+    private final String[][] properties;
+    private final String valuesField;
+    private final Set<String> aggNames;
+    private final Set<String> sourceFields = new HashSet<>();
+    private final int limit;
+    private int skip;
+
+    private final List<Map<String, Object>> rows = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, JsonObject> aggregations = new HashMap<>();
+    private long total = -1;
+    private long took = -1;
+    private String scrollId;
+    private int hitCount;
+    private int collected;
+
+    /**
+     * @param properties Pairs of {result name, _source field} to collect per hit, or null to skip hits
+     * @param valuesField _source array field whose entries are flattened into getValues(), or null
+     * @param aggNames Names of the aggregations to keep
+     * @param skip Number of leading hits to skip
+     * @param limit Maximum number of hits to collect
+     */
+    public ESResponseReader(String[][] properties, String valuesField, Set<String> aggNames, int skip, int limit) {
+        this.properties = properties;
+        this.valuesField = valuesField;
+        this.aggNames = aggNames;
+        this.skip = skip;
+        this.limit = limit;
+        if (properties != null) {
+            for (String[] prop : properties) {
+                sourceFields.add(prop[1]);
+            }
+        }
+        if (valuesField != null) {
+            sourceFields.add(valuesField);
+        }
+    }
+
+    /**
+     * Reads one search or scroll response
+     * @param in Response body, left open for the caller to close
+     * @throws IOException
+     */
+    public void read(InputStream in) throws IOException {
+        hitCount = 0;
+        took = -1;
+        scrollId = null;
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "_scroll_id":
+                    scrollId = reader.nextString();
+                    break;
+                case "took":
+                    took = reader.nextLong();
+                    break;
+                case "hits":
+                    readHits(reader);
+                    break;
+                case "aggregations":
+                    readAggregations(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readHits(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "total":
+                    readTotal(reader);
+                    break;
+                case "hits":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readHit(reader);
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readTotal(JsonReader reader) throws IOException {
+        // Older clusters return a number, newer ones {"value": n, "relation": "eq"}
+        if (reader.peek() == JsonToken.NUMBER) {
+            total = reader.nextLong();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("value")) {
+                total = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readHit(JsonReader reader) throws IOException {
+        hitCount++;
+        if (skip > 0) {
+            skip--;
+            reader.skipValue();
+            return;
+        }
+        if (sourceFields.isEmpty() || collected >= limit) {
+            reader.skipValue();
+            return;
+        }
+        collected++;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("_source")) {
+                readSource(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readSource(JsonReader reader) throws IOException {
+        Map<String, JsonElement> fields = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (sourceFields.contains(name)) {
+                fields.put(name, ELEMENT_ADAPTER.read(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (properties != null) {
+            Map<String, Object> row = new HashMap<>();
+            for (String[] prop : properties) {
+                row.put(prop[0], InventoryESService.getValue(fields.get(prop[1])));
+            }
+            rows.add(row);
+        }
+        if (valuesField != null) {
+            JsonElement element = fields.get(valuesField);
+            if (element != null && element.isJsonArray()) {
+                JsonArray arr = element.getAsJsonArray();
+                for (int i = 0; i < arr.size(); i++) {
+                    values.add(arr.get(i).getAsString());
+                }
+            }
+        }
+    }
+
+    private void readAggregations(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (aggNames.contains(name)) {
+                aggregations.put(name, ELEMENT_ADAPTER.read(reader).getAsJsonObject());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    public List<Map<String, Object>> getRows() {
+        return rows;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+
+    public Map<String, JsonObject> getAggregations() {
+        return aggregations;
+    }
+
+    /**
+     * @return hits.total of the last response read, or -1 if it wasn't present
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return took of the last response read, in milliseconds, or -1 if it wasn't present
+     */
+    public long getTook() {
+        return took;
+    }
+
+    /**
+     * @return _scroll_id of the last response read, or null if it wasn't present
+     */
+    public String getScrollId() {
+        return scrollId;
+    }
+
+    /**
+     * @return Number of hits in the last response read, including skipped ones
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return Whether the reader has collected as many hits as it was limited to
+     */
+    public boolean isFull() {
+        return collected >= limit;
+    }
+}
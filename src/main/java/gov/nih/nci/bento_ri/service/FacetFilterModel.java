@@ -0,0 +1,444 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import gov.nih.nci.bento.constants.Const;
+import org.springframework.core.io.ClassPathResource;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Builds facet filter queries from the parameter routing declared in filter_paths.yaml.
+ *
+ * Each index's routing is compiled once, on first use, into a table from parameter name to the
+ * nested group and full field path it is matched on, along with the clauses for unknown ages,
+ * which don't depend on the request. Building a query then only looks up each parameter and binds
+ * its values. Filters are added in order of parameter name, with their values sorted, so that the
+ * same filters give the same query however the client ordered them, and Opensearch can answer it
+ * from its request cache.
+ *
+ * With flattened filters on, an index that declares flattened fields matches a lone term filter on
+ * its wrapped documents with a plain terms query on the matching top-level keyword array instead of
+ * nested queries. That only holds while it is the only wrapped filter: several filters on nested
+ * documents must all match the same document, which the flattened arrays can't tell.
+ */
+public class FacetFilterModel {
+    static final String FILTER_PATHS_FILE = "filter_paths.yaml";
+    static final String UNKNOWN_AGES_SUFFIX = "_unknownAges";
+    static final String IMPORT_DATA = "import_data";
+    static final int UNKNOWN_AGE = -999;
+    private static final String DEFAULT_INDEX = "default";
+    private static final int TOP_LEVEL = -1;
+
+    private final Map<String, List<String>> paramSets;
+    private final Map<String, Map<String, Object>> groups;
+    private final Map<String, Map<String, Object>> indices;
+    private final Map<String, String> aliases;
+    private final boolean flattenedFilters;
+    private final Map<String, CompiledIndex> compiled = new ConcurrentHashMap<>();
+
+    /**
+     * @param definition Parsed content of filter_paths.yaml
+     */
+    FacetFilterModel(Map<String, Object> definition) {
+        this(definition, false);
+    }
+
+    /**
+     * @param definition Parsed content of filter_paths.yaml
+     * @param flattenedFilters Whether lone term filters on wrapped documents use flattened fields where indices have them
+     */
+    @SuppressWarnings("unchecked")
+    FacetFilterModel(Map<String, Object> definition, boolean flattenedFilters) {
+        this.paramSets = (Map<String, List<String>>) definition.getOrDefault("params", Map.of());
+        this.groups = (Map<String, Map<String, Object>>) definition.getOrDefault("groups", Map.of());
+        this.indices = (Map<String, Map<String, Object>>) definition.get("indices");
+        Map<String, String> aliases = (Map<String, String>) definition.get("aliases");
+        this.aliases = aliases == null ? Map.of() : aliases;
+        this.flattenedFilters = flattenedFilters;
+    }
+
+    /**
+     * @param flattenedFilters Whether lone term filters on wrapped documents use flattened fields where indices have them
+     * @return Model read from filter_paths.yaml on the classpath
+     * @throws IOException if the file can't be read
+     */
+    public static FacetFilterModel load(boolean flattenedFilters) throws IOException {
+        ClassPathResource resource = new ClassPathResource(Const.YAML_QUERY.SUB_FOLDER + FILTER_PATHS_FILE);
+        try (InputStream stream = resource.getInputStream()) {
+            Map<String, Object> definition = new Yaml().load(stream);
+            if (definition == null || !(definition.get("indices") instanceof Map)) {
+                throw new IOException(FILTER_PATHS_FILE + " has no indices");
+            }
+            return new FacetFilterModel(definition, flattenedFilters);
+        }
+    }
+
+    /**
+     * Builds a query matching every filter in the parameters.
+     *
+     * @param params GraphQL arguments; term filters hold a list of values, range filters a [lower, upper] pair
+     * @param rangeParams Arguments holding a range
+     * @param excludedParams Arguments that aren't filters
+     * @param indexType Name of the index queried
+     * @return Query, or match_all if no filter applies
+     * @throws IOException if a range has neither bound
+     */
+    public Map<String, Object> buildQuery(Map<String, Object> params, Set<String> rangeParams,
+            Set<String> excludedParams, String indexType) throws IOException {
+        return plan(params, rangeParams, excludedParams, indexType).query(Set.of());
+    }
+
+    /**
+     * Builds the clauses of every filter in the parameters once, so that queries leaving out some
+     * of the filters, such as the facet being counted, are assembled from them without rebuilding.
+     *
+     * @param params GraphQL arguments; term filters hold a list of values, range filters a [lower, upper] pair
+     * @param rangeParams Arguments holding a range
+     * @param excludedParams Arguments that aren't filters
+     * @param indexType Name of the index queried
+     * @return Filter clauses of the parameters for the index
+     */
+    @SuppressWarnings("unchecked")
+    public Plan plan(Map<String, Object> params, Set<String> rangeParams, Set<String> excludedParams,
+            String indexType) {
+        CompiledIndex index = compiled.computeIfAbsent(indexType, this::compile);
+        List<Filter> filters = new ArrayList<>();
+
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            String key = entry.getKey();
+            if (excludedParams.contains(key) || key.endsWith(UNKNOWN_AGES_SUFFIX)) {
+                continue;
+            }
+
+            if (rangeParams.contains(key)) {
+                Route route = index.rangeRoute(key);
+                List<Object> clauses = new ArrayList<>(2);
+                try {
+                    addRange(clauses, route, (List<Integer>) entry.getValue(), unknownAges(params, key));
+                } catch (IOException e) {
+                    // Only queries that use this filter fail, as when each query was built on its own;
+                    // the facet counted against every other filter still gets its counts
+                    Filter invalid = new Filter(key, route.group, List.of());
+                    invalid.error = e.getMessage();
+                    filters.add(invalid);
+                    continue;
+                }
+                if (!clauses.isEmpty()) {
+                    filters.add(new Filter(key, route.group, clauses));
+                }
+            } else if (key.equals(IMPORT_DATA)) {
+                List<String> values = (List<String>) entry.getValue();
+                if (!selectsAll(values)) {
+                    filters.add(new Filter(key, TOP_LEVEL, List.of(importDataClause(inOrder(values)))));
+                }
+            } else {
+                List<String> values = (List<String>) entry.getValue();
+                if (selectsAll(values)) {
+                    continue;
+                }
+                values = inOrder(values);
+                Route route = index.termRoute(aliases.getOrDefault(key, key));
+                Filter filter = new Filter(key, route.group, List.of(Map.of("terms", Map.of(route.field, values))));
+                if (flattenedFilters && route.flattenedField != null) {
+                    filter.flattened = Map.of("terms", Map.of(route.flattenedField, values));
+                }
+                filters.add(filter);
+            }
+        }
+        filters.sort(Comparator.comparing(filter -> filter.param));
+        return new Plan(index, filters);
+    }
+
+    /**
+     * Clauses of one request's filters against one index. Queries assembled from them are kept,
+     * one per set of left out parameters, and shared by callers, which must not modify them.
+     */
+    public static class Plan {
+        private final CompiledIndex index;
+        private final List<Filter> filters;
+        private final Map<Set<String>, Object> queries = new ConcurrentHashMap<>();
+
+        private Plan(CompiledIndex index, List<Filter> filters) {
+            this.index = index;
+            this.filters = filters;
+        }
+
+        /**
+         * @param excludedParams Parameters whose filters are left out
+         * @return Query with every other filter, or match_all if none applies
+         * @throws IOException if a range left in has neither bound
+         */
+        public Map<String, Object> query(Set<String> excludedParams) throws IOException {
+            for (Filter filter : filters) {
+                if (filter.error != null && !excludedParams.contains(filter.param)) {
+                    throw new IOException(filter.error);
+                }
+            }
+            Map<String, Object> result = new HashMap<>();
+            result.put("query", queries.computeIfAbsent(excludedParams, this::assemble));
+            return result;
+        }
+
+        private Object assemble(Set<String> excludedParams) {
+            List<Object> topLevel = new ArrayList<>();
+            List<List<Object>> grouped = new ArrayList<>(index.groups.size());
+            for (int i = 0; i < index.groups.size(); i++) {
+                grouped.add(new ArrayList<>());
+            }
+            Filter wrapped = null;
+            int wrappedCount = 0;
+            for (Filter filter : filters) {
+                if (!excludedParams.contains(filter.param)) {
+                    (filter.group == TOP_LEVEL ? topLevel : grouped.get(filter.group)).addAll(filter.clauses);
+                    if (filter.group != TOP_LEVEL) {
+                        wrapped = filter;
+                        wrappedCount++;
+                    }
+                }
+            }
+
+            if (index.wrapper != null && wrappedCount == 1 && wrapped.flattened != null) {
+                // A value in the flattened array comes from some wrapped document, so the wrapper's own
+                // match, that one exists, is implied
+                topLevel.add(wrapped.flattened);
+                List<Object> should = new ArrayList<>();
+                should.add(Map.of("bool", Map.of("filter", topLevel)));
+                return Map.of("bool", Map.of("should", should));
+            }
+
+            if (topLevel.isEmpty() && grouped.stream().allMatch(List::isEmpty)) {
+                return Map.of("match_all", Map.of());
+            }
+
+            List<Object> groupClauses = index.wrapper == null ? topLevel : new ArrayList<>();
+            for (int i = 0; i < index.groups.size(); i++) {
+                List<Object> clauses = grouped.get(i);
+                if (clauses.isEmpty()) {
+                    continue;
+                }
+                Group group = index.groups.get(i);
+                if (group.nested) {
+                    groupClauses.add(nested(group.path, clauses));
+                } else {
+                    groupClauses.addAll(clauses);
+                }
+            }
+
+            if (index.wrapper == null) {
+                return Map.of("bool", Map.of("filter", topLevel));
+            }
+            // Every filter on the wrapped documents must match the same document
+            topLevel.add(nested(index.wrapper, groupClauses));
+            List<Object> should = new ArrayList<>();
+            should.add(Map.of("bool", Map.of("filter", topLevel)));
+            return Map.of("bool", Map.of("should", should));
+        }
+    }
+
+    private static void addRange(List<Object> clauses, Route route, List<Integer> bounds, String unknownAges)
+            throws IOException {
+        // Range parameters contain a lower and an upper bound; any other values are ignored
+        if (bounds.size() >= 2) {
+            Integer lower = bounds.get(0);
+            Integer higher = bounds.get(1);
+            if (lower == null && higher == null) {
+                throw new IOException("Lower bound and Upper bound can't be both null!");
+            }
+            Map<String, Integer> range = new HashMap<>();
+            if (lower != null) {
+                range.put("gte", lower);
+            }
+            if (higher != null) {
+                range.put("lte", higher);
+            }
+            Map<String, Object> rangeClause = Map.of("range", Map.of(route.field, range));
+            if (route.group == TOP_LEVEL || unknownAges != null) {
+                clauses.add(rangeClause);
+            } else {
+                // Unknown ages (-999) are included unless the client chose how to treat them
+                clauses.add(Map.of("bool", Map.of("should", List.of(rangeClause, route.unknownTerm))));
+            }
+        }
+
+        // "include" is the default behavior and adds nothing
+        if ("exclude".equals(unknownAges)) {
+            clauses.add(route.excludeUnknown);
+        } else if ("only".equals(unknownAges)) {
+            clauses.add(route.onlyUnknown);
+        }
+    }
+
+    // How unknown ages are treated for a range parameter, or null if the client didn't choose
+    @SuppressWarnings("unchecked")
+    private static String unknownAges(Map<String, Object> params, String key) {
+        List<String> values = (List<String>) params.get(key + UNKNOWN_AGES_SUFFIX);
+        if (values == null || values.isEmpty() || values.get(0).equals("")) {
+            return null;
+        }
+        return values.get(0);
+    }
+
+    // A list with only one empty string [""] means return all records
+    private static boolean selectsAll(List<String> values) {
+        return values.isEmpty() || (values.size() == 1 && values.get(0).equals(""));
+    }
+
+    // Terms match any of their values, so values are sorted, and repeats dropped, for a stable query
+    private static List<String> inOrder(List<String> values) {
+        return values.stream().distinct().sorted(Comparator.comparing(String::valueOf)).collect(Collectors.toList());
+    }
+
+    // Each entry is a JSON object with a study_id and its participant_id list; entries that can't be parsed are ignored
+    private static Map<String, Object> importDataClause(List<String> values) {
+        List<Object> shouldClauses = new ArrayList<>();
+        for (String value : values) {
+            try {
+                JsonObject json = JsonParser.parseString(value).getAsJsonObject();
+                String study = json.get("study_id").getAsString();
+                JsonArray participants = json.getAsJsonArray("participant_id");
+                List<String> participantList = new ArrayList<>();
+                for (JsonElement participant : participants) {
+                    participantList.add(participant.getAsString());
+                }
+                shouldClauses.add(Map.of("bool", Map.of("filter", List.of(
+                        Map.of("term", Map.of("study_id", study)),
+                        Map.of("terms", Map.of("participant_id", participantList))))));
+            } catch (Exception e) {
+                // Skip entries that aren't valid import data
+            }
+        }
+        return Map.of("bool", Map.of("should", shouldClauses));
+    }
+
+    private static Map<String, Object> nested(String path, List<Object> clauses) {
+        return Map.of("nested", Map.of("path", path, "query", Map.of("bool", Map.of("filter", clauses))));
+    }
+
+    private CompiledIndex compile(String indexType) {
+        Map<String, Object> definition = indices.get(indexType);
+        if (definition == null) {
+            definition = indices.entrySet().stream()
+                    .filter(entry -> Boolean.TRUE.equals(entry.getValue().get("prefix")) && indexType.startsWith(entry.getKey()))
+                    .map(Map.Entry::getValue)
+                    .findFirst()
+                    .orElse(indices.get(DEFAULT_INDEX));
+        }
+        return new CompiledIndex(definition == null ? Map.of() : definition, groups, paramSets);
+    }
+
+    /**
+     * Nested documents that filters on an index are grouped into
+     */
+    private static class Group {
+        final String path;
+        final boolean nested;
+
+        Group(String path, boolean nested) {
+            this.path = path;
+            this.nested = nested;
+        }
+    }
+
+    /**
+     * Clauses built for one parameter, added to its group, or at the top level, when the query is assembled
+     */
+    private static class Filter {
+        final String param;
+        final int group;
+        final List<Object> clauses;
+        // Terms clause on the flattened field, used instead when this is the only wrapped filter
+        Map<String, Object> flattened;
+        // Why the parameter can't be a filter, reported by the queries that include it
+        String error;
+
+        Filter(String param, int group, List<Object> clauses) {
+            this.param = param;
+            this.group = group;
+            this.clauses = clauses;
+        }
+    }
+
+    /**
+     * Where a parameter is matched: its group, or TOP_LEVEL, and full field path
+     */
+    private static class Route {
+        final int group;
+        final String field;
+        // Top-level keyword array holding the field's values from every wrapped document, if the index has one
+        final String flattenedField;
+        final Map<String, Object> unknownTerm;
+        final Map<String, Object> excludeUnknown;
+        final Map<String, Object> onlyUnknown;
+
+        Route(int group, String field, String excludeField) {
+            this(group, field, excludeField, null);
+        }
+
+        Route(int group, String field, String excludeField, String flattenedField) {
+            this.group = group;
+            this.field = field;
+            this.flattenedField = flattenedField;
+            this.unknownTerm = Map.of("term", Map.of(field, UNKNOWN_AGE));
+            this.excludeUnknown = Map.of("bool", Map.of(
+                    "must", List.of(Map.of("exists", Map.of("field", excludeField))),
+                    "must_not", List.of(Map.of("term", Map.of(excludeField, UNKNOWN_AGE)))));
+            this.onlyUnknown = Map.of("terms", Map.of(field, List.of(UNKNOWN_AGE)));
+        }
+    }
+
+    /**
+     * Routing of one index, with a route for every parameter named in its groups
+     */
+    private static class CompiledIndex {
+        final String wrapper;
+        final List<Group> groups = new ArrayList<>();
+        final Map<String, Route> terms = new HashMap<>();
+        final Map<String, Route> ranges = new HashMap<>();
+        // Routes of parameters matched on top-level fields, created as they are seen
+        final Map<String, Route> topLevel = new ConcurrentHashMap<>();
+
+        @SuppressWarnings("unchecked")
+        CompiledIndex(Map<String, Object> definition, Map<String, Map<String, Object>> groupDefinitions,
+                Map<String, List<String>> paramSets) {
+            this.wrapper = (String) definition.get("wrapper");
+            String flattened = (String) definition.get("flattened");
+            for (String groupName : (List<String>) definition.getOrDefault("groups", List.of())) {
+                Map<String, Object> groupDefinition = groupDefinitions.get(groupName);
+                if (groupDefinition == null) {
+                    throw new IllegalArgumentException("Unknown filter group " + groupName + " in " + FILTER_PATHS_FILE);
+                }
+                int group = groups.size();
+                String path = (String) groupDefinition.get("path");
+                String excludePath = (String) groupDefinition.getOrDefault("exclude_unknown_path", path);
+                groups.add(new Group(path, !Boolean.FALSE.equals(groupDefinition.get("nested"))));
+                for (String nodeType : (List<String>) groupDefinition.getOrDefault("terms", List.of())) {
+                    for (String param : paramSets.getOrDefault(nodeType, List.of(nodeType))) {
+                        terms.putIfAbsent(param, new Route(group, path + "." + param, excludePath + "." + param,
+                                flattened == null ? null : flattened + "." + param));
+                    }
+                }
+                for (String param : (List<String>) groupDefinition.getOrDefault("ranges", List.of())) {
+                    ranges.putIfAbsent(param, new Route(group, path + "." + param, excludePath + "." + param));
+                }
+            }
+        }
+
+        Route termRoute(String param) {
+            Route route = terms.get(param);
+            return route != null ? route : topLevel.computeIfAbsent(param, key -> new Route(TOP_LEVEL, key, key));
+        }
+
+        Route rangeRoute(String param) {
+            Route route = ranges.get(param);
+            return route != null ? route : topLevel.computeIfAbsent(param, key -> new Route(TOP_LEVEL, key, key));
+        }
+    }
+}
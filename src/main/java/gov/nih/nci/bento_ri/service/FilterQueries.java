@@ -0,0 +1,61 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Facet filter queries for the parameters of a single request.
+ *
+ * A dashboard request queries every index with the same filters, and counts each facet against
+ * every filter but its own. Filters are built once per index, and each query is assembled from
+ * them once, then shared for the rest of the request; callers must not modify the "query" clause.
+ * Instances are meant to live for one request only.
+ */
+public class FilterQueries {
+    private final FacetFilterModel model;
+    private final Map<String, Object> params;
+    private final Set<String> rangeParams;
+    private final Set<String> excludedParams;
+    private final Map<String, FacetFilterModel.Plan> plans = new ConcurrentHashMap<>();
+
+    FilterQueries(FacetFilterModel model, Map<String, Object> params, Set<String> rangeParams, Set<String> excludedParams) {
+        this.model = model;
+        this.params = params;
+        this.rangeParams = rangeParams;
+        this.excludedParams = excludedParams;
+    }
+
+    /**
+     * @param indexType Name of the index queried
+     * @return Query matching every filter
+     * @throws IOException if a range has neither bound
+     */
+    public Map<String, Object> build(String indexType) throws IOException {
+        return plan(indexType).query(Set.of());
+    }
+
+    /**
+     * @param indexType Name of the index queried
+     * @param param Parameter whose filter is left out, usually the facet being counted
+     * @return Query matching every other filter
+     * @throws IOException if a range has neither bound
+     */
+    public Map<String, Object> buildExcluding(String indexType, String param) throws IOException {
+        return plan(indexType).query(Set.of(param));
+    }
+
+    private FacetFilterModel.Plan plan(String indexType) {
+        FacetFilterModel.Plan plan = plans.get(indexType);
+        if (plan == null) {
+            // Concurrent first uses may both build the plan; either result is the same
+            plan = model.plan(params, rangeParams, excludedParams, indexType);
+            FacetFilterModel.Plan existing = plans.putIfAbsent(indexType, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+}
@@ -1,25 +1,26 @@
 package gov.nih.nci.bento_ri.service;
 
+import com.google.common.primitives.Bytes;
 import com.google.gson.*;
 import gov.nih.nci.bento.model.ConfigurationDAO;
 import gov.nih.nci.bento.service.ESService;
 import gov.nih.nci.bento.service.RedisService;
-import gov.nih.nci.bento.service.connector.AWSClient;
-import gov.nih.nci.bento.service.connector.AbstractClient;
-import gov.nih.nci.bento.service.connector.DefaultClient;
 
 import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opensearch.client.*;
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 @Service("InventoryESService")
 public class InventoryESService extends ESService {
@@ -27,34 +28,46 @@ public class InventoryESService extends ESService {
     public static final String JSON_OBJECT = "jsonObject";
     public static final String AGGS = "aggs";
     public static final int MAX_ES_SIZE = 10000;
-    final Set<String> PARTICIPANT_PARAMS = Set.of("race", "sex_at_birth", "participant_id");
-    final Set<String> SURVIVAL_PARAMS = Set.of("last_known_survival_status", "age_at_last_known_survival_status", "first_event", "cause_of_death");
-    final Set<String> TREATMENT_PARAMS = Set.of("treatment_type", "treatment_agent", "age_at_treatment_start", "age_at_treatment_end");
-    final Set<String> TREATMENT_RESPONSE_PARAMS = Set.of("response_category", "age_at_response", "response_system", "response");
-    final Set<String> DIAGNOSIS_PARAMS = Set.of( "diagnosis", "disease_phase", "diagnosis_classification_system", "diagnosis_basis", "diagnosis_anatomic_site", "age_at_diagnosis", "diagnosis_category");
-    final Set<String> GENETIC_ANALYSIS_PARAMS = Set.of( "alteration", "alteration_type", "fusion_partner_gene", "gene_symbol", "reported_significance", "reported_significance_system", "status");
-    final Set<String> SAMPLE_PARAMS = Set.of("sample_anatomic_site", "participant_age_at_collection", "sample_tumor_status", "tumor_classification");
-    final Set<String> FILE_PARAMS = Set.of("data_category", "file_type", "library_selection", "library_source_material", "library_source_molecule", "library_strategy", "file_mapping_level");
-    final Set<String> SAMPLE_FILE_PARAMS = Set.of("sample_anatomic_site", "participant_age_at_collection", "sample_tumor_status", "tumor_classification", "data_category", "file_type", "library_selection", "library_source_material", "library_source_molecule", "library_strategy", "file_mapping_level");
-    
-    static final AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
+    static final String SCROLL_KEEP_ALIVE = "1m";
+    static final String REQUEST_CACHE = "request_cache";
+
+    // Keys of a facet description used by the facet planner
+    static final String FACET_QUERY = "query";
+    static final String FACET_FIELD = "field";
+    static final String FACET_CARDINALITY_AGG_NAME = "cardinality_agg_name";
+    static final String FACET_ONLY_INCLUDES = "only_includes";
 
     private static final Logger logger = LogManager.getLogger(RedisService.class);
 
     @Autowired
     private ConfigurationDAO config;
 
+    @Autowired
+    private QueryFanOutService queryFanOutService;
+
+    @Autowired
+    private OpenSearchLimiter openSearchLimiter;
+
+    @Autowired
+    private OpenSearchMetrics openSearchMetrics;
+
+    @Value("${es.msearch.max_batch_size:50}")
+    private int msearchMaxBatchSize;
+
     private RestClient client;
 
+    private final FacetFilterModel facetFilterModel;
+
     private Gson gson = new GsonBuilder().serializeNulls().create();
 
-    private InventoryESService(ConfigurationDAO config) {
+    private InventoryESService(ConfigurationDAO config, OpenSearchClientFactory clientFactory,
+                               @Value("${es.filters.flattened:false}") boolean flattenedFilters) throws IOException {
         super(config);
         this.gson = new GsonBuilder().serializeNulls().create();
         logger.info("Initializing Elasticsearch client");
-        // Base on host name to use signed request (AWS) or not (local)
-        AbstractClient abstractClient = config.isEsSignRequests() ? new AWSClient(config) : new DefaultClient(config);
-        client = abstractClient.getLowLevelElasticClient();
+        // Signs requests (AWS) or not (local) depending on es.sign.requests
+        client = clientFactory.create();
+        facetFilterModel = FacetFilterModel.load(flattenedFilters);
     }
 
     @PreDestroy
@@ -63,14 +76,269 @@ public class InventoryESService extends ESService {
     }
 
     public JsonObject send(Request request) throws IOException{
-        Response response = client.performRequest(request);
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != 200) {
-            String msg = "Elasticsearch returned code: " + statusCode;
-            logger.error(msg);
-            throw new IOException(msg);
+        try (OpenSearchLimiter.Permit permit = openSearchLimiter.acquire()) {
+            OpenSearchMetrics.Sample sample = openSearchMetrics.start(request);
+            try {
+                Response response = client.performRequest(request);
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != 200) {
+                    String msg = "Elasticsearch returned code: " + statusCode;
+                    logger.error(msg);
+                    throw new IOException(msg);
+                }
+                return readJson(response, sample);
+            } catch (IOException | RuntimeException e) {
+                sample.failed(e);
+                throw e;
+            }
         }
-        return getJSonFromResponse(response);
+    }
+
+    /**
+     * Builds a search request for a query. Size 0 queries, which only count or aggregate, are
+     * matched in filter context and asked to be answered from the shard request cache, so that
+     * repeated facet and dashboard counts don't run again until the index is refreshed. Whether it
+     * aggregates is recorded for OpenSearchMetrics, which then needn't scan the body for it.
+     * @param endpoint Search endpoint of an index
+     * @param query Query as nested maps and lists
+     * @return Request with the query as its body
+     */
+    public Request searchRequest(String endpoint, Map<String, Object> query) {
+        Request request = new Request("GET", endpoint);
+        if (Integer.valueOf(0).equals(query.get("size"))) {
+            request.addParameter(REQUEST_CACHE, "true");
+            query = constantScore(query);
+        }
+        request.setEntity(QueryWriter.toEntity(query));
+        OpenSearchMetrics.setOperation(request, query.containsKey(AGGS) ? "aggs" : "search");
+        return request;
+    }
+
+    // Hits aren't returned for size 0 queries, so their query needs no scoring
+    private static Map<String, Object> constantScore(Map<String, Object> query) {
+        Object clause = query.get("query");
+        if (clause == null || (clause instanceof Map && ((Map<?, ?>) clause).containsKey("constant_score"))) {
+            return query;
+        }
+        Map<String, Object> result = new HashMap<>(query);
+        result.put("query", Map.of("constant_score", Map.of("filter", clause)));
+        return result;
+    }
+
+    /**
+     * Sends several independent search or count requests as _msearch batches.
+     * Requests to a /_count endpoint are rewritten as size 0 searches and answered with a
+     * {"count": n} object, so results look the same as they would from send.
+     * Batches larger than es.msearch.max_batch_size are split and sent concurrently.
+     * @param requests Requests to /{index}/_search or /{index}/_count endpoints
+     * @return One result per request, in the same order; failed items keep their "error" and "status"
+     * @throws IOException if an _msearch call itself fails
+     */
+    public List<JsonObject> sendMulti(List<Request> requests) throws IOException {
+        int batchSize = Math.max(1, msearchMaxBatchSize);
+        List<Callable<List<JsonObject>>> batches = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i += batchSize) {
+            List<Request> batch = requests.subList(i, Math.min(i + batchSize, requests.size()));
+            batches.add(() -> sendMultiBatch(batch));
+        }
+        List<JsonObject> results = new ArrayList<>(requests.size());
+        for (List<JsonObject> batchResults : queryFanOutService.invokeAll(batches)) {
+            results.addAll(batchResults);
+        }
+        return results;
+    }
+
+    /**
+     * Same as sendMulti, but fails like send does if any item returned an error
+     * @param requests Requests to /{index}/_search or /{index}/_count endpoints
+     * @return One result per request, in the same order
+     * @throws IOException if the _msearch call or any of its items failed
+     */
+    public List<JsonObject> sendAll(List<Request> requests) throws IOException {
+        List<JsonObject> results = sendMulti(requests);
+        for (int i = 0; i < results.size(); i++) {
+            JsonObject result = results.get(i);
+            if (result.has("error")) {
+                String msg = "Elasticsearch returned code: " + result.get("status") + " for " + requests.get(i).getEndpoint() + ": " + result.get("error");
+                logger.error(msg);
+                throw new IOException(msg);
+            }
+        }
+        return results;
+    }
+
+    private List<JsonObject> sendMultiBatch(List<Request> requests) throws IOException {
+        List<Object> ndjson = new ArrayList<>(requests.size() * 2);
+        boolean[] isCount = new boolean[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            Request request = requests.get(i);
+            String endpoint = request.getEndpoint();
+            int separator = endpoint.lastIndexOf("/_");
+            if (separator <= 0) {
+                throw new IOException("Can't batch request to endpoint: " + endpoint);
+            }
+            String index = endpoint.substring(endpoint.startsWith("/") ? 1 : 0, separator);
+            String api = endpoint.substring(separator + 1);
+            if (!api.equals("_search") && !api.equals("_count")) {
+                throw new IOException("Can't batch request to endpoint: " + endpoint);
+            }
+            isCount[i] = api.equals("_count");
+
+            Map<String, Object> header = new HashMap<>(request.getParameters());
+            header.put("index", index);
+            ndjson.add(header);
+            byte[] body = request.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(request.getEntity());
+            if (isCount[i] || body.length == 0 || Bytes.indexOf(body, (byte) '\n') >= 0) {
+                // Rewritten on a single line, and for counts without returning hits
+                JsonObject json = body.length == 0 ? new JsonObject() : gson.fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class);
+                if (isCount[i]) {
+                    json.addProperty("size", 0);
+                    json.addProperty("track_total_hits", true);
+                    if (json.has("query") && !json.getAsJsonObject("query").has("constant_score")) {
+                        JsonObject constantScore = new JsonObject();
+                        constantScore.add("filter", json.remove("query"));
+                        JsonObject query = new JsonObject();
+                        query.add("constant_score", constantScore);
+                        json.add("query", query);
+                    }
+                    header.put(REQUEST_CACHE, true);
+                }
+                ndjson.add(json);
+            } else {
+                // Search bodies are already compact JSON and are copied as they are
+                ndjson.add(body);
+            }
+        }
+
+        Request multiRequest = new Request("GET", "/_msearch");
+        multiRequest.setEntity(QueryWriter.toNdjsonEntity(ndjson));
+        JsonArray responses = send(multiRequest).getAsJsonArray("responses");
+        if (responses == null || responses.size() != requests.size()) {
+            throw new IOException("Elasticsearch returned an unexpected _msearch response");
+        }
+
+        List<JsonObject> results = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            JsonObject item = responses.get(i).getAsJsonObject();
+            if (isCount[i] && !item.has("error")) {
+                JsonObject count = new JsonObject();
+                count.addProperty("count", item.getAsJsonObject("hits").getAsJsonObject("total").get("value").getAsLong());
+                item = count;
+            }
+            results.add(item);
+        }
+        return results;
+    }
+
+    /**
+     * Sends a request and feeds its response body straight into a streaming reader
+     * @param request Opensearch request
+     * @param reader Reader collecting the parts of the response that are needed
+     * @return The reader
+     * @throws IOException
+     */
+    public ESResponseReader sendStreaming(Request request, ESResponseReader reader) throws IOException {
+        // The permit is held until the body is read, as the connection is in use until then
+        try (OpenSearchLimiter.Permit permit = openSearchLimiter.acquire()) {
+            OpenSearchMetrics.Sample sample = openSearchMetrics.start(request);
+            try {
+                Response response = client.performRequest(request);
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != 200) {
+                    String msg = "Elasticsearch returned code: " + statusCode;
+                    logger.error(msg);
+                    throw new IOException(msg);
+                }
+                try (InputStream in = sample.received(response.getEntity().getContent())) {
+                    reader.read(in);
+                }
+            } catch (IOException | RuntimeException e) {
+                sample.failed(e);
+                throw e;
+            }
+            sample.parsed(reader.getTook(), reader.getTotal());
+            return reader;
+        }
+    }
+
+    /**
+     * Streaming counterpart of collectPage(Request, Map, String[][], int, int). Pages that end
+     * beyond the from/size window are read with the scroll API.
+     * @param request Opensearch request
+     * @param query Opensearch query
+     * @param properties Pairs of {result name, _source field}
+     * @param pageSize Maximum number of rows
+     * @param offset Number of leading rows to skip
+     * @return Rows of the requested page
+     * @throws IOException
+     */
+    public List<Map<String, Object>> streamPage(Request request, Map<String, Object> query, String[][] properties, int pageSize, int offset) throws IOException {
+        if (pageSize + offset <= MAX_ES_SIZE) {
+            query.put("size", pageSize);
+            query.put("from", offset);
+            request.setEntity(QueryWriter.toEntity(query));
+            return sendStreaming(request, new ESResponseReader(properties, null, Set.of(), 0, pageSize)).getRows();
+        }
+
+        ESResponseReader reader = new ESResponseReader(properties, null, Set.of(), offset, pageSize);
+        query.put("size", MAX_ES_SIZE);
+        query.remove("from");
+        request.addParameter("scroll", SCROLL_KEEP_ALIVE);
+        request.setEntity(QueryWriter.toEntity(query));
+        sendStreaming(request, reader);
+        String scrollId = reader.getScrollId();
+        try {
+            while (scrollId != null && reader.getHitCount() > 0 && !reader.isFull()) {
+                Request scrollRequest = new Request("POST", SCROLL_ENDPOINT);
+                scrollRequest.setEntity(QueryWriter.toEntity(Map.of("scroll", SCROLL_KEEP_ALIVE, "scroll_id", scrollId)));
+                sendStreaming(scrollRequest, reader);
+                if (reader.getScrollId() != null) {
+                    scrollId = reader.getScrollId();
+                }
+            }
+        } finally {
+            if (scrollId != null) {
+                clearScroll(scrollId);
+            }
+        }
+        return reader.getRows();
+    }
+
+    private void clearScroll(String scrollId) {
+        Request request = new Request("DELETE", SCROLL_ENDPOINT);
+        request.setEntity(QueryWriter.toEntity(Map.of("scroll_id", scrollId)));
+        try (OpenSearchLimiter.Permit permit = openSearchLimiter.acquire()) {
+            client.performRequest(request);
+        } catch (IOException e) {
+            logger.warn("Failed to clear scroll context", e);
+        }
+    }
+
+    /**
+     * Streaming counterpart of collectTermAggs; hits in the response are skipped without being parsed
+     * @param request Opensearch request with terms aggregations
+     * @param aggNames Names of the aggregations to collect
+     * @return Aggregation names mapped to their buckets
+     * @throws IOException
+     */
+    public Map<String, JsonArray> streamTermAggs(Request request, String[] aggNames) throws IOException {
+        ESResponseReader reader = sendStreaming(request, new ESResponseReader(null, null, Set.of(aggNames), 0, 0));
+        Map<String, JsonArray> data = new HashMap<>();
+        for (String aggName: aggNames) {
+            JsonObject agg = reader.getAggregations().get(aggName);
+            data.put(aggName, agg == null ? null : agg.getAsJsonArray("buckets"));
+        }
+        return data;
+    }
+
+    /**
+     * Streaming counterpart of collectFileIDs
+     * @param request Opensearch request for documents with a "files" field
+     * @return File IDs of every hit
+     * @throws IOException
+     */
+    public List<String> streamFileIDs(Request request) throws IOException {
+        return sendStreaming(request, new ESResponseReader(null, "files", Set.of(), 0, Integer.MAX_VALUE)).getValues();
     }
 
     public JsonObject getJSonFromResponse(Response response) throws IOException {
@@ -79,6 +347,16 @@ public class InventoryESService extends ESService {
         return jsonObject;
     }
 
+    // Parses the body straight from its stream, and completes the request's metrics sample
+    private JsonObject readJson(Response response, OpenSearchMetrics.Sample sample) throws IOException {
+        try (InputStream in = sample.received(response.getEntity().getContent())) {
+            JsonObject jsonObject = gson.fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), JsonObject.class);
+            sample.parsed(jsonObject != null && jsonObject.has("took") ? jsonObject.get("took").getAsLong() : -1,
+                    OpenSearchMetrics.hits(jsonObject));
+            return jsonObject;
+        }
+    }
+
     /**
      * Queries the /_count Opensearch endpoint and returns the number of hits
      * @param query Opensearch query
@@ -88,11 +366,10 @@ public class InventoryESService extends ESService {
      */
     public int getCount(Map<String, Object> query, String index) throws IOException {
         Request request = new Request("GET", String.format("/%s/_count", index));
-        String queryJson = gson.toJson(query);
         JsonObject recountResult;
         int newCount;
 
-        request.setJsonEntity(queryJson);
+        request.setEntity(QueryWriter.toEntity(query));
         recountResult = send(request);
         newCount = recountResult.get("count").getAsInt();
 
@@ -150,984 +427,34 @@ public class InventoryESService extends ESService {
         return result;
     }
 
+    /**
+     * Builds a query matching the facet filters in the parameters, as routed in filter_paths.yaml
+     *
+     * @param params GraphQL arguments
+     * @param rangeParams Arguments holding a [lower bound, upper bound] pair
+     * @param excludedParams Arguments that aren't filters
+     * @param regular_fields Unused
+     * @param nestedProperty Unused
+     * @param indexType Name of the index queried
+     * @return Query
+     * @throws IOException if a range has neither bound
+     */
     public Map<String, Object> buildFacetFilterQuery(Map<String, Object> params, Set<String> rangeParams,
             Set<String> excludedParams, Set<String> regular_fields, String nestedProperty, String indexType)
             throws IOException {
-        Map<String, Object> result = new HashMap<>();
-
-        // Add unknownAges parameters to excluded parameters to prevent them from being
-        // processed as regular filters
-        Set<String> localExcludedParams = new HashSet<>(excludedParams);
-        for (String key : params.keySet()) {
-            if (key.endsWith("_unknownAges")) {
-                localExcludedParams.add(key);
-            }
-        }
-
-        if (indexType.startsWith("files")) {
-            // regular files query
-            List<Object> filter_1 = new ArrayList<>();
-            List<Object> combined_filters = new ArrayList<>();
-            List<Object> combined_participant_filters = new ArrayList<>();
-            List<Object> combined_sample_diagnosis_genetic_analysis_filters = new ArrayList<>();
-            List<Object> combined_survival_filters = new ArrayList<>();
-            List<Object> combined_treatment_filters = new ArrayList<>();
-            List<Object> combined_treatment_response_filters = new ArrayList<>();
-
-            for (String key : params.keySet()) {
-                String finalKey = key;
-                if (key.equals("data_category")) {
-                    finalKey = "data_category";
-                }
-                if (localExcludedParams.contains(finalKey)) {
-                    continue;
-                }
-
-                if (rangeParams.contains(key)) {
-                    // Range parameters, should contain two doubles, first lower bound, then upper
-                    // bound
-                    // Any other values after those two will be ignored
-                    List<Integer> bounds = (List<Integer>) params.get(key);
-                    if (bounds.size() >= 2) {
-                        Integer lower = bounds.get(0);
-                        Integer higher = bounds.get(1);
-                        if (lower == null && higher == null) {
-                            throw new IOException("Lower bound and Upper bound can't be both null!");
-                        }
-                        Map<String, Integer> range = new HashMap<>();
-                        if (lower != null) {
-                            range.put("gte", lower);
-                        }
-                        if (higher != null) {
-                            range.put("lte", higher);
-                        }
-                        if (key.equals("age_at_diagnosis")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range", Map.of(
-                                                        "combined_filters.sample_diagnosis_genetic_analysis_filters."
-                                                                + key,
-                                                        range)),
-                                                Map.of("term", Map.of(
-                                                        "combined_filters.sample_diagnosis_genetic_analysis_filters."
-                                                                + key,
-                                                        -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                        "range",
-                                        Map.of("combined_filters.sample_diagnosis_genetic_analysis_filters." + key,
-                                                range)));
-                            }
-                        } else if (key.equals("participant_age_at_collection")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range", Map.of(
-                                                        "combined_filters.sample_diagnosis_genetic_analysis_filters."
-                                                                + key,
-                                                        range)),
-                                                Map.of("term", Map.of(
-                                                        "combined_filters.sample_diagnosis_genetic_analysis_filters."
-                                                                + key,
-                                                        -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                        "range",
-                                        Map.of("combined_filters.sample_diagnosis_genetic_analysis_filters." + key,
-                                                range)));
-                            }
-
-                        } else if (key.equals("age_at_treatment_start")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                combined_treatment_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range",
-                                                        Map.of("combined_filters.treatment_filters." + key, range)),
-                                                Map.of("term",
-                                                        Map.of("combined_filters.treatment_filters." + key, -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                combined_treatment_filters.add(Map.of(
-                                        "range", Map.of("combined_filters.treatment_filters." + key, range)));
-                            }
-                        } else if (key.equals("age_at_treatment_end")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                combined_treatment_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range",
-                                                        Map.of("combined_filters.treatment_filters." + key, range)),
-                                                Map.of("term",
-                                                        Map.of("combined_filters.treatment_filters." + key, -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                combined_treatment_filters.add(Map.of(
-                                        "range", Map.of("combined_filters.treatment_filters." + key, range)));
-                            }
-                        } else if (key.equals("age_at_response")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                combined_treatment_response_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range",
-                                                        Map.of("combined_filters.treatment_response_filters." + key,
-                                                                range)),
-                                                Map.of("term",
-                                                        Map.of("combined_filters.treatment_response_filters." + key,
-                                                                -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                combined_treatment_response_filters.add(Map.of(
-                                        "range", Map.of("combined_filters.treatment_response_filters." + key, range)));
-                            }
-                        } else if (key.equals("age_at_last_known_survival_status")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                combined_survival_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range",
-                                                        Map.of("combined_filters.survival_filters." + key, range)),
-                                                Map.of("term",
-                                                        Map.of("combined_filters.survival_filters." + key, -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                combined_survival_filters.add(Map.of(
-                                        "range", Map.of("combined_filters.survival_filters." + key, range)));
-                            }
-
-                        } else {
-                            filter_1.add(Map.of(
-                                    "range", Map.of(key, range)));
-                        }
-                    }
-
-                    // Handle unknownAges parameter for age fields
-                    String unknownAgesKey = key + "_unknownAges";
-                    if (params.containsKey(unknownAgesKey) && (key.equals("age_at_diagnosis")
-                            || key.equals("participant_age_at_collection") || key.equals("age_at_treatment_start")
-                            || key.equals("age_at_treatment_end") || key.equals("age_at_response")
-                            || key.equals("age_at_last_known_survival_status"))) {
-                        List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                        if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                && !unknownAgesValues.get(0).equals("")) {
-                            String unknownAgesValue = unknownAgesValues.get(0);
-                            if ("exclude".equals(unknownAgesValue)) {
-                                // Exclude records with unknown values (-999) and null values by checking field
-                                // exists
-                                if (key.equals("age_at_diagnosis")) {
-                                    combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field",
-                                                                    "combined_filters.sample_diagnosis_filters."
-                                                                            + key))),
-                                                    "must_not",
-                                                    List.of(Map.of("term",
-                                                            Map.of("combined_filters.sample_diagnosis_filters." + key,
-                                                                    -999))))));
-                                } else if (key.equals("participant_age_at_collection")) {
-                                    combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field",
-                                                                    "combined_filters.sample_diagnosis_filters."
-                                                                            + key))),
-                                                    "must_not",
-                                                    List.of(Map.of("term",
-                                                            Map.of("combined_filters.sample_diagnosis_filters." + key,
-                                                                    -999))))));
-                                } else if (key.equals("age_at_treatment_start")) {
-                                    combined_treatment_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field",
-                                                                    "combined_filters.treatment_filters." + key))),
-                                                    "must_not", List.of(Map.of("term", Map
-                                                            .of("combined_filters.treatment_filters." + key, -999))))));
-                                } else if (key.equals("age_at_treatment_end")) {
-                                    combined_treatment_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field",
-                                                                    "combined_filters.treatment_filters." + key))),
-                                                    "must_not", List.of(Map.of("term", Map
-                                                            .of("combined_filters.treatment_filters." + key, -999))))));
-                                } else if (key.equals("age_at_response")) {
-                                    combined_treatment_response_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field",
-                                                                    "combined_filters.treatment_response_filters."
-                                                                            + key))),
-                                                    "must_not",
-                                                    List.of(Map.of("term",
-                                                            Map.of("combined_filters.treatment_response_filters." + key,
-                                                                    -999))))));
-                                } else if (key.equals("age_at_last_known_survival_status")) {
-                                    combined_survival_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field",
-                                                                    "combined_filters.survival_filters." + key))),
-                                                    "must_not", List.of(Map.of("term", Map
-                                                            .of("combined_filters.survival_filters." + key, -999))))));
-                                }
-                            } else if ("only".equals(unknownAgesValue)) {
-                                // Only include records with unknown values (-999)
-                                if (key.equals("age_at_diagnosis")) {
-                                    combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                            "terms",
-                                            Map.of("combined_filters.sample_diagnosis_genetic_analysis_filters." + key,
-                                                    List.of(-999))));
-                                } else if (key.equals("participant_age_at_collection")) {
-                                    combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                            "terms",
-                                            Map.of("combined_filters.sample_diagnosis_genetic_analysis_filters." + key,
-                                                    List.of(-999))));
-                                } else if (key.equals("age_at_treatment_start")) {
-                                    combined_treatment_filters.add(Map.of(
-                                            "terms",
-                                            Map.of("combined_filters.treatment_filters." + key, List.of(-999))));
-                                } else if (key.equals("age_at_treatment_end")) {
-                                    combined_treatment_filters.add(Map.of(
-                                            "terms",
-                                            Map.of("combined_filters.treatment_filters." + key, List.of(-999))));
-                                } else if (key.equals("age_at_response")) {
-                                    combined_treatment_response_filters.add(Map.of(
-                                            "terms", Map.of("combined_filters.treatment_response_filters." + key,
-                                                    List.of(-999))));
-                                } else if (key.equals("age_at_last_known_survival_status")) {
-                                    combined_survival_filters.add(Map.of(
-                                            "terms",
-                                            Map.of("combined_filters.survival_filters." + key, List.of(-999))));
-                                }
-                            }
-                            // "include" is default behavior, no changes needed
-                        }
-                    }
-                } else {
-                    // Term parameters (default)
-                    List<String> valueSet = (List<String>) params.get(key);
-
-                    if (key.equals("import_data")) {
-                        if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))) {
-                            List<Object> shouldClauses = new ArrayList<>();
-                            for (String obj : valueSet) {
-                                try {
-                                    JsonObject json = JsonParser.parseString(obj).getAsJsonObject();
-                                    String study = json.get("study_id").getAsString();
-                                    JsonArray participants = json.getAsJsonArray("participant_id");
-                                    List<String> participantList = new ArrayList<>();
-                                    for (JsonElement p : participants) {
-                                        participantList.add(p.getAsString());
-                                    }
-                                    shouldClauses.add(
-                                            Map.of(
-                                                    "bool", Map.of(
-                                                            "filter", List.of(
-                                                                    Map.of("term", Map.of("study_id", study)),
-                                                                    Map.of("terms", Map.of("participant_id",
-                                                                            participantList))))));
-                                } catch (Exception e) {
-                                    // Handle parse error if needed
-                                }
-                            }
-                            filter_1.add(
-                                    Map.of(
-                                            "bool", Map.of(
-                                                    "should", shouldClauses)));
-                        }
-                        continue;
-                    }
-
-                    if (key.equals("participant_ids")) {
-                        key = "participant_id";
-                    }
-                    // list with only one empty string [""] means return all records
-                    if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))) {
-                        if (PARTICIPANT_PARAMS.contains(key)) {
-                            combined_participant_filters.add(Map.of(
-                                    "terms", Map.of("combined_filters." + key, valueSet)));
-                        } else if (SURVIVAL_PARAMS.contains(key)) {
-                            combined_survival_filters.add(Map.of(
-                                    "terms", Map.of("combined_filters.survival_filters." + key, valueSet)));
-                        } else if (TREATMENT_PARAMS.contains(key)) {
-                            combined_treatment_filters.add(Map.of(
-                                    "terms", Map.of("combined_filters.treatment_filters." + key, valueSet)));
-                        } else if (TREATMENT_RESPONSE_PARAMS.contains(key)) {
-                            combined_treatment_response_filters.add(Map.of(
-                                    "terms", Map.of("combined_filters.treatment_response_filters." + key, valueSet)));
-                        } else if (DIAGNOSIS_PARAMS.contains(key)) {
-                            combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                    "terms", Map.of("combined_filters.sample_diagnosis_genetic_analysis_filters." + key,
-                                            valueSet)));
-                        } else if (GENETIC_ANALYSIS_PARAMS.contains(key)) {
-                            combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                    "terms", Map.of("combined_filters.sample_diagnosis_genetic_analysis_filters." + key,
-                                            valueSet)));
-                        } else if (SAMPLE_PARAMS.contains(key)) {
-                            combined_sample_diagnosis_genetic_analysis_filters.add(Map.of(
-                                    "terms", Map.of("combined_filters.sample_diagnosis_genetic_analysis_filters." + key,
-                                            valueSet)));
-                        } else {
-                            filter_1.add(Map.of(
-                                    "terms", Map.of(key, valueSet)));
-                        }
-                    }
-                }
-            }
-
-            int filterLen = filter_1.size();
-            int combinedParticipantFilterLen = combined_participant_filters.size();
-            int combinedSampleDiagnosisGeneticAnalysisFilterLen = combined_sample_diagnosis_genetic_analysis_filters
-                    .size();
-            int combinedSurvivalFilterLen = combined_survival_filters.size();
-            int combinedTreatmentFilterLen = combined_treatment_filters.size();
-            int combinedTreatmentResponseFilterLen = combined_treatment_response_filters.size();
-
-            if (filterLen + combinedParticipantFilterLen + combinedSampleDiagnosisGeneticAnalysisFilterLen
-                    + combinedSurvivalFilterLen + combinedTreatmentFilterLen
-                    + combinedTreatmentResponseFilterLen == 0) {
-                result.put("query", Map.of("match_all", Map.of()));
-            } else {
-                if (combinedParticipantFilterLen > 0) {
-                    // add each element of combined_participant_filters to combined_filters
-                    for (Object filter : combined_participant_filters) {
-                        combined_filters.add(filter);
-                    }
-                }
-                if (combinedSampleDiagnosisGeneticAnalysisFilterLen > 0) {
-                    combined_filters.add(Map.of("nested", Map.of("path",
-                            "combined_filters.sample_diagnosis_genetic_analysis_filters", "query",
-                            Map.of("bool", Map.of("filter", combined_sample_diagnosis_genetic_analysis_filters)))));
-                }
-                if (combinedSurvivalFilterLen > 0) {
-                    combined_filters.add(Map.of("nested", Map.of("path", "combined_filters.survival_filters", "query",
-                            Map.of("bool", Map.of("filter", combined_survival_filters)))));
-                }
-                if (combinedTreatmentFilterLen > 0) {
-                    combined_filters.add(Map.of("nested", Map.of("path", "combined_filters.treatment_filters", "query",
-                            Map.of("bool", Map.of("filter", combined_treatment_filters)))));
-                }
-                if (combinedTreatmentResponseFilterLen > 0) {
-                    combined_filters.add(Map.of("nested", Map.of("path", "combined_filters.treatment_response_filters",
-                            "query", Map.of("bool", Map.of("filter", combined_treatment_response_filters)))));
-                }
-                // System.out.println(filter_1);
-                filter_1.add(Map.of("nested", Map.of("path", "combined_filters", "query",
-                        Map.of("bool", Map.of("filter", combined_filters)))));
-                List<Object> overall_filter = new ArrayList<>();
-                overall_filter.add(Map.of("bool", Map.of("filter", filter_1)));
-                result.put("query", Map.of("bool", Map.of("should", overall_filter)));
-            }
-        } else {
-            List<Object> filter = new ArrayList<>();
-            List<Object> diagnosis_filters = new ArrayList<>();
-            List<Object> genetic_analysis_filters = new ArrayList<>();
-            List<Object> survival_filters = new ArrayList<>();
-            List<Object> treatment_filters = new ArrayList<>();
-            List<Object> treatment_response_filters = new ArrayList<>();
-            List<Object> file_filters = new ArrayList<>();
-            List<Object> sample_genetic_analysis_file_filters = new ArrayList<>();
-            List<Object> sample_diagnosis_file_filters = new ArrayList<>();
-            List<Object> sample_diagnosis_genetic_analysis_file_filters = new ArrayList<>();
-
-            for (String key : params.keySet()) {
-                if (localExcludedParams.contains(key)) {
-                    continue;
-                }
-
-                if (rangeParams.contains(key)) {
-                    // Range parameters, should contain two doubles, first lower bound, then upper
-                    // bound
-                    // Any other values after those two will be ignored
-                    List<Integer> bounds = (List<Integer>) params.get(key);
-                    if (bounds.size() >= 2) {
-                        Integer lower = bounds.get(0);
-                        Integer higher = bounds.get(1);
-                        if (lower == null && higher == null) {
-                            throw new IOException("Lower bound and Upper bound can't be both null!");
-                        }
-                        Map<String, Integer> range = new HashMap<>();
-                        if (lower != null) {
-                            range.put("gte", lower);
-                        }
-                        if (higher != null) {
-                            range.put("lte", higher);
-                        }
-                        if ((indexType.equals("participants_table") || indexType.equals("study_participants_faceted"))
-                                && (key.equals("age_at_diagnosis") || key.equals("participant_age_at_collection"))) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                sample_diagnosis_genetic_analysis_file_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range",
-                                                        Map.of("sample_diagnosis_genetic_analysis_file_filters." + key,
-                                                                range)),
-                                                Map.of("term",
-                                                        Map.of("sample_diagnosis_genetic_analysis_file_filters." + key,
-                                                                -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                sample_diagnosis_genetic_analysis_file_filters.add(Map.of(
-                                        "range",
-                                        Map.of("sample_diagnosis_genetic_analysis_file_filters." + key, range)));
-                            }
-                        } else if (indexType.equals("samples_table") && key.equals("age_at_diagnosis")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                diagnosis_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range", Map.of("diagnosis_filters." + key, range)),
-                                                Map.of("term", Map.of("diagnosis_filters." + key, -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                diagnosis_filters.add(Map.of(
-                                        "range", Map.of("diagnosis_filters." + key, range)));
-                            }
-                        } else if (indexType.equals("diagnoses_table") && key.equals("participant_age_at_collection")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                sample_genetic_analysis_file_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range",
-                                                        Map.of("sample_genetic_analysis_file_filters." + key, range)),
-                                                Map.of("term", Map.of("sample_genetic_analysis_file_filters." + key,
-                                                        -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                sample_genetic_analysis_file_filters.add(Map.of(
-                                        "range", Map.of("sample_genetic_analysis_file_filters." + key, range)));
-                            }
-                        } else if (indexType.equals("genetic_analyses_table")
-                                && key.equals("participant_age_at_collection")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                sample_diagnosis_file_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range", Map.of("sample_diagnosis_file_filters." + key, range)),
-                                                Map.of("term",
-                                                        Map.of("sample_diagnosis_file_filters." + key, -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                sample_diagnosis_file_filters.add(Map.of(
-                                        "range", Map.of("sample_diagnosis_file_filters." + key, range)));
-                            }
-                        } else if (!indexType.equals("treatments_table")
-                                && (key.equals("age_at_treatment_start") || key.equals("age_at_treatment_end"))) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                treatment_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range", Map.of("treatment_filters." + key, range)),
-                                                Map.of("term", Map.of("treatment_filters." + key, -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                treatment_filters.add(Map.of(
-                                        "range", Map.of("treatment_filters." + key, range)));
-                            }
-                        } else if (!indexType.equals("treatment_responses_table") && key.equals("age_at_response")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                treatment_response_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range", Map.of("treatment_response_filters." + key, range)),
-                                                Map.of("term", Map.of("treatment_response_filters." + key, -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                treatment_response_filters.add(Map.of(
-                                        "range", Map.of("treatment_response_filters." + key, range)));
-                            }
-                        } else if (!indexType.equals("survivals_table") && key.equals("age_at_last_known_survival_status")) {
-                            // Check if unknownAges parameter exists to determine if we should include
-                            // unknown values
-                            String unknownAgesKey = key + "_unknownAges";
-                            boolean includeUnknown = true; // Default to including unknown values
-                            if (params.containsKey(unknownAgesKey)) {
-                                List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                                // Only consider unknownAges parameter if it has a meaningful value
-                                if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                        && !unknownAgesValues.get(0).equals("")) {
-                                    includeUnknown = false; // Use normal range filtering when unknownAges parameter is
-                                                            // specified
-                                }
-                            }
-
-                            if (includeUnknown) {
-                                // Include unknown values (-999) by default when no unknownAges parameter is
-                                // specified
-                                survival_filters.add(Map.of(
-                                        "bool", Map.of("should", List.of(
-                                                Map.of("range", Map.of("survival_filters." + key, range)),
-                                                Map.of("term", Map.of("survival_filters." + key, -999))))));
-                            } else {
-                                // Use normal range filter when unknownAges parameter is specified
-                                survival_filters.add(Map.of(
-                                        "range", Map.of("survival_filters." + key, range)));
-                            }
-                        } else {
-                            filter.add(Map.of(
-                                    "range", Map.of(key, range)));
-                        }
-                    }
-
-                    // Handle unknownAges parameter for age fields
-                    String unknownAgesKey = key + "_unknownAges";
-                    if (params.containsKey(unknownAgesKey) && (key.equals("age_at_diagnosis")
-                            || key.equals("participant_age_at_collection") || key.equals("age_at_treatment_start")
-                            || key.equals("age_at_treatment_end") || key.equals("age_at_response")
-                            || key.equals("age_at_last_known_survival_status"))) {
-                        List<String> unknownAgesValues = (List<String>) params.get(unknownAgesKey);
-                        if (unknownAgesValues != null && !unknownAgesValues.isEmpty()
-                                && !unknownAgesValues.get(0).equals("")) {
-                            String unknownAgesValue = unknownAgesValues.get(0);
-
-                            if ("exclude".equals(unknownAgesValue)) {
-                                // Exclude records with unknown values (-999) and null values by checking field
-                                // exists
-                                if ((indexType.equals("participants_table") || indexType.equals("study_participants_faceted"))
-                                        && (key.equals("age_at_diagnosis")
-                                                || key.equals("participant_age_at_collection"))) {
-                                    sample_diagnosis_genetic_analysis_file_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field",
-                                                                    "sample_diagnosis_genetic_analysis_file_filters."
-                                                                            + key))),
-                                                    "must_not",
-                                                    List.of(Map.of("term", Map.of(
-                                                            "sample_diagnosis_genetic_analysis_file_filters." + key,
-                                                            -999))))));
-                                } else if (indexType.equals("samples_table") && key.equals("age_at_diagnosis")) {
-                                    diagnosis_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field", "diagnosis_filters." + key))),
-                                                    "must_not", List.of(Map.of("term",
-                                                            Map.of("diagnosis_filters." + key, -999))))));
-                                } else if (indexType.equals("diagnoses_table")
-                                        && key.equals("participant_age_at_collection")) {
-                                    sample_genetic_analysis_file_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field",
-                                                                    "sample_genetic_analysis_file_filters." + key))),
-                                                    "must_not", List.of(Map.of("term", Map.of(
-                                                            "sample_genetic_analysis_file_filters." + key, -999))))));
-                                } else if (indexType.equals("genetic_analyses_table")
-                                        && key.equals("participant_age_at_collection")) {
-                                    sample_diagnosis_file_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field", "sample_diagnosis_file_filters." + key))),
-                                                    "must_not", List.of(Map.of("term",
-                                                            Map.of("sample_diagnosis_file_filters." + key, -999))))));
-                                } else if (!indexType.equals("treatments_table") && (key.equals("age_at_treatment_start")
-                                        || key.equals("age_at_treatment_end"))) {
-                                    treatment_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field", "treatment_filters." + key))),
-                                                    "must_not", List.of(Map.of("term",
-                                                            Map.of("treatment_filters." + key, -999))))));
-                                } else if (!indexType.equals("treatment_responses_table") && key.equals("age_at_response")) {
-                                    treatment_response_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field", "treatment_response_filters." + key))),
-                                                    "must_not", List.of(Map.of("term",
-                                                            Map.of("treatment_response_filters." + key, -999))))));
-                                } else if (!indexType.equals("survivals_table")
-                                        && key.equals("age_at_last_known_survival_status")) {
-                                    survival_filters.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must",
-                                                    List.of(Map.of("exists",
-                                                            Map.of("field", "survival_filters." + key))),
-                                                    "must_not",
-                                                    List.of(Map.of("term", Map.of("survival_filters." + key, -999))))));
-                                } else {
-                                    filter.add(Map.of(
-                                            "bool", Map.of(
-                                                    "must", List.of(Map.of("exists", Map.of("field", key))),
-                                                    "must_not", List.of(Map.of("term", Map.of(key, -999))))));
-                                }
-                            } else if ("only".equals(unknownAgesValue)) {
-                                // Only include records with unknown values (-999)
-                                if ((indexType.equals("participants_table") || indexType.equals("study_participants_faceted"))
-                                        && (key.equals("age_at_diagnosis")
-                                                || key.equals("participant_age_at_collection"))) {
-                                    sample_diagnosis_genetic_analysis_file_filters.add(Map.of(
-                                            "terms", Map.of("sample_diagnosis_genetic_analysis_file_filters." + key,
-                                                    List.of(-999))));
-                                } else if (indexType.equals("samples_table") && key.equals("age_at_diagnosis")) {
-                                    diagnosis_filters.add(Map.of(
-                                            "terms", Map.of("diagnosis_filters." + key, List.of(-999))));
-                                } else if (indexType.equals("diagnoses_table")
-                                        && key.equals("participant_age_at_collection")) {
-                                    sample_genetic_analysis_file_filters.add(Map.of(
-                                            "terms",
-                                            Map.of("sample_genetic_analysis_file_filters." + key, List.of(-999))));
-                                } else if (indexType.equals("genetic_analyses_table")
-                                        && key.equals("participant_age_at_collection")) {
-                                    sample_diagnosis_file_filters.add(Map.of(
-                                            "terms", Map.of("sample_diagnosis_file_filters." + key, List.of(-999))));
-                                } else if (!indexType.equals("treatments_table") && (key.equals("age_at_treatment_start")
-                                        || key.equals("age_at_treatment_end"))) {
-                                    treatment_filters.add(Map.of(
-                                            "terms", Map.of("treatment_filters." + key, List.of(-999))));
-                                } else if (!indexType.equals("treatment_responses_table") && key.equals("age_at_response")) {
-                                    treatment_response_filters.add(Map.of(
-                                            "terms", Map.of("treatment_response_filters." + key, List.of(-999))));
-                                } else if (!indexType.equals("survivals_table")
-                                        && key.equals("age_at_last_known_survival_status")) {
-                                    survival_filters.add(Map.of(
-                                            "terms", Map.of("survival_filters." + key, List.of(-999))));
-                                } else {
-                                    filter.add(Map.of(
-                                            "terms", Map.of(key, List.of(-999))));
-                                }
-                            }
-                            // "include" is default behavior, no changes needed
-                        }
-                    }
-                } else {
-                    // Term parameters (default)
-                    List<String> valueSet = (List<String>) params.get(key);
-
-                    if (key.equals("import_data")) {
-                        if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))) {
-                            List<Object> shouldClauses = new ArrayList<>();
-                            for (String obj : valueSet) {
-                                try {
-                                    JsonObject json = JsonParser.parseString(obj).getAsJsonObject();
-                                    String study = json.get("study_id").getAsString();
-                                    JsonArray participants = json.getAsJsonArray("participant_id");
-                                    List<String> participantList = new ArrayList<>();
-                                    for (JsonElement p : participants) {
-                                        participantList.add(p.getAsString());
-                                    }
-                                    shouldClauses.add(
-                                            Map.of(
-                                                    "bool", Map.of(
-                                                            "filter", List.of(
-                                                                    Map.of("term", Map.of("study_id", study)),
-                                                                    Map.of("terms", Map.of("participant_id",
-                                                                            participantList))))));
-                                } catch (Exception e) {
-                                    // Handle parse error if needed
-                                }
-                            }
-                            filter.add(
-                                    Map.of(
-                                            "bool", Map.of(
-                                                    "should", shouldClauses)));
-                        }
-                        continue;
-                    }
-
-                    if (key.equals("participant_ids")) {
-                        key = "participant_id";
-                    }
-                    // list with only one empty string [""] means return all records
-                    if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))) {
-                        if ((DIAGNOSIS_PARAMS.contains(key) || SAMPLE_PARAMS.contains(key)
-                                || GENETIC_ANALYSIS_PARAMS.contains(key) || FILE_PARAMS.contains(key))
-                                && !indexType.equals("diagnoses_table") && !indexType.equals("samples_table")
-                                && !indexType.equals("genetic_analyses_table")) {
-                            sample_diagnosis_genetic_analysis_file_filters.add(Map.of(
-                                    "terms",
-                                    Map.of("sample_diagnosis_genetic_analysis_file_filters." + key, valueSet)));
-                        } else if ((SAMPLE_PARAMS.contains(key) || GENETIC_ANALYSIS_PARAMS.contains(key)
-                                || FILE_PARAMS.contains(key)) && indexType.equals("diagnoses_table")) {
-                            sample_genetic_analysis_file_filters.add(Map.of(
-                                    "terms", Map.of("sample_genetic_analysis_file_filters." + key, valueSet)));
-                        } else if ((SAMPLE_PARAMS.contains(key) || DIAGNOSIS_PARAMS.contains(key)
-                                || FILE_PARAMS.contains(key)) && indexType.equals("genetic_analyses_table")) {
-                            sample_diagnosis_file_filters.add(Map.of(
-                                    "terms", Map.of("sample_diagnosis_file_filters." + key, valueSet)));
-                        } else if (SURVIVAL_PARAMS.contains(key) && !indexType.equals("survivals_table")) {
-                            survival_filters.add(Map.of(
-                                    "terms", Map.of("survival_filters." + key, valueSet)));
-                        } else if (TREATMENT_PARAMS.contains(key) && !indexType.equals("treatments_table")) {
-                            treatment_filters.add(Map.of(
-                                    "terms", Map.of("treatment_filters." + key, valueSet)));
-                        } else if (TREATMENT_RESPONSE_PARAMS.contains(key)
-                                && !indexType.equals("treatment_responses_table")) {
-                            treatment_response_filters.add(Map.of(
-                                    "terms", Map.of("treatment_response_filters." + key, valueSet)));
-                        } else if (DIAGNOSIS_PARAMS.contains(key) && indexType.equals("samples_table")) {
-                            diagnosis_filters.add(Map.of(
-                                    "terms", Map.of("diagnosis_filters." + key, valueSet)));
-                        } else if (GENETIC_ANALYSIS_PARAMS.contains(key) && indexType.equals("samples_table")) {
-                            genetic_analysis_filters.add(Map.of(
-                                    "terms", Map.of("genetic_analysis_filters." + key, valueSet)));
-                        } else if (FILE_PARAMS.contains(key) && indexType.equals("samples_table")) {
-                            file_filters.add(Map.of(
-                                    "terms", Map.of("file_filters." + key, valueSet)));
-                        } else {
-                            filter.add(Map.of(
-                                    "terms", Map.of(key, valueSet)));
-                        }
-                    }
-                }
-            }
-
-            int FilterLen = filter.size();
-            int survivalFilterLen = survival_filters.size();
-            int treatmentFilterLen = treatment_filters.size();
-            int treatmentResponseFilterLen = treatment_response_filters.size();
-            int diagnosisFilterLen = diagnosis_filters.size();
-            int geneticAnalysisFilterLen = genetic_analysis_filters.size();
-            int fileFilterLen = file_filters.size();
-            int sampleDiagnosisFileFilterLen = sample_diagnosis_file_filters.size();
-            int sampleGeneticAnalysisFileFilterLen = sample_genetic_analysis_file_filters.size();
-            int sampleDiagnosisGeneticAnalysisFileFilterLen = sample_diagnosis_genetic_analysis_file_filters.size();
-            if (FilterLen + survivalFilterLen + treatmentFilterLen + treatmentResponseFilterLen + diagnosisFilterLen
-                    + geneticAnalysisFilterLen + fileFilterLen + sampleDiagnosisFileFilterLen
-                    + sampleGeneticAnalysisFileFilterLen + sampleDiagnosisGeneticAnalysisFileFilterLen == 0) {
-                result.put("query", Map.of("match_all", Map.of()));
-            } else {
-                if (survivalFilterLen > 0) {
-                    filter.add(Map.of("nested", Map.of("path", "survival_filters", "query",
-                            Map.of("bool", Map.of("filter", survival_filters)))));
-                }
-                if (treatmentFilterLen > 0) {
-                    filter.add(Map.of("nested", Map.of("path", "treatment_filters", "query",
-                            Map.of("bool", Map.of("filter", treatment_filters)))));
-                }
-                if (treatmentResponseFilterLen > 0) {
-                    filter.add(Map.of("nested", Map.of("path", "treatment_response_filters", "query",
-                            Map.of("bool", Map.of("filter", treatment_response_filters)))));
-                }
-                if (diagnosisFilterLen > 0) {
-                    filter.add(Map.of("nested", Map.of("path", "diagnosis_filters", "query",
-                            Map.of("bool", Map.of("filter", diagnosis_filters)))));
-                }
-                if (geneticAnalysisFilterLen > 0) {
-                    filter.add(Map.of("nested", Map.of("path", "genetic_analysis_filters", "query",
-                            Map.of("bool", Map.of("filter", genetic_analysis_filters)))));
-                }
-                if (fileFilterLen > 0) {
-                    filter.add(Map.of("nested",
-                            Map.of("path", "file_filters", "query", Map.of("bool", Map.of("filter", file_filters)))));
-                }
-                if (sampleDiagnosisFileFilterLen > 0) {
-                    filter.add(Map.of("nested", Map.of("path", "sample_diagnosis_file_filters", "query",
-                            Map.of("bool", Map.of("filter", sample_diagnosis_file_filters)))));
-                }
-                if (sampleGeneticAnalysisFileFilterLen > 0) {
-                    filter.add(Map.of("nested", Map.of("path", "sample_genetic_analysis_file_filters", "query",
-                            Map.of("bool", Map.of("filter", sample_genetic_analysis_file_filters)))));
-                }
-                if (sampleDiagnosisGeneticAnalysisFileFilterLen > 0) {
-                    filter.add(
-                            Map.of("nested", Map.of("path", "sample_diagnosis_genetic_analysis_file_filters", "query",
-                                    Map.of("bool", Map.of("filter", sample_diagnosis_genetic_analysis_file_filters)))));
-                }
-                result.put("query", Map.of("bool", Map.of("filter", filter)));
-            }
-        }
+        return facetFilterModel.buildQuery(params, rangeParams, excludedParams, indexType);
+    }
 
-        return result;
+    /**
+     * Facet filter queries for one request, built once per index and left out parameter
+     *
+     * @param params GraphQL arguments
+     * @param rangeParams Arguments holding a [lower bound, upper bound] pair
+     * @param excludedParams Arguments that aren't filters
+     * @return Query builder for the request's lifetime
+     */
+    public FilterQueries filterQueries(Map<String, Object> params, Set<String> rangeParams, Set<String> excludedParams) {
+        return new FilterQueries(facetFilterModel, params, rangeParams, excludedParams);
     }
 
     public Map<String, Object> buildGetFileIDsQuery(List<String> ids) throws IOException {
@@ -1202,7 +529,7 @@ public class InventoryESService extends ESService {
         Map<String, Object> subField_ranges = new HashMap<String, Object>();
         subField_ranges.put("field", rangeAggName);
                 // Opensearch ranges are [from, to)
-        subField_ranges.put("ranges", Set.of(
+        subField_ranges.put("ranges", List.of(
             Map.of(
                 "key", "0 - 4",
                 "from", 0,
@@ -1318,6 +645,87 @@ public class InventoryESService extends ESService {
         return Map.of("cardinality_count", Map.of("cardinality", Map.of("field", cardinalityAggName, "precision_threshold", 40000)));
     }
 
+    /**
+     * Describes one facet count to be answered by buildFacetPlanQuery
+     * @param query Query the facet is counted against, usually every filter except the facet's own
+     * @param field Field to aggregate on
+     * @param cardinalityAggName Field for identifying unique results, or null to use doc counts
+     * @param only_includes Terms to restrict the aggregation to, empty for all terms
+     * @return Facet description
+     */
+    public Map<String, Object> buildFacetAggregation(Map<String, Object> query, String field, String cardinalityAggName, List<String> only_includes) {
+        Map<String, Object> facet = new HashMap<>();
+        facet.put(FACET_QUERY, query.get("query"));
+        facet.put(FACET_FIELD, field);
+        facet.put(FACET_CARDINALITY_AGG_NAME, cardinalityAggName);
+        facet.put(FACET_ONLY_INCLUDES, only_includes);
+        return facet;
+    }
+
+    /**
+     * Combines several facet counts against the same index into a single request.
+     * Each facet is wrapped in a named filter aggregation carrying its own query, so facets
+     * that exclude different parameters can still share one round trip.
+     *
+     *     "aggs": {
+     *         "filterParticipantCountByDiagnosis": {
+     *             "filter": { ...every filter except diagnosis... },
+     *             "aggs": {
+     *                 "diagnosis": { "terms": {...}, "aggs": { "cardinality_count": {...} } }
+     *             }
+     *         },
+     *         "filterParticipantCountByDiagnosisAge": {
+     *             "filter": { ...every filter except age_at_diagnosis... },
+     *             "aggs": { "inner": { "filter": {...}, "aggs": { "range_stats": {...} } } }
+     *         }
+     *     }
+     *
+     * @param facets Aggregation names mapped to facets built by buildFacetAggregation
+     * @param rangeParams Fields that should be aggregated as numerical ranges
+     * @return Size 0 query answering every facet
+     */
+    public Map<String, Object> buildFacetPlanQuery(Map<String, Map<String, Object>> facets, Set<String> rangeParams) {
+        Map<String, Object> newQuery = new HashMap<>();
+        newQuery.put("size", 0);
+        newQuery.put("track_total_hits", false);
+        Map<String, Object> aggs = new HashMap<String, Object>();
+        for (Map.Entry<String, Map<String, Object>> entry : facets.entrySet()) {
+            Map<String, Object> facet = entry.getValue();
+            String field = (String) facet.get(FACET_FIELD);
+            Map<String, Object> subAggs;
+            if (rangeParams.contains(field)) {
+                subAggs = (Map<String, Object>) addRangeAggregations(Map.of(), field, List.of()).get("aggs");
+            } else {
+                subAggs = (Map<String, Object>) addAggregations(Map.of(), new String[]{field}, (String) facet.get(FACET_CARDINALITY_AGG_NAME), (List<String>) facet.get(FACET_ONLY_INCLUDES)).get("aggs");
+            }
+            aggs.put(entry.getKey(), Map.of("filter", facet.get(FACET_QUERY), "aggs", subAggs));
+        }
+        newQuery.put("aggs", aggs);
+        return newQuery;
+    }
+
+    /**
+     * Splits the response of a buildFacetPlanQuery request back into per-facet results
+     * @param jsonObject Opensearch response
+     * @param facets Facets the request was built from
+     * @param rangeParams Fields that were aggregated as numerical ranges
+     * @return Aggregation names mapped to term buckets (JsonArray) or range stats (JsonObject)
+     */
+    public Map<String, JsonElement> collectFacetPlanAggs(JsonObject jsonObject, Map<String, Map<String, Object>> facets, Set<String> rangeParams) {
+        Map<String, JsonElement> data = new HashMap<>();
+        JsonObject aggs = jsonObject.getAsJsonObject("aggregations");
+        for (Map.Entry<String, Map<String, Object>> entry : facets.entrySet()) {
+            String field = (String) entry.getValue().get(FACET_FIELD);
+            JsonObject facetAgg = aggs.getAsJsonObject(entry.getKey());
+            if (rangeParams.contains(field)) {
+                data.put(entry.getKey(), facetAgg.getAsJsonObject("inner").getAsJsonObject("range_stats"));
+            } else {
+                data.put(entry.getKey(), facetAgg.getAsJsonObject(field).getAsJsonArray("buckets"));
+            }
+        }
+        return data;
+    }
+
     public Map<String, JsonArray> collectNodeCountAggs(JsonObject jsonObject, String nodeName) {
         Map<String, JsonArray> data = new HashMap<>();
         JsonObject aggs = jsonObject.getAsJsonObject("aggregations");
@@ -1455,7 +863,7 @@ public class InventoryESService extends ESService {
     }
 
     // Convert JsonElement into Java collections and primitives
-    private Object getValue(JsonElement element) {
+    static Object getValue(JsonElement element) {
         Object value = null;
         if (element == null || element.isJsonNull()) {
             return null;
@@ -1497,11 +905,8 @@ public class InventoryESService extends ESService {
         query = addAggregations(query, aggNames, cardinalityAggName, List.of());
 
         // Send Opensearch request and retrieve list of buckets
-        Request request = new Request("GET", endpoint);
-        String jsonizedRequest = gson.toJson(query);
-        request.setJsonEntity(jsonizedRequest);
-        JsonObject jsonObject = send(request);
-        Map<String, JsonArray> aggs = collectTermAggs(jsonObject, aggNames);
+        Request request = searchRequest(endpoint, query);
+        Map<String, JsonArray> aggs = streamTermAggs(request, aggNames);
         JsonArray buckets = aggs.get(property);
 
         if (buckets != null) {
@@ -0,0 +1,173 @@
+package gov.nih.nci.bento_ri.service;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.params.SetParams;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * RedisStore backed by Jedis, against either a standalone server or a cluster
+ */
+public class JedisRedisStore implements RedisStore {
+    // Compare-and-delete, so a node never releases a lock that has since been taken by another node
+    private static final String DELETE_IF_EQUALS_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+    private final JedisPool pool;
+    private final JedisCluster cluster;
+    private volatile JedisPubSub subscription;
+
+    public JedisRedisStore(String host, int port, boolean useCluster) {
+        if (useCluster) {
+            this.cluster = new JedisCluster(new HostAndPort(host, port));
+            this.pool = null;
+        } else {
+            this.pool = new JedisPool(new JedisPoolConfig(), host, port);
+            this.cluster = null;
+        }
+    }
+
+    private <T> T withJedis(Function<Jedis, T> command) {
+        try (Jedis jedis = pool.getResource()) {
+            return command.apply(jedis);
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return cluster != null ? cluster.get(key) : withJedis(jedis -> jedis.get(key));
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value, long ttlSeconds) {
+        if (ttlSeconds > 0) {
+            int seconds = (int) Math.min(Integer.MAX_VALUE, ttlSeconds);
+            if (cluster != null) {
+                cluster.setex(key, seconds, value);
+            } else {
+                withJedis(jedis -> jedis.setex(key, seconds, value));
+            }
+        } else if (cluster != null) {
+            cluster.set(key, value);
+        } else {
+            withJedis(jedis -> jedis.set(key, value));
+        }
+    }
+
+    @Override
+    public void delete(byte[] key) {
+        if (cluster != null) {
+            cluster.del(key);
+        } else {
+            withJedis(jedis -> jedis.del(key));
+        }
+    }
+
+    @Override
+    public boolean setIfAbsent(String key, String value, long ttlMillis) {
+        SetParams params = SetParams.setParams().nx().px(ttlMillis);
+        String reply = cluster != null ? cluster.set(key, value, params) : withJedis(jedis -> jedis.set(key, value, params));
+        return "OK".equals(reply);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return cluster != null ? cluster.exists(key) : withJedis(jedis -> jedis.exists(key));
+    }
+
+    @Override
+    public void deleteIfEquals(String key, String value) {
+        if (cluster != null) {
+            cluster.eval(DELETE_IF_EQUALS_SCRIPT, List.of(key), List.of(value));
+        } else {
+            withJedis(jedis -> jedis.eval(DELETE_IF_EQUALS_SCRIPT, List.of(key), List.of(value)));
+        }
+    }
+
+    @Override
+    public void addToIndex(String key, String member, long expiresAtMillis, long ttlSeconds) {
+        double score = expiresAtMillis > 0 ? expiresAtMillis : Double.MAX_VALUE;
+        double now = System.currentTimeMillis();
+        int seconds = (int) Math.min(Integer.MAX_VALUE, ttlSeconds);
+        if (cluster != null) {
+            cluster.zadd(key, score, member);
+            cluster.zremrangeByScore(key, Double.NEGATIVE_INFINITY, now);
+            if (seconds > 0) {
+                cluster.expire(key, seconds);
+            }
+        } else {
+            withJedis(jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                pipeline.zadd(key, score, member);
+                pipeline.zremrangeByScore(key, Double.NEGATIVE_INFINITY, now);
+                if (seconds > 0) {
+                    pipeline.expire(key, seconds);
+                }
+                pipeline.sync();
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public Set<String> getIndexMembers(String key) {
+        double now = System.currentTimeMillis();
+        return cluster != null ? cluster.zrangeByScore(key, now, Double.POSITIVE_INFINITY)
+                : withJedis(jedis -> jedis.zrangeByScore(key, now, Double.POSITIVE_INFINITY));
+    }
+
+    @Override
+    public void delete(String key) {
+        delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        if (cluster != null) {
+            cluster.publish(channel, message);
+        } else {
+            withJedis(jedis -> jedis.publish(channel, message));
+        }
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        JedisPubSub pubSub = new JedisPubSub() {
+            @Override
+            public void onMessage(String messageChannel, String message) {
+                listener.accept(message);
+            }
+        };
+        subscription = pubSub;
+        if (cluster != null) {
+            cluster.subscribe(pubSub, channel);
+        } else {
+            try (Jedis jedis = pool.getResource()) {
+                jedis.subscribe(pubSub, channel);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        JedisPubSub pubSub = subscription;
+        if (pubSub != null && pubSub.isSubscribed()) {
+            pubSub.unsubscribe();
+        }
+        if (cluster != null) {
+            cluster.close();
+        } else {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package gov.nih.nci.bento_ri.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.logging.LoggingMeterRegistry;
+import io.micrometer.core.instrument.logging.LoggingRegistryConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+/**
+ * Registry for the service's own metrics. Without a monitoring backend configured, meters are
+ * written to the log every metrics.log_interval_minutes, in the same way as the cache statistics.
+ */
+@Configuration
+public class MetricsConfig {
+    private static final Logger logger = LogManager.getLogger(MetricsConfig.class);
+
+    @Bean(destroyMethod = "close")
+    public MeterRegistry meterRegistry(@Value("${metrics.log_interval_minutes:60}") long logIntervalMinutes) {
+        if (logIntervalMinutes <= 0) {
+            return new SimpleMeterRegistry();
+        }
+        LoggingRegistryConfig config = new LoggingRegistryConfig() {
+            @Override
+            public String get(String key) {
+                return null;
+            }
+
+            @Override
+            public Duration step() {
+                return Duration.ofMinutes(logIntervalMinutes);
+            }
+        };
+        return LoggingMeterRegistry.builder(config)
+                .loggingSink(logger::info)
+                .build();
+    }
+}
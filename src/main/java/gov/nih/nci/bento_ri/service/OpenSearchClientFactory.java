@@ -0,0 +1,219 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.http.AWSRequestSigningApacheInterceptor;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.client.RestClient;
+import org.opensearch.client.RestClientBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the low-level Opensearch client with a tunable connection pool instead of the library
+ * defaults of 10 connections per route and 30 in total, which queue concurrent fan-out queries.
+ * The client talks to a single host, which is a single route, so the per-route limit is the one that
+ * holds; it must be at least es.limiter.max_concurrency, or requests the limiter admitted wait here
+ * for a connection, and that wait is taken for cluster latency by the adaptive limit.
+ *
+ * The pool is exposed as gauges (leased, pending, available, max connections) and a timer for the
+ * time requests wait to lease a connection.
+ */
+@Component
+public class OpenSearchClientFactory {
+    private static final Logger logger = LogManager.getLogger(OpenSearchClientFactory.class);
+
+    static final AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${es.host}")
+    private String host;
+    @Value("${es.port}")
+    private int port;
+    @Value("${es.scheme}")
+    private String scheme;
+    @Value("${es.sign.requests:false}")
+    private boolean signRequests;
+    @Value("${es.service_name:es}")
+    private String serviceName;
+    @Value("${es.region:us-east-1}")
+    private String region;
+
+    @Value("${es.client.max_connections_total:64}")
+    private int maxConnectionsTotal;
+    @Value("${es.client.max_connections_per_route:64}")
+    private int maxConnectionsPerRoute;
+    @Value("${es.limiter.max_concurrency:64}")
+    private int limiterMaxConcurrency;
+    @Value("${es.client.io_thread_count:0}")
+    private int ioThreadCount;
+    @Value("${es.client.connect_timeout_ms:1000}")
+    private int connectTimeoutMillis;
+    @Value("${es.client.socket_timeout_ms:30000}")
+    private int socketTimeoutMillis;
+    @Value("${es.client.keep_alive_ms:30000}")
+    private long keepAliveMillis;
+    @Value("${es.client.compression:true}")
+    private boolean compression;
+
+    public OpenSearchClientFactory(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @return New client; the caller closes it
+     * @throws IOException if the IO reactor can't be started
+     */
+    public RestClient create() throws IOException {
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreadCount > 0 ? ioThreadCount : Runtime.getRuntime().availableProcessors())
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSoTimeout(socketTimeoutMillis)
+                .setSoKeepAlive(true)
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager =
+                new TimedConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig), sessionStrategies(), leaseWaitTimer());
+        if (Math.min(maxConnectionsPerRoute, maxConnectionsTotal) < limiterMaxConcurrency) {
+            logger.warn("Opensearch client has {} connections per route and {} in total, fewer than the {} requests es.limiter.max_concurrency lets through",
+                    maxConnectionsPerRoute, maxConnectionsTotal, limiterMaxConcurrency);
+        }
+        connectionManager.setMaxTotal(maxConnectionsTotal);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        registerPoolGauges(connectionManager);
+
+        // Reuse connections for as long as the server allows, but no longer than keep_alive_ms,
+        // so that they are dropped before an idle load balancer closes them
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+        };
+
+        RestClientBuilder builder = RestClient.builder(new HttpHost(host, port, scheme))
+                .setRequestConfigCallback(requestConfig -> requestConfig
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setSocketTimeout(socketTimeoutMillis))
+                .setHttpClientConfigCallback(httpClient -> {
+                    httpClient.setConnectionManager(connectionManager)
+                            .setKeepAliveStrategy(keepAliveStrategy);
+                    if (signRequests) {
+                        AWS4Signer signer = new AWS4Signer();
+                        signer.setServiceName(serviceName);
+                        signer.setRegionName(region);
+                        httpClient.addInterceptorLast(new AWSRequestSigningApacheInterceptor(serviceName, signer, credentialsProvider));
+                    }
+                    return httpClient;
+                });
+        if (compression) {
+            // The client decompresses gzip responses; request bodies are small and left as they are
+            builder.setDefaultHeaders(new Header[]{new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "gzip")});
+        }
+
+        logger.info("Initialized Opensearch client for {}://{}:{}: {} connections per route, {} in total, {} IO threads",
+                scheme, host, port, maxConnectionsPerRoute, maxConnectionsTotal, ioReactorConfig.getIoThreadCount());
+        return builder.build();
+    }
+
+    private static Registry<SchemeIOSessionStrategy> sessionStrategies() throws IOException {
+        try {
+            return RegistryBuilder.<SchemeIOSessionStrategy>create()
+                    .register("http", NoopIOSessionStrategy.INSTANCE)
+                    .register("https", new SSLIOSessionStrategy(SSLContext.getDefault(), SSLIOSessionStrategy.getDefaultHostnameVerifier()))
+                    .build();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No default SSL context available", e);
+        }
+    }
+
+    private Timer leaseWaitTimer() {
+        return Timer.builder("opensearch.pool.lease.wait")
+                .description("Time requests wait for a pooled Opensearch connection")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+    }
+
+    private void registerPoolGauges(PoolingNHttpClientConnectionManager connectionManager) {
+        Gauge.builder("opensearch.pool.leased", connectionManager, manager -> manager.getTotalStats().getLeased())
+                .description("Opensearch connections in use")
+                .register(meterRegistry);
+        Gauge.builder("opensearch.pool.pending", connectionManager, manager -> manager.getTotalStats().getPending())
+                .description("Requests waiting for an Opensearch connection")
+                .register(meterRegistry);
+        Gauge.builder("opensearch.pool.available", connectionManager, manager -> manager.getTotalStats().getAvailable())
+                .description("Idle Opensearch connections")
+                .register(meterRegistry);
+        Gauge.builder("opensearch.pool.max", connectionManager, manager -> manager.getTotalStats().getMax())
+                .description("Maximum Opensearch connections")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Connection manager that records how long each lease request waits for a connection
+     */
+    private static class TimedConnectionManager extends PoolingNHttpClientConnectionManager {
+        private final Timer leaseWait;
+
+        TimedConnectionManager(DefaultConnectingIOReactor ioReactor, Registry<SchemeIOSessionStrategy> sessionStrategies, Timer leaseWait) {
+            super(ioReactor, sessionStrategies);
+            this.leaseWait = leaseWait;
+        }
+
+        @Override
+        public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout,
+                                                               long leaseTimeout, TimeUnit timeUnit,
+                                                               FutureCallback<NHttpClientConnection> callback) {
+            long start = System.nanoTime();
+            return super.requestConnection(route, state, connectTimeout, leaseTimeout, timeUnit, new FutureCallback<>() {
+                @Override
+                public void completed(NHttpClientConnection connection) {
+                    leaseWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    if (callback != null) {
+                        callback.completed(connection);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (callback != null) {
+                        callback.failed(e);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    if (callback != null) {
+                        callback.cancelled();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package gov.nih.nci.bento_ri.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the Opensearch requests in flight at once, whatever the number of threads sending them.
+ * With GraphQL fields on virtual threads, every waiting client would otherwise become a cluster
+ * query; here requests past the limit wait for a permit rather than piling up on the cluster.
+ *
+ * The limit adapts to the cluster's latency, much like Netflix concurrency-limits' Gradient2: a
+ * short-term average latency is compared with a long-term one, and the limit shrinks as the cluster
+ * slows down, between es.limiter.min_concurrency and es.limiter.max_concurrency, and grows back
+ * by about its square root while latency holds steady.
+ *
+ * Requests are interactive (pages, counts, facets) or bulk (exports and id lists), according to the
+ * GraphQL field they are made for. Bulk requests take at most es.limiter.bulk_share of the limit,
+ * only go ahead when no interactive request is waiting, and give up after es.limiter.bulk_max_wait_ms;
+ * interactive ones wait up to es.limiter.max_wait_ms. Requests that give up fail with an
+ * OverloadedException, which clients see as a GraphQL error they can retry.
+ */
+@Service("OpenSearchLimiter")
+public class OpenSearchLimiter {
+    private static final Logger logger = LogManager.getLogger(OpenSearchLimiter.class);
+
+    /**
+     * Whose turn comes first when Opensearch is saturated
+     */
+    public enum Priority {
+        INTERACTIVE, BULK
+    }
+
+    // Priority of the requests sent by the current thread, set for each GraphQL field
+    private static final ThreadLocal<Priority> PRIORITY = ThreadLocal.withInitial(() -> Priority.INTERACTIVE);
+
+    // Weights of the latest sample in the short and long-term average latencies, about 10 and 600 samples
+    private static final double SHORT_WEIGHT = 2.0 / 11;
+    private static final double LONG_WEIGHT = 2.0 / 601;
+    // Latency growth tolerated before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    // Share of each new estimate taken into the limit
+    private static final double SMOOTHING = 0.2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double bulkShare;
+    private final Map<Priority, Long> maxWaitMs = new EnumMap<>(Priority.class);
+    private final Map<Priority, Counter> rejected = new EnumMap<>(Priority.class);
+    private final Timer waitTimer;
+    private double estimatedLimit;
+    private int limit;
+    private int inFlight;
+    private int bulkInFlight;
+    private int queued;
+    private int interactiveQueued;
+    private double shortRttNanos;
+    private double longRttNanos;
+
+    /**
+     * @param maxConcurrency Requests allowed in flight at once, and the limit to start from; 0 for no limit
+     * @param minConcurrency Lowest the limit adapts down to
+     * @param adaptive Whether the limit follows latency, or stays at maxConcurrency
+     * @param maxWaitMs Longest an interactive request waits for a permit before failing
+     * @param bulkShare Share of the limit that bulk requests may take
+     * @param bulkMaxWaitMs Longest a bulk request waits for a permit before failing
+     * @param meterRegistry Registry for the limiter's metrics
+     */
+    public OpenSearchLimiter(@Value("${es.limiter.max_concurrency:64}") int maxConcurrency,
+                             @Value("${es.limiter.min_concurrency:8}") int minConcurrency,
+                             @Value("${es.limiter.adaptive:true}") boolean adaptive,
+                             @Value("${es.limiter.max_wait_ms:10000}") long maxWaitMs,
+                             @Value("${es.limiter.bulk_share:0.5}") double bulkShare,
+                             @Value("${es.limiter.bulk_max_wait_ms:1000}") long bulkMaxWaitMs,
+                             MeterRegistry meterRegistry) {
+        this.maxLimit = maxConcurrency <= 0 ? Integer.MAX_VALUE : maxConcurrency;
+        this.minLimit = Math.max(1, Math.min(minConcurrency, this.maxLimit));
+        this.adaptive = adaptive && maxConcurrency > 0;
+        this.bulkShare = Math.min(1, Math.max(0, bulkShare));
+        this.limit = this.maxLimit;
+        this.estimatedLimit = this.maxLimit;
+        this.maxWaitMs.put(Priority.INTERACTIVE, maxWaitMs);
+        this.maxWaitMs.put(Priority.BULK, bulkMaxWaitMs);
+        this.waitTimer = Timer.builder("opensearch.limiter.wait")
+                .description("Time requests wait for an Opensearch permit")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        for (Priority priority : Priority.values()) {
+            rejected.put(priority, Counter.builder("opensearch.limiter.rejected")
+                    .description("Requests that gave up waiting for an Opensearch permit")
+                    .tag("priority", priority.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        Gauge.builder("opensearch.limiter.in_flight", this, OpenSearchLimiter::getInFlight)
+                .description("Opensearch requests holding a permit")
+                .register(meterRegistry);
+        Gauge.builder("opensearch.limiter.bulk_in_flight", this, OpenSearchLimiter::getBulkInFlight)
+                .description("Bulk Opensearch requests holding a permit")
+                .register(meterRegistry);
+        Gauge.builder("opensearch.limiter.queued", this, OpenSearchLimiter::getQueued)
+                .description("Opensearch requests waiting for a permit")
+                .register(meterRegistry);
+        Gauge.builder("opensearch.limiter.limit", this, OpenSearchLimiter::getLimit)
+                .description("Opensearch requests allowed in flight at once")
+                .register(meterRegistry);
+        logger.info("Initialized Opensearch limiter: {} concurrent requests{}, {} ms maximum wait, {} of the limit and {} ms maximum wait for bulk requests",
+                maxConcurrency <= 0 ? "unlimited" : maxConcurrency, this.adaptive ? " adapting down to " + minLimit : "",
+                maxWaitMs, this.bulkShare, bulkMaxWaitMs);
+    }
+
+    /**
+     * Runs a task with the given priority for the Opensearch requests it sends from this thread
+     * @param priority Priority of the task's requests
+     * @param task Work sending Opensearch requests
+     * @return The task's result
+     * @throws Exception as thrown by the task
+     */
+    public static <T> T withPriority(Priority priority, Callable<T> task) throws Exception {
+        Priority previous = PRIORITY.get();
+        PRIORITY.set(priority);
+        try {
+            return task.call();
+        } finally {
+            PRIORITY.set(previous);
+        }
+    }
+
+    /**
+     * @return Priority of the requests sent by the current thread, to be carried over to threads working for it
+     */
+    public static Priority currentPriority() {
+        return PRIORITY.get();
+    }
+
+    /**
+     * Waits for a permit, with the current thread's priority
+     * @return Permit to close once the response has been read
+     * @throws OverloadedException if no permit came free in time, or the thread was interrupted
+     */
+    public Permit acquire() throws OverloadedException {
+        Priority priority = PRIORITY.get();
+        boolean bulk = priority == Priority.BULK;
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (!admits(bulk)) {
+                await(priority, start);
+            }
+            inFlight++;
+            if (bulk) {
+                bulkInFlight++;
+            }
+            return new Permit(bulk, inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held; returns once the request is admitted
+    private void await(Priority priority, long start) throws OverloadedException {
+        boolean bulk = priority == Priority.BULK;
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMs.get(priority));
+        queued++;
+        if (!bulk) {
+            interactiveQueued++;
+        }
+        try {
+            while (!admits(bulk)) {
+                if (remaining <= 0) {
+                    rejected.get(priority).increment();
+                    throw new OverloadedException("Opensearch is overloaded; " + priority.name().toLowerCase()
+                            + " request gave up after waiting " + maxWaitMs.get(priority) + " ms, please retry");
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OverloadedException("Interrupted while waiting for an Opensearch permit");
+        } finally {
+            queued--;
+            if (!bulk) {
+                interactiveQueued--;
+            }
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private boolean admits(boolean bulk) {
+        if (inFlight >= limit) {
+            return false;
+        }
+        return !bulk || (interactiveQueued == 0 && bulkInFlight < Math.max(1, (int) (limit * bulkShare)));
+    }
+
+    private void release(Permit permit, long rttNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (permit.bulk) {
+                bulkInFlight--;
+            }
+            if (adaptive) {
+                update(rttNanos, permit.inFlight);
+            }
+            // Waiters check their own priority's conditions, and interactive ones go ahead of bulk ones
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held, for each request that completed
+    private void update(long rttNanos, int inFlightAtStart) {
+        if (shortRttNanos == 0) {
+            shortRttNanos = rttNanos;
+            longRttNanos = rttNanos;
+            return;
+        }
+        shortRttNanos += (rttNanos - shortRttNanos) * SHORT_WEIGHT;
+        longRttNanos += (rttNanos - longRttNanos) * LONG_WEIGHT;
+        // After a long slowdown the long-term average lags far behind, so it catches up faster
+        if (longRttNanos > 2 * shortRttNanos) {
+            longRttNanos *= 0.95;
+        }
+        // Latency says nothing about a limit that isn't used
+        if (inFlightAtStart < estimatedLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / shortRttNanos));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+        limit = (int) estimatedLimit;
+    }
+
+    /**
+     * @param limit Requests allowed in flight at once; requests already in flight are let finish
+     */
+    public void setLimit(int limit) {
+        lock.lock();
+        try {
+            this.limit = Math.max(1, limit);
+            this.estimatedLimit = this.limit;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBulkInFlight() {
+        lock.lock();
+        try {
+            return bulkInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Permission to have one request in flight, returned by closing it
+     */
+    public class Permit implements AutoCloseable {
+        private final boolean bulk;
+        private final int inFlight;
+        private final long start = System.nanoTime();
+        private boolean closed;
+
+        private Permit(boolean bulk, int inFlight) {
+            this.bulk = bulk;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(this, System.nanoTime() - start);
+            }
+        }
+    }
+}
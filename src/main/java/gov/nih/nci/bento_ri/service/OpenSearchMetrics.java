@@ -0,0 +1,300 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.io.CountingInputStream;
+import com.google.common.primitives.Bytes;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.client.Request;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every Opensearch request sent by InventoryESService, tagged with the GraphQL field it was
+ * sent for, the index it went to and its operation (count, search, aggs, scroll or msearch):
+ * <ul>
+ *     <li>opensearch.request.bytes and opensearch.response.bytes, the sizes of the bodies</li>
+ *     <li>opensearch.took, the time Opensearch reports having spent on the query</li>
+ *     <li>opensearch.latency, from sending the request to receiving the whole response</li>
+ *     <li>opensearch.parse, the time spent reading the response body into results</li>
+ * </ul>
+ * The difference between latency and took is spent in the network and the cluster's queues. The
+ * meters are logged with the other metrics and, where management.endpoints.web.exposure.include lists metrics,
+ * published on /actuator/metrics, e.g. /actuator/metrics/opensearch.latency?tag=field:fileOverview.
+ *
+ * Each request is also an opensearch.request observation, traced as a span of the GraphQL field it
+ * was sent for, with the same tags and its sizes, took and hit count as attributes.
+ *
+ * Whether a search aggregates is known when InventoryESService.searchRequest builds it from the query,
+ * which records it with setOperation. Only searches built otherwise have their body scanned for
+ * aggregations, and only while metrics are enabled; with metrics off their spans are tagged search.
+ */
+@Service("OpenSearchMetrics")
+public class OpenSearchMetrics {
+    private static final Logger logger = LogManager.getLogger(OpenSearchMetrics.class);
+
+    static final String NONE = "none";
+
+    // GraphQL field whose data the current thread is fetching
+    private static final ThreadLocal<String> FIELD = ThreadLocal.withInitial(() -> NONE);
+
+    // Operations of requests recorded by their builder; keys are compared by identity, and dropped with their request
+    private static final Map<Request, String> OPERATIONS = new MapMaker().weakKeys().makeMap();
+
+    private static final byte[] AGGS_KEY = ("\"" + InventoryESService.AGGS + "\":").getBytes(StandardCharsets.UTF_8);
+
+    private final MeterRegistry meterRegistry;
+    private final ObservationRegistry observationRegistry;
+    private final boolean enabled;
+    private final Map<List<String>, Meters> meters = new ConcurrentHashMap<>();
+
+    /**
+     * @param enabled Whether requests are measured
+     * @param meterRegistry Registry for the request metrics
+     * @param observationRegistry Registry for the request spans
+     */
+    public OpenSearchMetrics(@Value("${metrics.opensearch.enabled:true}") boolean enabled, MeterRegistry meterRegistry,
+                             ObservationRegistry observationRegistry) {
+        this.enabled = enabled;
+        this.meterRegistry = meterRegistry;
+        this.observationRegistry = observationRegistry;
+        logger.info("Opensearch request metrics {}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * Runs a task on behalf of a GraphQL field, whose name tags the Opensearch requests it sends from this thread
+     * @param field GraphQL field
+     * @param task Work sending Opensearch requests
+     * @return The task's result
+     * @throws Exception as thrown by the task
+     */
+    public static <T> T withField(String field, Callable<T> task) throws Exception {
+        String previous = FIELD.get();
+        FIELD.set(field);
+        try {
+            return task.call();
+        } finally {
+            FIELD.set(previous);
+        }
+    }
+
+    /**
+     * @return GraphQL field the current thread is working for, to be carried over to threads working for it
+     */
+    public static String currentField() {
+        return FIELD.get();
+    }
+
+    /**
+     * Starts measuring a request, just before it is sent
+     * @param request Opensearch request
+     * @return Sample to complete once the response has been read, or once the request failed
+     */
+    public Sample start(Request request) {
+        String field = FIELD.get();
+        String index = index(request.getEndpoint());
+        String operation = operation(request, enabled);
+        Observation observation = Observation.createNotStarted("opensearch.request", observationRegistry)
+                .contextualName("opensearch " + operation + " " + index)
+                .lowCardinalityKeyValue("field", field)
+                .lowCardinalityKeyValue("index", index)
+                .lowCardinalityKeyValue("operation", operation)
+                .start();
+        return new Sample(enabled ? meters(field, index, operation) : null, observation, request.getEntity());
+    }
+
+    /**
+     * @param json Search, count or msearch response
+     * @return hits.total or count of the response, or -1 if it has neither
+     */
+    static long hits(JsonObject json) {
+        if (json == null) {
+            return -1;
+        }
+        if (json.has("count")) {
+            return json.get("count").getAsLong();
+        }
+        if (json.has("hits") && json.getAsJsonObject("hits").has("total")) {
+            // Older clusters return a number, newer ones {"value": n, "relation": "eq"}
+            JsonElement total = json.getAsJsonObject("hits").get("total");
+            return total.isJsonObject() ? total.getAsJsonObject().get("value").getAsLong() : total.getAsLong();
+        }
+        return -1;
+    }
+
+    private Meters meters(String field, String index, String operation) {
+        return meters.computeIfAbsent(List.of(field, index, operation), key -> new Meters(Tags.of("field", field, "index", index, "operation", operation)));
+    }
+
+    // "/participants/_search" -> "participants"; endpoints of no index, like /_msearch, have none
+    static String index(String endpoint) {
+        String path = endpoint.startsWith("/") ? endpoint.substring(1) : endpoint;
+        int separator = path.indexOf('/');
+        String index = separator < 0 ? path : path.substring(0, separator);
+        return index.isEmpty() || index.startsWith("_") ? NONE : index;
+    }
+
+    /**
+     * Records the operation of a request as it is built, so that its body needn't be scanned when it is sent
+     * @param request Opensearch request
+     * @param operation Its operation, e.g. search or aggs
+     */
+    static void setOperation(Request request, String operation) {
+        OPERATIONS.put(request, operation);
+    }
+
+    // Searches whose operation wasn't recorded have their body scanned for aggregations, if scan is set
+    static String operation(Request request, boolean scan) {
+        String endpoint = request.getEndpoint();
+        if (endpoint.endsWith("_count")) {
+            return "count";
+        }
+        if (endpoint.endsWith("_msearch")) {
+            return "msearch";
+        }
+        if (endpoint.endsWith("/scroll") || request.getParameters().containsKey("scroll")) {
+            return "scroll";
+        }
+        String recorded = OPERATIONS.get(request);
+        if (recorded != null) {
+            return recorded;
+        }
+        return scan && hasAggs(request.getEntity()) ? "aggs" : "search";
+    }
+
+    // Queries are written by QueryWriter as compact JSON, so aggregations always start with "aggs":
+    private static boolean hasAggs(HttpEntity entity) {
+        if (entity == null || !entity.isRepeatable()) {
+            return false;
+        }
+        try {
+            return Bytes.indexOf(EntityUtils.toByteArray(entity), AGGS_KEY) >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private class Meters {
+        private final DistributionSummary requestBytes;
+        private final DistributionSummary responseBytes;
+        private final Timer took;
+        private final Timer latency;
+        private final Timer parse;
+
+        private Meters(Tags tags) {
+            this.requestBytes = DistributionSummary.builder("opensearch.request.bytes")
+                    .description("Size of Opensearch request bodies")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(meterRegistry);
+            this.responseBytes = DistributionSummary.builder("opensearch.response.bytes")
+                    .description("Size of Opensearch response bodies, uncompressed")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(meterRegistry);
+            this.took = Timer.builder("opensearch.took")
+                    .description("Time Opensearch reports having spent on queries")
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .tags(tags)
+                    .register(meterRegistry);
+            this.latency = Timer.builder("opensearch.latency")
+                    .description("Time from sending Opensearch requests to receiving their responses")
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .tags(tags)
+                    .register(meterRegistry);
+            this.parse = Timer.builder("opensearch.parse")
+                    .description("Time spent reading Opensearch responses into results")
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .tags(tags)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Measurements of one request, recorded when the response has been read
+     */
+    public static class Sample {
+        private final Meters meters;
+        private final Observation observation;
+        private final long requestBytes;
+        private final long start = System.nanoTime();
+        private long received;
+        private CountingInputStream body;
+
+        private Sample(Meters meters, Observation observation, HttpEntity entity) {
+            this.meters = meters;
+            this.observation = observation;
+            this.requestBytes = entity == null ? 0 : entity.getContentLength();
+        }
+
+        /**
+         * Marks the response as received, and counts the bytes read from its body
+         * @param in Response body
+         * @return Stream to read the body from
+         */
+        public InputStream received(InputStream in) {
+            received = System.nanoTime();
+            body = new CountingInputStream(in);
+            return body;
+        }
+
+        /**
+         * Records the request, once its response body has been read
+         * @param tookMs took reported by Opensearch, or a negative number if it wasn't in the response
+         * @param hits Total hits or count of the response, or a negative number if it had none
+         */
+        public void parsed(long tookMs, long hits) {
+            if (body == null) {
+                return;
+            }
+            observation.highCardinalityKeyValue("request.bytes", String.valueOf(Math.max(0, requestBytes)));
+            observation.highCardinalityKeyValue("response.bytes", String.valueOf(body.getCount()));
+            if (tookMs >= 0) {
+                observation.highCardinalityKeyValue("took.ms", String.valueOf(tookMs));
+            }
+            if (hits >= 0) {
+                observation.highCardinalityKeyValue("hits", String.valueOf(hits));
+            }
+            observation.stop();
+            if (meters == null) {
+                return;
+            }
+            long end = System.nanoTime();
+            meters.requestBytes.record(Math.max(0, requestBytes));
+            meters.responseBytes.record(body.getCount());
+            meters.latency.record(received - start, TimeUnit.NANOSECONDS);
+            meters.parse.record(end - received, TimeUnit.NANOSECONDS);
+            if (tookMs >= 0) {
+                meters.took.record(tookMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Ends the request's span as failed, when no response could be read
+         * @param error Why the request failed
+         */
+        public void failed(Throwable error) {
+            observation.error(error);
+            observation.stop();
+        }
+    }
+}
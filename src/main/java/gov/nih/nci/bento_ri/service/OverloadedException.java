@@ -0,0 +1,36 @@
+package gov.nih.nci.bento_ri.service;
+
+import graphql.ErrorClassification;
+import graphql.ErrorType;
+import graphql.GraphQLError;
+import graphql.language.SourceLocation;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thrown when an Opensearch request is shed because the cluster is saturated. As a GraphQLError,
+ * the error of the field that failed carries the code OVERLOADED, telling clients to retry later.
+ */
+public class OverloadedException extends IOException implements GraphQLError {
+
+    public OverloadedException(String message) {
+        super(message);
+    }
+
+    @Override
+    public List<SourceLocation> getLocations() {
+        return null;
+    }
+
+    @Override
+    public ErrorClassification getErrorType() {
+        return ErrorType.ExecutionAborted;
+    }
+
+    @Override
+    public Map<String, Object> getExtensions() {
+        return Map.of("code", "OVERLOADED", "retryable", true);
+    }
+}
@@ -0,0 +1,144 @@
+package gov.nih.nci.bento_ri.service;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches independent Opensearch queries concurrently and joins their results.
+ * A shared, bounded pool serves every GraphQL request, while each call to invokeAll
+ * keeps at most es.fanout.max_concurrency_per_request of its own queries in flight.
+ */
+@Service("QueryFanOutService")
+public class QueryFanOutService {
+    private static final Logger logger = LogManager.getLogger(QueryFanOutService.class);
+
+    // Marks pool threads so that nested fan-outs run inline instead of waiting on their own pool
+    private static final ThreadLocal<Boolean> IN_FAN_OUT = ThreadLocal.withInitial(() -> false);
+
+    private final ThreadPoolExecutor executor;
+    private final int maxConcurrencyPerRequest;
+    private final ObservationRegistry observationRegistry;
+
+    public QueryFanOutService(@Value("${es.fanout.pool_size:32}") int poolSize,
+                              @Value("${es.fanout.max_concurrency_per_request:8}") int maxConcurrencyPerRequest,
+                              ObservationRegistry observationRegistry) {
+        this.observationRegistry = observationRegistry;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.maxConcurrencyPerRequest = Math.max(1, maxConcurrencyPerRequest);
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "es-fanout-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        logger.info("Initialized Opensearch fan-out pool: {} threads, {} concurrent queries per request",
+                poolSize, this.maxConcurrencyPerRequest);
+    }
+
+    @PreDestroy
+    private void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs every task and returns their results in the same order as the tasks
+     * @param tasks Independent units of work, typically one Opensearch request each
+     * @return Results, index-aligned with tasks
+     * @throws IOException if any task fails; remaining tasks are cancelled
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException {
+        int size = tasks.size();
+        Object[] results = new Object[size];
+
+        // Nothing to overlap, or already on a pool thread: run on the calling thread
+        if (size <= 1 || IN_FAN_OUT.get()) {
+            for (int i = 0; i < size; i++) {
+                results[i] = call(tasks.get(i));
+            }
+            return (List<T>) Arrays.asList(results);
+        }
+
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Integer>> futures = new ArrayList<>(size);
+        int submitted = 0;
+        int completed = 0;
+        try {
+            while (submitted < size && submitted < maxConcurrencyPerRequest) {
+                futures.add(submit(completionService, tasks, results, submitted++));
+            }
+            while (completed < size) {
+                completionService.take().get();
+                completed++;
+                if (submitted < size) {
+                    futures.add(submit(completionService, tasks, results, submitted++));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Opensearch queries", e);
+        } catch (ExecutionException e) {
+            throw toIOException(e.getCause());
+        } finally {
+            if (completed < size) {
+                futures.forEach(future -> future.cancel(true));
+            }
+        }
+        return (List<T>) Arrays.asList(results);
+    }
+
+    private <T> Future<Integer> submit(CompletionService<Integer> completionService, List<? extends Callable<T>> tasks, Object[] results, int index) {
+        Callable<T> task = tasks.get(index);
+        // Queries keep the priority, metrics tag and span of the field they are sent for on the fan-out threads
+        OpenSearchLimiter.Priority priority = OpenSearchLimiter.currentPriority();
+        String field = OpenSearchMetrics.currentField();
+        Observation parent = observationRegistry.getCurrentObservation();
+        return completionService.submit(() -> {
+            IN_FAN_OUT.set(true);
+            try (Observation.Scope scope = parent == null ? null : parent.openScope()) {
+                results[index] = OpenSearchMetrics.withField(field, () -> OpenSearchLimiter.withPriority(priority, task));
+            } finally {
+                IN_FAN_OUT.set(false);
+            }
+            return index;
+        });
+    }
+
+    private <T> T call(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (Exception e) {
+            throw toIOException(e);
+        }
+    }
+
+    private IOException toIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+}
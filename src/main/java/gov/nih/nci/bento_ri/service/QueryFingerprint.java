@@ -0,0 +1,131 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Canonical cache keys for GraphQL query arguments.
+ *
+ * Arguments are written out in a canonical form before hashing: keys sorted, lists of values sorted
+ * and de-duplicated, since filters match them as a set, and filters that select everything
+ * (an empty list or [""]) dropped. Every token carries a type tag and a length, so
+ * ["1", "23"] and ["12", "3"] or a missing and a null range bound can't produce the same key.
+ * The canonical form is reduced to a 128-bit murmur3 hash.
+ */
+public final class QueryFingerprint {
+    private QueryFingerprint() {
+    }
+
+    /**
+     * @param operation Name of the query, so that different queries with the same arguments get different keys
+     * @param params GraphQL arguments
+     * @param rangeParams Arguments holding a [lower bound, upper bound] pair rather than a set of values
+     * @return Cache key of the form operation:hash
+     */
+    public static String of(String operation, Map<String, Object> params, Set<String> rangeParams) {
+        return operation + ":" + Hashing.murmur3_128()
+                .hashString(canonicalize(params, rangeParams), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Canonical form of the arguments, before hashing
+     */
+    static String canonicalize(Map<String, Object> params, Set<String> rangeParams) {
+        Map<String, Object> sorted = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            if (!selectsAll(entry.getKey(), entry.getValue(), rangeParams)) {
+                sorted.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append('m').append(sorted.size()).append('{');
+        for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+            appendString(out, entry.getKey());
+            if (rangeParams.contains(entry.getKey()) && entry.getValue() instanceof List) {
+                appendRange(out, (List<?>) entry.getValue());
+            } else {
+                append(out, entry.getValue());
+            }
+        }
+        return out.append('}').toString();
+    }
+
+    // Same rules the filter query builder uses to skip a filter
+    private static boolean selectsAll(String key, Object value, Set<String> rangeParams) {
+        if (value == null) {
+            return true;
+        }
+        if (rangeParams.contains(key) && value instanceof List) {
+            // Ranges without both bounds, such as the [0] default, are ignored
+            return ((List<?>) value).size() < 2;
+        }
+        if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            return values.isEmpty() || (values.size() == 1 && "".equals(values.iterator().next()));
+        }
+        return false;
+    }
+
+    // Only the first two elements of a range are used; a null bound is distinct from a present one
+    private static void appendRange(StringBuilder out, List<?> bounds) {
+        out.append('r');
+        append(out, bounds.get(0));
+        append(out, bounds.get(1));
+    }
+
+    private static void append(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append('n');
+        } else if (value instanceof String) {
+            appendString(out, (String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.append('i').append(value).append(';');
+        } else if (value instanceof Number) {
+            out.append('d').append(((Number) value).doubleValue()).append(';');
+        } else if (value instanceof Boolean) {
+            out.append((Boolean) value ? "b1" : "b0");
+        } else if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            ((Map<?, ?>) value).forEach((key, element) -> sorted.put(String.valueOf(key), element));
+            out.append('m').append(sorted.size()).append('{');
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                appendString(out, entry.getKey());
+                append(out, entry.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            if (values.stream().anyMatch(element -> element instanceof Map || element instanceof Collection)) {
+                // Lists of objects, such as chart configurations, are ordered and kept as they are
+                out.append('o').append(values.size()).append('[');
+                values.forEach(element -> append(out, element));
+                out.append(']');
+                return;
+            }
+            TreeSet<String> elements = new TreeSet<>();
+            for (Object element : values) {
+                StringBuilder encoded = new StringBuilder();
+                append(encoded, element);
+                elements.add(encoded.toString());
+            }
+            out.append('l').append(elements.size()).append('[');
+            elements.forEach(out::append);
+            out.append(']');
+        } else {
+            appendString(out, value.getClass().getName());
+            appendString(out, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        out.append('s').append(value.length()).append(':').append(value);
+    }
+}
@@ -0,0 +1,209 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+
+/**
+ * Writes Opensearch request bodies straight to UTF-8 bytes.
+ *
+ * gson.toJson looks up a type adapter for every map, list and value in a query and returns a
+ * String, which setJsonEntity then encodes into another byte array. Queries only hold maps, lists,
+ * strings, numbers, booleans and nulls, so they are walked directly with a JsonWriter into a buffer
+ * kept per thread and reused between requests; only the finished body is copied out of it.
+ *
+ * Opensearch's shard request cache is keyed on the exact bytes of a body, so equal queries must be
+ * written the same way every time, in every JVM. Keys of maps without an order of their own, and
+ * elements of such sets, are written sorted, since the iteration order of Map.of and Set.of changes
+ * from one JVM to the next.
+ */
+public final class QueryWriter {
+    static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+    // Buffers grown past this by an unusually large body are dropped rather than kept per thread
+    private static final int MAX_RETAINED_BYTES = 1 << 20;
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+    private static final Gson gson = new GsonBuilder().serializeNulls().create();
+
+    private QueryWriter() {
+    }
+
+    /**
+     * @param body Query as nested maps and lists
+     * @return JSON request entity
+     */
+    public static NByteArrayEntity toEntity(Object body) {
+        return new NByteArrayEntity(toBytes(body), ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * @param body Query as nested maps and lists
+     * @return Compact JSON encoded in UTF-8
+     */
+    public static byte[] toBytes(Object body) {
+        Buffer buffer = acquire();
+        try {
+            buffer.writeJson(body);
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            // Only thrown by the writer on invalid values, as the buffer is in memory
+            throw new UncheckedIOException(e);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Builds a newline-delimited JSON body, as used by _msearch.
+     *
+     * @param lines Maps and lists, JsonElements, or byte[] holding JSON without line breaks
+     * @return NDJSON request entity, each line followed by a newline
+     */
+    public static NByteArrayEntity toNdjsonEntity(List<Object> lines) {
+        Buffer buffer = acquire();
+        try {
+            for (Object line : lines) {
+                if (line instanceof byte[]) {
+                    buffer.write((byte[]) line);
+                } else {
+                    buffer.writeJson(line);
+                }
+                buffer.write('\n');
+            }
+            return new NByteArrayEntity(buffer.toByteArray(), NDJSON);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private static Buffer acquire() {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    private static void release(Buffer buffer) {
+        if (buffer.capacity() > MAX_RETAINED_BYTES) {
+            buffers.remove();
+        }
+    }
+
+    static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else if (value instanceof String) {
+            writer.value((String) value);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writer.beginObject();
+            if (isOrdered(map)) {
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writer.name(String.valueOf(entry.getKey()));
+                    writeValue(writer, entry.getValue());
+                }
+            } else {
+                TreeMap<String, Object> sorted = new TreeMap<>();
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+                }
+                for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                    writer.name(entry.getKey());
+                    writeValue(writer, entry.getValue());
+                }
+            }
+            writer.endObject();
+        } else if (value instanceof Collection) {
+            writer.beginArray();
+            for (Object element : inWriteOrder((Collection<?>) value)) {
+                writeValue(writer, element);
+            }
+            writer.endArray();
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof JsonElement) {
+            gson.toJson((JsonElement) value, writer);
+        } else {
+            // Arrays and other objects are left to Gson, as gson.toJson would have done
+            gson.toJson(value, value.getClass(), writer);
+        }
+    }
+
+    // Maps whose iteration order is set by the caller, or is the same in every JVM
+    private static boolean isOrdered(Map<?, ?> map) {
+        return map.size() < 2 || map instanceof LinkedHashMap || map instanceof SortedMap;
+    }
+
+    // Lists keep their order; sets without one are sorted when their elements can be compared
+    private static Collection<?> inWriteOrder(Collection<?> collection) {
+        if (!(collection instanceof Set) || collection.size() < 2 || collection instanceof LinkedHashSet
+                || collection instanceof SortedSet) {
+            return collection;
+        }
+        for (Object element : collection) {
+            if (!(element instanceof String) && !(element instanceof Number)) {
+                return collection;
+            }
+        }
+        List<Object> sorted = new ArrayList<>(collection);
+        sorted.sort(Comparator.comparing(String::valueOf));
+        return sorted;
+    }
+
+    /**
+     * Byte buffer with a character writer over it, both reused between bodies
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        private final Writer chars = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+        Buffer() {
+            super(1024);
+        }
+
+        void writeJson(Object value) throws IOException {
+            JsonWriter writer = new JsonWriter(chars);
+            writer.setSerializeNulls(true);
+            writeValue(writer, value);
+            writer.flush();
+        }
+
+        @Override
+        public synchronized void reset() {
+            try {
+                // Drop anything left in the writer by a body that failed part way
+                chars.flush();
+            } catch (IOException e) {
+                // Can't happen when writing to memory
+            }
+            super.reset();
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The few Redis operations the shared second-level cache needs. Kept narrow so that the cache
+ * can run against a standalone server, a cluster, or an in-memory stand-in in tests.
+ */
+public interface RedisStore extends AutoCloseable {
+    byte[] get(byte[] key);
+
+    /**
+     * @param ttlSeconds Time to live, or 0 or less to keep the value until it is deleted
+     */
+    void set(byte[] key, byte[] value, long ttlSeconds);
+
+    void delete(byte[] key);
+
+    /**
+     * SET key value NX PX ttlMillis
+     * @return Whether the key was set
+     */
+    boolean setIfAbsent(String key, String value, long ttlMillis);
+
+    boolean exists(String key);
+
+    /**
+     * Deletes the key only if it still holds the given value
+     */
+    void deleteIfEquals(String key, String value);
+
+    /**
+     * Adds a member to a sorted set scored by when the member expires, drops the members that have
+     * expired, and refreshes the time to live of the set
+     * @param expiresAtMillis When the member expires, in epoch milliseconds, or 0 or less if it doesn't
+     * @param ttlSeconds Time to live of the set, or 0 or less to keep it until it is deleted
+     */
+    void addToIndex(String key, String member, long expiresAtMillis, long ttlSeconds);
+
+    /**
+     * @return Members of the sorted set that haven't expired
+     */
+    Set<String> getIndexMembers(String key);
+
+    void delete(String key);
+
+    void publish(String channel, String message);
+
+    /**
+     * Blocks the calling thread and delivers every message published to the channel until the store is closed
+     */
+    void subscribe(String channel, Consumer<String> listener);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,407 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two-tier cache: the in-process CacheService regions as L1 and Redis, shared by every node, as L2.
+ *
+ * On an L1 miss the value is read from Redis. On an L2 miss only one node computes it, guarded by
+ * a SET NX lock; the others poll Redis for the result instead of repeating the Opensearch queries.
+ * If the lock goes away without a result, because that node failed, they compute it themselves.
+ * Invalidations are published on a channel so that every node drops its L1 copy.
+ *
+ * Within a node, concurrent misses on the same key are coalesced: the first caller loads the value
+ * and the others wait for its result, so a burst of identical requests costs a single load.
+ *
+ * When redis.enable is false this is a thin wrapper around the L1 regions. Redis errors are logged
+ * and treated as misses, so an unavailable Redis only costs the shared warm-up.
+ */
+@Service("TieredCacheService")
+public class TieredCacheService {
+    private static final Logger logger = LogManager.getLogger(TieredCacheService.class);
+
+    private static final String ALL_KEYS = "*";
+    private static final String SEPARATOR = "\n";
+
+    /**
+     * Computes a value on a cache miss
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private final CacheService cacheService;
+    private final RedisStore redis;
+    private final String keyPrefix;
+    private final String channel;
+    private final long ttlSeconds;
+    private final long lockTimeoutMillis;
+    private final long lockWaitMillis;
+    private final long pollIntervalMillis;
+    private final String nodeId = UUID.randomUUID().toString();
+    // Loads in progress on this node, by region and key
+    private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    @Autowired
+    public TieredCacheService(CacheService cacheService,
+                              @Value("${redis.enable:false}") boolean redisEnabled,
+                              @Value("${redis.use_cluster:false}") boolean useCluster,
+                              @Value("${redis.host:localhost}") String host,
+                              @Value("${redis.port:6379}") int port,
+                              @Value("${redis.ttl:-1}") long ttlSeconds,
+                              @Value("${redis.l2.key_prefix:ccdi:cache:}") String keyPrefix,
+                              @Value("${redis.l2.channel:ccdi:cache:invalidate}") String channel,
+                              @Value("${redis.l2.lock_timeout_ms:60000}") long lockTimeoutMillis,
+                              @Value("${redis.l2.lock_wait_ms:60000}") long lockWaitMillis,
+                              @Value("${redis.l2.poll_interval_ms:100}") long pollIntervalMillis) {
+        this(cacheService, redisEnabled ? new JedisRedisStore(host, port, useCluster) : null,
+                keyPrefix, channel, ttlSeconds, lockTimeoutMillis, lockWaitMillis, pollIntervalMillis);
+        logger.info(redisEnabled ? "Initialized Redis second-level cache at {}:{}" : "Redis second-level cache disabled", host, port);
+    }
+
+    TieredCacheService(CacheService cacheService, RedisStore redis, String keyPrefix, String channel, long ttlSeconds,
+                       long lockTimeoutMillis, long lockWaitMillis, long pollIntervalMillis) {
+        this.cacheService = cacheService;
+        this.redis = redis;
+        this.keyPrefix = keyPrefix;
+        this.channel = channel;
+        this.ttlSeconds = ttlSeconds;
+        this.lockTimeoutMillis = lockTimeoutMillis;
+        this.lockWaitMillis = lockWaitMillis;
+        this.pollIntervalMillis = pollIntervalMillis;
+        if (redis != null) {
+            Thread subscriber = new Thread(this::listenForInvalidations, "redis-cache-invalidation");
+            subscriber.setDaemon(true);
+            subscriber.start();
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        closed = true;
+        if (redis != null) {
+            redis.close();
+        }
+    }
+
+    /**
+     * Returns the cached value, computing and caching it on a miss
+     * @param region CacheService region name
+     * @param key Cache key within the region
+     * @param loader Computes the value on a miss
+     * @return Cached or computed value
+     * @throws IOException if the loader fails
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String region, String key, Loader<T> loader) throws IOException {
+        Cache<String, Object> l1 = cacheService.getRegion(region);
+        Object value = l1.getIfPresent(key);
+        if (value != null) {
+            return (T) value;
+        }
+
+        String flightKey = region + SEPARATOR + key;
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(flightKey, flight);
+        if (leader != null) {
+            return (T) await(leader, key);
+        }
+        try {
+            T loaded = load(region, key, l1, loader);
+            flight.complete(loaded);
+            return loaded;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flightKey, flight);
+        }
+    }
+
+    // Waits for the load started by another caller on this node and shares its outcome
+    private Object await(CompletableFuture<Object> leader, String key) throws IOException {
+        try {
+            return leader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for cache entry " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to load cache entry " + key, cause);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T load(String region, String key, Cache<String, Object> l1, Loader<T> loader) throws IOException {
+        // Another caller may have finished loading between the first lookup and taking the lead
+        Object value = l1.getIfPresent(key);
+        if (value != null) {
+            return (T) value;
+        }
+        if (redis == null) {
+            return loadLocally(l1, key, loader);
+        }
+
+        byte[] l2Key = l2Key(region, key);
+        value = readL2(l2Key);
+        if (value != null) {
+            l1.put(key, value);
+            return (T) value;
+        }
+
+        String lockKey = keyPrefix + "lock:" + region + ":" + key;
+        String token = nodeId + ":" + UUID.randomUUID();
+        if (tryLock(lockKey, token)) {
+            try {
+                return loadAndWrite(region, key, l1, loader);
+            } finally {
+                unlock(lockKey, token);
+            }
+        }
+
+        // Another node is computing this entry; wait for its result instead of repeating the work
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockWaitMillis);
+        while (System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(pollIntervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for cache entry " + key, e);
+            }
+            // The result is written before the lock is released: without the lock before reading no result, loading failed
+            boolean locked = isLocked(lockKey);
+            value = readL2(l2Key);
+            if (value != null) {
+                l1.put(key, value);
+                return (T) value;
+            }
+            if (!locked) {
+                logger.info("Another node gave up caching {} in {}, computing it locally", key, region);
+                return loadAndWrite(region, key, l1, loader);
+            }
+        }
+        logger.warn("Timed out waiting for another node to cache {} in {}, computing it locally", key, region);
+        return loadLocally(l1, key, loader);
+    }
+
+    private <T> T loadAndWrite(String region, String key, Cache<String, Object> l1, Loader<T> loader) throws IOException {
+        T loaded = loadLocally(l1, key, loader);
+        writeL2(region, key, loaded);
+        return loaded;
+    }
+
+    /**
+     * Drops a single entry on every node and from Redis
+     */
+    public void invalidate(String region, String key) {
+        cacheService.getRegion(region).invalidate(key);
+        if (redis == null) {
+            return;
+        }
+        try {
+            redis.delete(l2Key(region, key));
+            publish(region, key);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to invalidate {} in Redis region {}", key, region, e);
+        }
+    }
+
+    /**
+     * Drops every entry of a region on every node and from Redis
+     */
+    public void invalidateAll(String region) {
+        cacheService.getRegion(region).invalidateAll();
+        if (redis == null) {
+            return;
+        }
+        try {
+            String indexKey = indexKey(region);
+            for (String key : redis.getIndexMembers(indexKey)) {
+                redis.delete(l2Key(region, key));
+            }
+            redis.delete(indexKey);
+            publish(region, ALL_KEYS);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to invalidate Redis region {}", region, e);
+        }
+    }
+
+    /**
+     * Recomputes an entry and swaps the new value in for the current one, which keeps being served
+     * until then. In a cluster only one node recomputes a given entry at a time; the others drop
+     * their L1 copy when it is done and pick the new value up from Redis.
+     * @param region CacheService region name
+     * @param key Cache key within the region
+     * @param loader Computes the new value
+     * @return Whether this node recomputed the entry, false if another node is already doing so
+     * @throws IOException if the loader fails; the current value is kept
+     */
+    public boolean refresh(String region, String key, Loader<?> loader) throws IOException {
+        Cache<String, Object> l1 = cacheService.getRegion(region);
+        if (redis == null) {
+            loadLocally(l1, key, loader);
+            return true;
+        }
+
+        String lockKey = keyPrefix + "lock:" + region + ":" + key;
+        String token = nodeId + ":" + UUID.randomUUID();
+        if (!tryLock(lockKey, token)) {
+            return false;
+        }
+        try {
+            Object loaded = loadLocally(l1, key, loader);
+            if (loaded != null) {
+                writeL2(region, key, loaded);
+                try {
+                    publish(region, key);
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to publish refresh of {} in region {}", key, region, e);
+                }
+            }
+            return true;
+        } finally {
+            unlock(lockKey, token);
+        }
+    }
+
+    private <T> T loadLocally(Cache<String, Object> l1, String key, Loader<T> loader) throws IOException {
+        T loaded = loader.load();
+        if (loaded != null) {
+            l1.put(key, loaded);
+        }
+        return loaded;
+    }
+
+    private Object readL2(byte[] l2Key) {
+        try {
+            byte[] bytes = redis.get(l2Key);
+            return bytes == null ? null : BinaryCodec.decode(bytes);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to read from Redis cache", e);
+            return null;
+        }
+    }
+
+    private void writeL2(String region, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        try {
+            long ttl = getTtlSeconds(region);
+            redis.set(l2Key(region, key), BinaryCodec.encode(value), ttl);
+            // The region's index forgets entries once they expire, and expires itself with its latest entry
+            redis.addToIndex(indexKey(region), key, ttl > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl) : 0, ttl);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to write to Redis cache", e);
+        }
+    }
+
+    private boolean tryLock(String lockKey, String token) {
+        try {
+            return redis.setIfAbsent(lockKey, token, lockTimeoutMillis);
+        } catch (RuntimeException e) {
+            // Without Redis there is nobody to coordinate with
+            logger.warn("Failed to acquire Redis cache lock", e);
+            return true;
+        }
+    }
+
+    private boolean isLocked(String lockKey) {
+        try {
+            return redis.exists(lockKey);
+        } catch (RuntimeException e) {
+            // Like other Redis errors, this counts as a miss
+            logger.warn("Failed to check Redis cache lock", e);
+            return false;
+        }
+    }
+
+    private void unlock(String lockKey, String token) {
+        try {
+            redis.deleteIfEquals(lockKey, token);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to release Redis cache lock, it will expire on its own", e);
+        }
+    }
+
+    // Entries live in Redis as long as in L1 unless redis.ttl overrides it
+    private long getTtlSeconds(String region) {
+        if (ttlSeconds > 0) {
+            return ttlSeconds;
+        }
+        return cacheService.getRegion(region).policy().expireAfterWrite()
+                .map(expiration -> expiration.getExpiresAfter(TimeUnit.SECONDS))
+                .orElse(0L);
+    }
+
+    // Messages carry the publishing node, which has already updated its own L1
+    private void publish(String region, String key) {
+        redis.publish(channel, nodeId + SEPARATOR + region + SEPARATOR + key);
+    }
+
+    private void listenForInvalidations() {
+        while (!closed) {
+            try {
+                redis.subscribe(channel, this::onInvalidation);
+            } catch (RuntimeException e) {
+                if (closed) {
+                    return;
+                }
+                logger.warn("Lost Redis cache invalidation subscription, reconnecting", e);
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    void onInvalidation(String message) {
+        String[] parts = message.split(SEPARATOR, 3);
+        if (parts.length < 3 || parts[0].equals(nodeId)) {
+            return;
+        }
+        String region = parts[1];
+        String key = parts[2];
+        if (!cacheService.getRegions().containsKey(region)) {
+            return;
+        }
+        if (key.equals(ALL_KEYS)) {
+            cacheService.getRegion(region).invalidateAll();
+        } else {
+            cacheService.getRegion(region).invalidate(key);
+        }
+    }
+
+    private byte[] l2Key(String region, String key) {
+        return (keyPrefix + region + ":" + key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String indexKey(String region) {
+        return keyPrefix + "index:" + region;
+    }
+}
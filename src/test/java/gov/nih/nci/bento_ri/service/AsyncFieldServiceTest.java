@@ -0,0 +1,114 @@
+package gov.nih.nci.bento_ri.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for AsyncFieldService
+ */
+public class AsyncFieldServiceTest {
+
+    /**
+     * Fields run at the same time: each one waits for the other to start
+     */
+    @Test
+    public void runsFieldsConcurrently() throws Exception {
+        AsyncFieldService service = new AsyncFieldService(true, 2, 0, 1, 5000, "", "", false, new SimpleMeterRegistry(), ObservationRegistry.NOOP);
+        CountDownLatch started = new CountDownLatch(2);
+        CompletableFuture<Object> first = service.async("first", env -> {
+            started.countDown();
+            return started.await(5, TimeUnit.SECONDS) ? "first" : null;
+        }).get(null);
+        CompletableFuture<Object> second = service.async("second", env -> {
+            started.countDown();
+            return started.await(5, TimeUnit.SECONDS) ? "second" : null;
+        }).get(null);
+
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A field past its own time limit fails, and its work is interrupted
+     */
+    @Test
+    public void timesOutSlowFields() throws Exception {
+        AsyncFieldService service = new AsyncFieldService(true, 2, 0, 1, 5000, "slow:50, bad", "", false, new SimpleMeterRegistry(), ObservationRegistry.NOOP);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CompletableFuture<Object> slow = service.async("slow", env -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "slow";
+        }).get(null);
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> slow.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, error.getCause());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(Map.of("slow", 50L), AsyncFieldService.parseTimeouts("slow:50, bad"));
+    }
+
+    /**
+     * Bulk fields run on their own pool, so a busy export doesn't hold up other fields
+     */
+    @Test
+    public void runsBulkFieldsApart() throws Exception {
+        AsyncFieldService service = new AsyncFieldService(true, 1, 0, 1, 5000, "", "export", false, new SimpleMeterRegistry(), ObservationRegistry.NOOP);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> export = service.async("export", env -> release.await(5, TimeUnit.SECONDS)).get(null);
+        CompletableFuture<Object> field = service.async("field", env -> Thread.currentThread().getName()).get(null);
+
+        assertTrue(((String) field.get(5, TimeUnit.SECONDS)).startsWith("graphql-field-"));
+        assertFalse(export.isDone());
+        release.countDown();
+        assertEquals(true, export.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A field's time limit counts from when it starts running, not while it waits in the queue
+     */
+    @Test
+    public void timesOutFromStart() throws Exception {
+        AsyncFieldService service = new AsyncFieldService(true, 1, 1, 1, 5000, "queued:200", "", false, new SimpleMeterRegistry(), ObservationRegistry.NOOP);
+        CompletableFuture<Object> first = service.async("first", env -> {
+            Thread.sleep(400);
+            return "first";
+        }).get(null);
+        CompletableFuture<Object> queued = service.async("queued", env -> "queued").get(null);
+
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A field finding its pool and queue full runs on the request thread, without being interrupted
+     */
+    @Test
+    public void runsOnRequestThreadWhenFull() throws Exception {
+        AsyncFieldService service = new AsyncFieldService(true, 1, 0, 1, 5000, "inline:50", "", false, new SimpleMeterRegistry(), ObservationRegistry.NOOP);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> busy = service.async("busy", env -> release.await(5, TimeUnit.SECONDS)).get(null);
+        CompletableFuture<Object> inline = service.async("inline", env -> {
+            Thread.sleep(100);
+            return Thread.currentThread();
+        }).get(null);
+
+        assertTrue(inline.isDone());
+        assertSame(Thread.currentThread(), inline.get());
+        assertFalse(Thread.interrupted());
+        release.countDown();
+        assertEquals(true, busy.get(5, TimeUnit.SECONDS));
+    }
+}
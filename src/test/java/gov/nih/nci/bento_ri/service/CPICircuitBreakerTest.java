@@ -0,0 +1,71 @@
+package gov.nih.nci.bento_ri.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for CPICircuitBreaker
+ */
+public class CPICircuitBreakerTest {
+
+    /**
+     * The breaker opens after failures in a row only, and then turns fetches away
+     */
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CPICircuitBreaker breaker = new CPICircuitBreaker(3, 60000, new SimpleMeterRegistry());
+        breaker.onFailure(false);
+        breaker.onFailure(true);
+        breaker.onSuccess();
+        breaker.onFailure(false);
+        breaker.onFailure(false);
+        assertEquals(CPICircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+
+        breaker.onFailure(true);
+        assertEquals(CPICircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    /**
+     * Once open long enough, a single probe goes through, which closes the breaker or opens it again
+     */
+    @Test
+    public void probesAfterOpenPeriod() throws Exception {
+        CPICircuitBreaker breaker = new CPICircuitBreaker(1, 20, new SimpleMeterRegistry());
+        breaker.onFailure(false);
+        assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(30);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CPICircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        breaker.onFailure(true);
+        assertEquals(CPICircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(30);
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(CPICircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    /**
+     * A probe that couldn't start leaves the breaker open without counting as a failure, and the next fetch probes instead
+     */
+    @Test
+    public void releasesProbeThatCouldNotStart() throws Exception {
+        CPICircuitBreaker breaker = new CPICircuitBreaker(1, 20, new SimpleMeterRegistry());
+        breaker.onFailure(false);
+        Thread.sleep(30);
+        assertTrue(breaker.tryAcquire());
+        breaker.onRejected();
+        assertEquals(CPICircuitBreaker.State.OPEN, breaker.getState());
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(CPICircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,341 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import gov.nih.nci.bento_ri.model.FormattedCPIResponse;
+import gov.nih.nci.bento_ri.model.ParticipantRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for CPIFetcherService, against a stub CPI service
+ */
+public class CPIFetcherServiceTest {
+    private static final String STUDY = "PCDC";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    // Participant IDs of each associations request, in the order received
+    private final List<List<String>> requests = new CopyOnWriteArrayList<>();
+    // Associated participant IDs by participant; participants not listed aren't in the response
+    private final Map<String, List<String>> associated = new HashMap<>();
+    // Participants whose whole chunk fails with a server error
+    private final Set<String> failing = new HashSet<>();
+    // Statuses of the next associations requests, answered normally once empty
+    private final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+    // Delays of the next associations requests, delayMs once empty
+    private final Queue<Long> delays = new ConcurrentLinkedQueue<>();
+    private volatile long delayMs = 0;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private CPICircuitBreaker breaker;
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private int fetchThreads = 16;
+
+    @BeforeEach
+    public void startCpiService() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/token", exchange -> respond(exchange, 200,
+                "{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"expires_in\":3600}"));
+        server.createContext("/domains", exchange -> respond(exchange, 200,
+                "[{\"domain_name\":\"GDC\",\"domain_description\":\"Genomic Data Commons\",\"domain_category\":\"genomic\",\"data_location\":\"https://gdc\"}]"));
+        server.createContext("/associations", exchange -> {
+            List<String> participantIds = new ArrayList<>();
+            for (JsonNode participant : MAPPER.readTree(exchange.getRequestBody()).get("participant_ids")) {
+                participantIds.add(participant.get("participant_id").asText());
+            }
+            requests.add(participantIds);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Long delay = delays.poll();
+                Thread.sleep(delay != null ? delay : delayMs);
+                Integer status = statuses.poll();
+                if (status != null && status != 200) {
+                    respond(exchange, status, "status " + status);
+                } else if (participantIds.stream().anyMatch(failing::contains)) {
+                    respond(exchange, 500, "failed");
+                } else {
+                    respond(exchange, 200, associations(participantIds));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The client gave up on a delayed request
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopCpiService() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private String associations(List<String> participantIds) throws IOException {
+        List<Map<String, Object>> participants = new ArrayList<>();
+        for (String participantId : participantIds) {
+            List<String> ids = associated.get(participantId);
+            if (ids != null) {
+                participants.add(Map.of("participant_id", participantId, "domain_name", STUDY, "associated_ids", ids.stream()
+                        .map(id -> Map.of("participant_id", id, "domain_name", "GDC"))
+                        .collect(Collectors.toList())));
+            }
+        }
+        return MAPPER.writeValueAsString(Map.of("participant_ids", participants));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private CPIFetcherService service(int chunkSize, int retries) throws Exception {
+        return service(chunkSize, 4, 5000, retries, 10, 5);
+    }
+
+    private CPIFetcherService service(int chunkSize, int maxConcurrency, long timeoutMs, int retries, long backoffMs,
+            int failureThreshold) throws Exception {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("test", Map.of("cache.stats.log_interval_minutes", "0")));
+        String url = "http://localhost:" + server.getAddress().getPort();
+        CPITokenManager tokenManager = new CPITokenManager("client", "secret", url + "/token", "custom", 60, ObservationRegistry.NOOP);
+        breaker = new CPICircuitBreaker(failureThreshold, 60000, meterRegistry);
+        CPIFetcherService service = new CPIFetcherService(chunkSize, maxConcurrency, timeoutMs, retries, backoffMs, 0, fetchThreads,
+                new CacheService(environment), ObservationRegistry.NOOP, tokenManager, breaker);
+        setField(service, "apiUrl", url + "/associations");
+        setField(service, "domainsUrl", url + "/domains");
+        return service;
+    }
+
+    private static void setField(Object target, String name, String value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static List<ParticipantRequest> participants(String... participantIds) {
+        return Arrays.stream(participantIds).map(id -> new ParticipantRequest(id, STUDY)).collect(Collectors.toList());
+    }
+
+    // Associated participant IDs returned for each participant, by participant
+    private static Map<String, List<String>> associatedIds(List<FormattedCPIResponse> responses) {
+        Map<String, List<String>> ids = new HashMap<>();
+        for (FormattedCPIResponse response : responses) {
+            ids.put(response.getParticipantId(), response.getCpiData().stream()
+                    .map(FormattedCPIResponse.CPIDataItem::getAssociatedId)
+                    .collect(Collectors.toList()));
+        }
+        return ids;
+    }
+
+    /**
+     * Only participants missing from the cache are sent, once each; those without associations are cached too
+     */
+    @Test
+    public void sendsOnlyUncachedParticipants() throws Exception {
+        associated.put("p1", List.of("g1", "g2"));
+        associated.put("p2", List.of());
+        associated.put("p4", List.of("g4"));
+        CPIFetcherService service = service(200, 0);
+
+        List<FormattedCPIResponse> responses = service.fetchAssociatedParticipantIds(participants("p1", "p2", "p3", "p1"));
+        assertEquals(List.of(List.of("p1", "p2", "p3")), requests);
+        assertEquals(4, responses.size());
+        assertEquals(Map.of("p1", List.of("g1", "g2"), "p2", List.of(), "p3", List.of()), associatedIds(responses));
+        FormattedCPIResponse.CPIDataItem item = responses.get(0).getCpiData().get(0);
+        assertEquals("GDC", item.getRepositoryOfSynonymId());
+        assertEquals("Genomic Data Commons", item.getDomainDescription());
+        assertEquals("genomic", item.getDomainCategory());
+
+        // p2 had empty associations and p3 none in the response; neither is asked about again
+        responses = service.fetchAssociatedParticipantIds(participants("p3", "p4", "p2", "p1"));
+        assertEquals(List.of(List.of("p1", "p2", "p3"), List.of("p4")), requests);
+        assertEquals(Map.of("p1", List.of("g1", "g2"), "p2", List.of(), "p3", List.of(), "p4", List.of("g4")), associatedIds(responses));
+
+        // Callers may modify the lists they get without changing the cached ones
+        responses.get(3).getCpiData().clear();
+        assertEquals(List.of("g1", "g2"), associatedIds(service.fetchAssociatedParticipantIds(participants("p1"))).get("p1"));
+        assertEquals(2, requests.size());
+    }
+
+    /**
+     * Participants of a failed request get no associations, and are asked about again on the next call
+     */
+    @Test
+    public void doesNotCacheFailedParticipants() throws Exception {
+        associated.put("p1", List.of("g1"));
+        associated.put("p3", List.of("g3"));
+        failing.add("p2");
+        CPIFetcherService service = service(2, 0);
+
+        List<FormattedCPIResponse> responses = service.fetchAssociatedParticipantIds(participants("p1", "p2", "p3", "p4"));
+        assertEquals(Map.of("p1", List.of(), "p2", List.of(), "p3", List.of("g3"), "p4", List.of()), associatedIds(responses));
+
+        failing.clear();
+        requests.clear();
+        responses = service.fetchAssociatedParticipantIds(participants("p1", "p2", "p3", "p4"));
+        assertEquals(List.of(List.of("p1", "p2")), requests);
+        assertEquals(Map.of("p1", List.of("g1"), "p2", List.of(), "p3", List.of("g3"), "p4", List.of()), associatedIds(responses));
+    }
+
+    /**
+     * Participants are sent in chunks of cpi.chunk.size, each participant in one chunk
+     */
+    @Test
+    public void splitsIntoChunks() throws Exception {
+        associated.put("p5", List.of("g5"));
+        CPIFetcherService service = service(2, 0);
+
+        List<FormattedCPIResponse> responses = service.fetchAssociatedParticipantIds(participants("p1", "p2", "p3", "p4", "p5"));
+        assertEquals(List.of(1, 2, 2), requests.stream().map(List::size).sorted().collect(Collectors.toList()));
+        assertEquals(List.of("p1", "p2", "p3", "p4", "p5"), requests.stream().flatMap(List::stream).sorted().collect(Collectors.toList()));
+        assertEquals(List.of("g5"), associatedIds(responses).get("p5"));
+    }
+
+    /**
+     * Rate limited and failed requests are retried after a growing backoff
+     */
+    @Test
+    public void retriesServerErrorsAndRateLimits() throws Exception {
+        associated.put("p1", List.of("g1"));
+        statuses.addAll(List.of(503, 429));
+        CPIFetcherService service = service(200, 4, 5000, 2, 100, 5);
+
+        long start = System.nanoTime();
+        List<FormattedCPIResponse> responses = service.fetchAssociatedParticipantIds(participants("p1"));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(3, requests.size());
+        assertEquals(List.of("g1"), associatedIds(responses).get("p1"));
+        // At least half of each backoff, 100 then 200 ms, is waited
+        assertTrue(elapsedMs >= 150, elapsedMs + " ms");
+    }
+
+    /**
+     * Requests the CPI service rejected are not retried, and their participants not cached
+     */
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        associated.put("p1", List.of("g1"));
+        CPIFetcherService service = service(200, 2);
+
+        for (int status : List.of(400, 404)) {
+            requests.clear();
+            statuses.add(status);
+            assertEquals(List.of(), associatedIds(service.fetchAssociatedParticipantIds(participants("p1"))).get("p1"));
+            assertEquals(1, requests.size(), "status " + status);
+        }
+
+        requests.clear();
+        assertEquals(List.of("g1"), associatedIds(service.fetchAssociatedParticipantIds(participants("p1"))).get("p1"));
+        assertEquals(1, requests.size());
+    }
+
+    /**
+     * A request running past cpi.chunk.timeout_ms is retried
+     */
+    @Test
+    public void retriesTimeouts() throws Exception {
+        associated.put("p1", List.of("g1"));
+        delays.add(2000L);
+        CPIFetcherService service = service(200, 4, 300, 1, 10, 5);
+
+        assertEquals(List.of("g1"), associatedIds(service.fetchAssociatedParticipantIds(participants("p1"))).get("p1"));
+        assertEquals(2, requests.size());
+    }
+
+    /**
+     * Only a fetch whose every chunk failed counts as a failure, and retries are given up after cpi.chunk.retries
+     */
+    @Test
+    public void failsWhenEveryChunkFails() throws Exception {
+        associated.put("p2", List.of("g2"));
+        CPIFetcherService service = service(1, 4, 5000, 1, 10, 1);
+
+        failing.add("p1");
+        assertEquals(Map.of("p1", List.of(), "p2", List.of("g2")), associatedIds(service.fetchAssociatedParticipantIds(participants("p1", "p2"))));
+        assertEquals(CPICircuitBreaker.State.CLOSED, breaker.getState());
+
+        failing.addAll(List.of("p3", "p4"));
+        requests.clear();
+        assertEquals(Map.of("p1", List.of(), "p3", List.of(), "p4", List.of()),
+                associatedIds(service.fetchAssociatedParticipantIds(participants("p1", "p3", "p4"))));
+        assertEquals(6, requests.size());
+        assertEquals(CPICircuitBreaker.State.OPEN, breaker.getState());
+
+        // Nothing was cached, but the open breaker keeps CPI from being called
+        requests.clear();
+        failing.clear();
+        assertEquals(Map.of("p1", List.of(), "p2", List.of("g2")), associatedIds(service.fetchAssociatedParticipantIds(participants("p1", "p2"))));
+        assertTrue(requests.isEmpty());
+    }
+
+    /**
+     * No more than cpi.chunk.max_concurrency chunks are in flight at once
+     */
+    @Test
+    public void capsConcurrentChunks() throws Exception {
+        delayMs = 100;
+        CPIFetcherService service = service(1, 2, 5000, 0, 10, 5);
+
+        service.fetchAssociatedParticipantIds(participants("p1", "p2", "p3", "p4", "p5", "p6"));
+        assertEquals(6, requests.size());
+        assertEquals(2, maxInFlight.get());
+    }
+
+    /**
+     * A request finding every fetch thread busy skips CPI instead of waiting, and is counted as rejected
+     */
+    @Test
+    public void skipsCpiWithoutFreeFetchThread() throws Exception {
+        associated.put("p1", List.of("g1"));
+        associated.put("p2", List.of("g2"));
+        delays.add(500L);
+        fetchThreads = 1;
+        CPIFetcherService service = service(200, 0);
+
+        CompletableFuture<List<FormattedCPIResponse>> first = CompletableFuture.supplyAsync(
+                () -> service.fetchAssociatedParticipantIds(participants("p1")));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (inFlight.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of(), associatedIds(service.fetchAssociatedParticipantIds(participants("p2"))).get("p2"));
+        assertEquals(1.0, meterRegistry.get("cpi.breaker.calls").tag("outcome", "rejected").counter().count());
+
+        assertEquals(List.of("g1"), associatedIds(first.get()).get("p1"));
+        assertEquals(List.of("g2"), associatedIds(service.fetchAssociatedParticipantIds(participants("p2"))).get("p2"));
+        assertEquals(List.of(List.of("p1"), List.of("p2")), requests);
+    }
+}
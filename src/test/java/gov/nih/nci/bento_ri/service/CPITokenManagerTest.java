@@ -0,0 +1,127 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for CPITokenManager, against a stub token endpoint
+ */
+public class CPITokenManagerTest {
+    private HttpServer server;
+    private final AtomicInteger issued = new AtomicInteger();
+    private volatile int expiresIn = 3600;
+    private volatile long delayMs = 0;
+
+    @BeforeEach
+    public void startTokenEndpoint() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/token", exchange -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean authorized = exchange.getRequestHeaders().getFirst("Authorization").startsWith("Basic ");
+            byte[] body = String.format("{\"access_token\":\"token-%d\",\"token_type\":\"Bearer\",\"expires_in\":%d}",
+                    issued.incrementAndGet(), expiresIn).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(authorized ? 200 : 401, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopTokenEndpoint() {
+        server.stop(0);
+    }
+
+    private CPITokenManager manager(long refreshMarginSeconds) {
+        String tokenUri = "http://localhost:" + server.getAddress().getPort() + "/token";
+        return new CPITokenManager("client", "secret", tokenUri, "custom", refreshMarginSeconds, ObservationRegistry.NOOP);
+    }
+
+    /**
+     * A token is requested once and reused until it nears its expiry
+     */
+    @Test
+    public void reusesTokenUntilExpiry() throws Exception {
+        CPITokenManager manager = manager(60);
+        assertEquals("token-1", manager.getToken());
+        assertEquals("token-1", manager.getToken());
+        assertEquals(1, issued.get());
+    }
+
+    /**
+     * Callers needing a token at the same time share a single token request
+     */
+    @Test
+    public void requestsOneTokenForConcurrentCallers() throws Exception {
+        delayMs = 200;
+        CPITokenManager manager = manager(60);
+        List<CompletableFuture<String>> tokens = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tokens.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return manager.getToken();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<String> token : tokens) {
+            assertEquals("token-1", token.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, issued.get());
+    }
+
+    /**
+     * A token near its expiry is still used while the next one is requested in the background
+     */
+    @Test
+    public void refreshesTokenInBackground() throws Exception {
+        expiresIn = 1;
+        CPITokenManager manager = manager(60);
+        assertEquals("token-1", manager.getToken());
+        expiresIn = 3600;
+        Thread.sleep(600);
+        assertEquals("token-1", manager.getToken());
+        // The new token is only handed out once the background request stored it
+        String token = manager.getToken();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (token.equals("token-1") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            token = manager.getToken();
+        }
+        assertEquals("token-2", token);
+        assertEquals(2, issued.get());
+    }
+
+    /**
+     * A rejected token is replaced once, however many callers report it
+     */
+    @Test
+    public void replacesRejectedTokenOnce() throws Exception {
+        CPITokenManager manager = manager(60);
+        String rejected = manager.getToken();
+        assertEquals("token-2", manager.refreshAsync(rejected).get());
+        assertEquals("token-2", manager.refreshAsync(rejected).get());
+        assertEquals("token-2", manager.getToken());
+        assertEquals(2, issued.get());
+    }
+}
@@ -0,0 +1,127 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for CacheService
+ */
+public class CacheServiceTest {
+
+    private static CacheService newCacheService(Map<String, Object> properties) {
+        Map<String, Object> all = new HashMap<>(properties);
+        all.put("cache.stats.log_interval_minutes", "0");
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("test", all));
+        return new CacheService(environment);
+    }
+
+    private static long maxWeight(Cache<String, Object> cache) {
+        return cache.policy().eviction().orElseThrow().getMaximum();
+    }
+
+    private static long expireMinutes(Cache<String, Object> cache) {
+        return cache.policy().expireAfterWrite().orElseThrow().getExpiresAfter(TimeUnit.MINUTES);
+    }
+
+    /**
+     * Strings and boxed values weigh their fixed overhead, strings one byte more per character
+     */
+    @Test
+    public void weighsStringsAndScalars() {
+        assertEquals(0L, CacheService.estimateSize(null));
+        assertEquals(40L, CacheService.estimateSize(""));
+        assertEquals(45L, CacheService.estimateSize("hello"));
+        assertEquals(24L, CacheService.estimateSize(42));
+        assertEquals(24L, CacheService.estimateSize(true));
+        assertEquals(256L, CacheService.estimateSize(new Object()));
+    }
+
+    /**
+     * Maps, lists and arrays weigh their entries plus a per-entry overhead
+     */
+    @Test
+    public void weighsCollectionsAndArrays() {
+        long a = CacheService.estimateSize("a");
+        long one = CacheService.estimateSize(1);
+
+        assertEquals(48L, CacheService.estimateSize(Map.of()));
+        assertEquals(48L + 32 + a + one, CacheService.estimateSize(Map.of("a", 1)));
+        assertEquals(32L + 2 * (8 + a), CacheService.estimateSize(List.of("a", "a")));
+        assertEquals(24L + 3 * 8, CacheService.estimateSize(new long[3]));
+        assertEquals(24L + 2 * 8 + a, CacheService.estimateSize(new Object[]{"a", null}));
+
+        // Nested values are walked
+        assertEquals(48L + 32 + a + CacheService.estimateSize(List.of("a", "a")),
+                CacheService.estimateSize(Map.of("a", List.of("a", "a"))));
+        assertTrue(CacheService.estimateSize(List.of(Map.of("a", 1), Map.of("a", 1))) > 2 * CacheService.estimateSize(Map.of("a", 1)));
+    }
+
+    /**
+     * Gson trees are weighed like the maps and lists they hold
+     */
+    @Test
+    public void weighsJsonElements() {
+        long a = CacheService.estimateSize("a");
+        long number = 16 + 16;
+        long string = 16 + a;
+
+        assertEquals(48L, CacheService.estimateSize(new JsonObject()));
+        assertEquals(32L, CacheService.estimateSize(new JsonArray()));
+        assertEquals(48L + 32 + a + number, CacheService.estimateSize(JsonParser.parseString("{\"a\":1}")));
+        assertEquals(32L + 2 * 8 + number + string, CacheService.estimateSize(JsonParser.parseString("[1,\"a\"]")));
+        assertEquals(16L, CacheService.estimateSize(JsonParser.parseString("null")));
+    }
+
+    /**
+     * Each region takes its own properties where set, and its defaults otherwise
+     */
+    @Test
+    public void configuresRegionsFromProperties() {
+        CacheService cacheService = newCacheService(Map.of(
+                "cache.facet_counts.expire_after_write_minutes", "5",
+                "cache.facet_counts.max_weight_mb", "2",
+                "cache.cpi_associations.max_weight_mb", "3"));
+
+        Cache<String, Object> facetCounts = cacheService.getRegion(CacheService.FACET_COUNTS);
+        assertEquals(5L, expireMinutes(facetCounts));
+        assertEquals(2L * 1024 * 1024, maxWeight(facetCounts));
+
+        // Only the weight is overridden; the expiry keeps its default
+        Cache<String, Object> associations = cacheService.getRegion(CacheService.CPI_ASSOCIATIONS);
+        assertEquals(60L, expireMinutes(associations));
+        assertEquals(3L * 1024 * 1024, maxWeight(associations));
+
+        Cache<String, Object> studyDetails = cacheService.getRegion(CacheService.STUDY_DETAILS);
+        assertEquals(480L, expireMinutes(studyDetails));
+        assertEquals(16L * 1024 * 1024, maxWeight(studyDetails));
+
+        assertThrows(IllegalArgumentException.class, () -> cacheService.getRegion("unknown"));
+    }
+
+    /**
+     * Regions are bounded by the weight of their values, not by how many there are
+     */
+    @Test
+    public void evictsByWeight() {
+        CacheService cacheService = newCacheService(Map.of("cache.id_lists.max_weight_mb", "1"));
+        Cache<String, Object> idLists = cacheService.getRegion(CacheService.ID_LISTS);
+        String large = "x".repeat(300 * 1024);
+        for (int i = 0; i < 10; i++) {
+            idLists.put("key" + i, large);
+        }
+        idLists.cleanUp();
+        assertTrue(idLists.estimatedSize() <= 4);
+        assertTrue(idLists.estimatedSize() > 0);
+    }
+}
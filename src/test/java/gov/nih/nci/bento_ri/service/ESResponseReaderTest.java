@@ -0,0 +1,122 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for ESResponseReader
+ */
+public class ESResponseReaderTest {
+    private static final String[][] PROPERTIES = {{"id", "participant_id"}, {"sex", "sex_at_birth"}};
+
+    private static void read(ESResponseReader reader, String body) throws IOException {
+        reader.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String page(String scrollId, String... ids) {
+        StringBuilder hits = new StringBuilder();
+        for (String id : ids) {
+            if (hits.length() > 0) {
+                hits.append(',');
+            }
+            hits.append("{\"_id\":\"").append(id).append("\",\"_source\":{\"participant_id\":\"").append(id)
+                    .append("\",\"sex_at_birth\":\"Female\",\"unused\":{\"a\":[1,2]}}}");
+        }
+        return "{\"_scroll_id\":\"" + scrollId + "\",\"took\":3,\"hits\":{\"total\":{\"value\":5,\"relation\":\"eq\"},\"hits\":[" + hits + "]}}";
+    }
+
+    /**
+     * Skip and limit apply to the hits of all the scroll pages read, not to each page
+     */
+    @Test
+    public void skipsAndLimitsAcrossPages() throws IOException {
+        ESResponseReader reader = new ESResponseReader(PROPERTIES, null, Set.of(), 3, 2);
+        read(reader, page("s1", "p1", "p2"));
+        assertEquals("s1", reader.getScrollId());
+        assertEquals(2, reader.getHitCount());
+        assertTrue(reader.getRows().isEmpty());
+        assertFalse(reader.isFull());
+
+        read(reader, page("s2", "p3", "p4"));
+        assertEquals(1, reader.getRows().size());
+        assertFalse(reader.isFull());
+
+        read(reader, page("s3", "p5", "p6"));
+        assertEquals("s3", reader.getScrollId());
+        assertEquals(2, reader.getHitCount());
+        assertTrue(reader.isFull());
+        assertEquals(List.of("p4", "p5"), List.of(reader.getRows().get(0).get("id"), reader.getRows().get(1).get("id")));
+        assertEquals(Map.of("id", "p4", "sex", "Female"), reader.getRows().get(0));
+        assertEquals(3L, reader.getTook());
+    }
+
+    /**
+     * hits.total is read as a number from older clusters and as {"value": n} from newer ones
+     */
+    @Test
+    public void readsBothTotalFormats() throws IOException {
+        ESResponseReader reader = new ESResponseReader(null, null, Set.of(), 0, 10);
+        read(reader, "{\"hits\":{\"total\":42,\"max_score\":null,\"hits\":[]}}");
+        assertEquals(42L, reader.getTotal());
+
+        reader = new ESResponseReader(null, null, Set.of(), 0, 10);
+        read(reader, "{\"hits\":{\"total\":{\"value\":7,\"relation\":\"gte\"},\"hits\":[]}}");
+        assertEquals(7L, reader.getTotal());
+        assertEquals(-1L, reader.getTook());
+        assertNull(reader.getScrollId());
+    }
+
+    /**
+     * Only the requested aggregations are kept, and hits are skipped when no field is requested
+     */
+    @Test
+    public void keepsRequestedAggregations() throws IOException {
+        ESResponseReader reader = new ESResponseReader(null, null, Set.of("sex_at_birth"), 0, 10);
+        read(reader, "{\"hits\":{\"total\":2,\"hits\":[{\"_source\":{\"sex_at_birth\":\"Male\"}}]},\"aggregations\":{"
+                + "\"race\":{\"buckets\":[{\"key\":\"Asian\",\"doc_count\":1}]},"
+                + "\"sex_at_birth\":{\"buckets\":[{\"key\":\"Male\",\"doc_count\":2}]}}}");
+        assertEquals(Set.of("sex_at_birth"), reader.getAggregations().keySet());
+        assertEquals(2, reader.getAggregations().get("sex_at_birth").getAsJsonArray("buckets").get(0)
+                .getAsJsonObject().get("doc_count").getAsInt());
+        assertEquals(1, reader.getHitCount());
+        assertTrue(reader.getRows().isEmpty());
+    }
+
+    /**
+     * Entries of the values field are flattened across hits; hits missing it, or where it isn't an array, add nothing
+     */
+    @Test
+    public void flattensValuesField() throws IOException {
+        ESResponseReader reader = new ESResponseReader(null, "file_ids", Set.of(), 0, 10);
+        read(reader, "{\"hits\":{\"total\":4,\"hits\":["
+                + "{\"_source\":{\"file_ids\":[\"f1\",\"f2\"]}},"
+                + "{\"_source\":{\"other\":[\"x\"]}},"
+                + "{\"_source\":{\"file_ids\":\"f3\"}},"
+                + "{\"_source\":{\"file_ids\":[\"f4\"]}}]}}");
+        assertEquals(List.of("f1", "f2", "f4"), reader.getValues());
+        assertTrue(reader.getRows().isEmpty());
+        assertFalse(reader.isFull());
+    }
+
+    /**
+     * The reader is full once it collected as many hits as its limit, and later hits are only counted
+     */
+    @Test
+    public void isFullAtLimit() throws IOException {
+        ESResponseReader reader = new ESResponseReader(PROPERTIES, null, Set.of(), 0, 2);
+        read(reader, page("s1", "p1"));
+        assertFalse(reader.isFull());
+        read(reader, page("s2", "p2", "p3"));
+        assertTrue(reader.isFull());
+        assertEquals(2, reader.getRows().size());
+        assertEquals(2, reader.getHitCount());
+
+        assertTrue(new ESResponseReader(PROPERTIES, null, Set.of(), 0, 0).isFull());
+    }
+}
@@ -0,0 +1,333 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for FacetFilterModel
+ */
+public class FacetFilterModelTest {
+    private static final Set<String> RANGE_PARAMS = Set.of("age_at_diagnosis", "participant_age_at_collection",
+            "age_at_treatment_start", "age_at_treatment_end", "age_at_response", "age_at_last_known_survival_status");
+
+    private static FacetFilterModel model;
+    private static FacetFilterModel flattenedModel;
+
+    @BeforeAll
+    public static void loadModel() throws IOException {
+        try (InputStream stream = FacetFilterModelTest.class.getResourceAsStream("/yaml/" + FacetFilterModel.FILTER_PATHS_FILE)) {
+            Map<String, Object> definition = new Yaml().load(stream);
+            model = new FacetFilterModel(definition);
+            flattenedModel = new FacetFilterModel(definition, true);
+        }
+    }
+
+    private static Object query(Map<String, Object> params, String indexType) throws IOException {
+        return model.buildQuery(params, RANGE_PARAMS, Set.of("first"), indexType).get("query");
+    }
+
+    private static Map<String, Object> nested(String path, Object... clauses) {
+        return Map.of("nested", Map.of("path", path, "query", Map.of("bool", Map.of("filter", List.of(clauses)))));
+    }
+
+    /**
+     * Filters that select everything, excluded arguments and unknownAges choices alone give match_all
+     */
+    @Test
+    public void matchesAllWithoutFilters() throws IOException {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("race", List.of(""));
+        params.put("diagnosis", List.of());
+        params.put("first", 10);
+        params.put("age_at_diagnosis", List.of(0));
+        params.put("age_at_diagnosis_unknownAges", List.of(""));
+
+        assertEquals(Map.of("match_all", Map.of()), query(params, "participants_table"));
+        assertEquals(Map.of("match_all", Map.of()), query(params, "files_table"));
+    }
+
+    /**
+     * Parameters of the index's own node are matched at the top level, others in their nested documents
+     */
+    @Test
+    public void routesTermsByIndex() throws IOException {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("diagnosis", List.of("Neuroblastoma"));
+        params.put("treatment_type", List.of("Surgery"));
+        params.put("participant_ids", List.of("P1"));
+
+        assertEquals(Map.of("bool", Map.of("filter", List.of(
+                Map.of("terms", Map.of("participant_id", List.of("P1"))),
+                nested("treatment_filters", Map.of("terms", Map.of("treatment_filters.treatment_type", List.of("Surgery")))),
+                nested("sample_diagnosis_genetic_analysis_file_filters",
+                        Map.of("terms", Map.of("sample_diagnosis_genetic_analysis_file_filters.diagnosis", List.of("Neuroblastoma"))))))),
+                query(params, "participants_table"));
+        assertEquals(Map.of("bool", Map.of("filter", List.of(
+                Map.of("terms", Map.of("participant_id", List.of("P1"))),
+                nested("treatment_filters", Map.of("terms", Map.of("treatment_filters.treatment_type", List.of("Surgery")))),
+                nested("diagnosis_filters", Map.of("terms", Map.of("diagnosis_filters.diagnosis", List.of("Neuroblastoma"))))))),
+                query(params, "samples_table"));
+        assertEquals(Map.of("bool", Map.of("filter", List.of(
+                Map.of("terms", Map.of("diagnosis", List.of("Neuroblastoma"))),
+                Map.of("terms", Map.of("participant_id", List.of("P1"))),
+                nested("treatment_filters", Map.of("terms", Map.of("treatment_filters.treatment_type", List.of("Surgery"))))))),
+                query(params, "diagnoses_table"));
+    }
+
+    /**
+     * Ranges include unknown ages unless the client chooses otherwise
+     */
+    @Test
+    public void routesRangesAndUnknownAges() throws IOException {
+        String field = "sample_diagnosis_genetic_analysis_file_filters.age_at_diagnosis";
+        Map<String, Object> range = Map.of("range", Map.of(field, Map.of("gte", 0, "lte", 100)));
+
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("age_at_diagnosis", List.of(0, 100));
+        assertEquals(Map.of("bool", Map.of("filter", List.of(nested("sample_diagnosis_genetic_analysis_file_filters",
+                        Map.of("bool", Map.of("should", List.of(range, Map.of("term", Map.of(field, -999))))))))),
+                query(params, "participants_table"));
+
+        params.put("age_at_diagnosis_unknownAges", List.of("exclude"));
+        assertEquals(Map.of("bool", Map.of("filter", List.of(nested("sample_diagnosis_genetic_analysis_file_filters",
+                        range,
+                        Map.of("bool", Map.of("must", List.of(Map.of("exists", Map.of("field", field))),
+                                "must_not", List.of(Map.of("term", Map.of(field, -999))))))))),
+                query(params, "participants_table"));
+
+        params.put("age_at_diagnosis_unknownAges", List.of("only"));
+        assertEquals(Map.of("bool", Map.of("filter", List.of(
+                        Map.of("range", Map.of("age_at_diagnosis", Map.of("gte", 0, "lte", 100))),
+                        Map.of("terms", Map.of("age_at_diagnosis", List.of(-999)))))),
+                query(params, "diagnoses_table"));
+    }
+
+    /**
+     * File filters are wrapped in combined_filters, which is always added
+     */
+    @Test
+    public void wrapsFileFilters() throws IOException {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("file_type", List.of("bam"));
+        params.put("race", List.of("Asian"));
+        params.put("gene_symbol", List.of("ALK"));
+
+        assertEquals(Map.of("bool", Map.of("should", List.of(Map.of("bool", Map.of("filter", List.of(
+                Map.of("terms", Map.of("file_type", List.of("bam"))),
+                nested("combined_filters",
+                        Map.of("terms", Map.of("combined_filters.race", List.of("Asian"))),
+                        nested("combined_filters.sample_diagnosis_genetic_analysis_filters",
+                                Map.of("terms", Map.of("combined_filters.sample_diagnosis_genetic_analysis_filters.gene_symbol", List.of("ALK"))))))))))),
+                query(params, "files_table"));
+
+        assertEquals(Map.of("bool", Map.of("should", List.of(Map.of("bool", Map.of("filter", List.of(
+                Map.of("terms", Map.of("file_type", List.of("bam"))),
+                nested("combined_filters"))))))),
+                query(Map.of("file_type", List.of("bam")), "files_overview"));
+    }
+
+    /**
+     * The same filters give byte for byte the same query, however the client ordered them and their values
+     */
+    @Test
+    public void buildsSameBytesForEquivalentFilters() throws IOException {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("race", List.of("White", "Asian"));
+        params.put("diagnosis", List.of("Neuroblastoma"));
+        params.put("file_type", List.of("bam", "cram"));
+        params.put("age_at_diagnosis", List.of(0, 100));
+
+        Map<String, Object> reordered = new LinkedHashMap<>();
+        reordered.put("age_at_diagnosis", List.of(0, 100));
+        reordered.put("file_type", List.of("cram", "bam", "cram"));
+        reordered.put("diagnosis", List.of("Neuroblastoma"));
+        reordered.put("race", List.of("Asian", "White"));
+
+        for (String indexType : List.of("participants_table", "diagnoses_table", "files_table")) {
+            assertArrayEquals(QueryWriter.toBytes(model.buildQuery(params, RANGE_PARAMS, Set.of(), indexType)),
+                    QueryWriter.toBytes(model.buildQuery(reordered, RANGE_PARAMS, Set.of(), indexType)), indexType);
+        }
+    }
+
+    /**
+     * Queries leaving out a filter match queries built without it, and are assembled once
+     */
+    @Test
+    public void assemblesQueriesWithoutFilters() throws IOException {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("race", List.of("Asian"));
+        params.put("diagnosis", List.of("Neuroblastoma"));
+        params.put("age_at_diagnosis", List.of(0, 100));
+        params.put("age_at_diagnosis_unknownAges", List.of("only"));
+        FilterQueries filterQueries = new FilterQueries(model, params, RANGE_PARAMS, Set.of("first"));
+
+        for (String indexType : List.of("participants_table", "samples_table", "files_table")) {
+            assertEquals(model.buildQuery(params, RANGE_PARAMS, Set.of("first"), indexType), filterQueries.build(indexType));
+            for (String param : params.keySet()) {
+                assertEquals(model.buildQuery(params, RANGE_PARAMS, Set.of("first", param), indexType),
+                        filterQueries.buildExcluding(indexType, param));
+            }
+        }
+        assertSame(filterQueries.buildExcluding("files_table", "race").get("query"),
+                filterQueries.buildExcluding("files_table", "race").get("query"));
+    }
+
+    /**
+     * A range without bounds fails the queries it is in, but not the count of its own facet
+     */
+    @Test
+    public void rejectsRangeWithoutBoundsOnlyWhereUsed() throws IOException {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("race", List.of("Asian"));
+        params.put("age_at_diagnosis", Arrays.asList(null, null));
+        FilterQueries filterQueries = new FilterQueries(model, params, RANGE_PARAMS, Set.of("first"));
+
+        assertThrows(IOException.class, () -> filterQueries.build("participants_table"));
+        assertThrows(IOException.class, () -> filterQueries.buildExcluding("participants_table", "race"));
+        assertThrows(IOException.class, () -> query(params, "participants_table"));
+        assertEquals(query(Map.of("race", List.of("Asian")), "participants_table"),
+                filterQueries.buildExcluding("participants_table", "age_at_diagnosis").get("query"));
+    }
+
+    /**
+     * Flattened filters match the same files as nested ones, and are only used for a lone wrapped filter
+     */
+    @Test
+    public void flattensLoneFiltersWithSameCounts() throws IOException {
+        List<Map<String, Object>> files = List.of(
+                file("bam", participant("P1", "Asian", row("Neuroblastoma", "ALK")), participant("P2", "White", row("Wilms Tumor"))),
+                file("bam", participant("P3", "Asian", row("Wilms Tumor", "ALK"))),
+                file("cram", participant(null, null, row("Neuroblastoma"))),
+                file("cram"));
+        List<Map<String, Object>> requests = List.of(
+                Map.of("race", List.of("Asian")),
+                Map.of("diagnosis", List.of("Neuroblastoma")),
+                Map.of("gene_symbol", List.of("ALK"), "file_type", List.of("bam")),
+                Map.of("race", List.of("Asian"), "diagnosis", List.of("Neuroblastoma")),
+                Map.of("race", List.of("White"), "diagnosis", List.of("Neuroblastoma"), "file_type", List.of("bam")),
+                Map.of("diagnosis", List.of("Wilms Tumor"), "gene_symbol", List.of("ALK")),
+                Map.of("file_type", List.of("cram")));
+
+        for (Map<String, Object> params : requests) {
+            FilterQueries nestedQueries = new FilterQueries(model, params, RANGE_PARAMS, Set.of());
+            FilterQueries flattenedQueries = new FilterQueries(flattenedModel, params, RANGE_PARAMS, Set.of());
+            assertEquals(count(files, nestedQueries.build("files_table")), count(files, flattenedQueries.build("files_table")),
+                    params.toString());
+            for (String param : params.keySet()) {
+                assertEquals(count(files, nestedQueries.buildExcluding("files_table", param)),
+                        count(files, flattenedQueries.buildExcluding("files_table", param)), params + " without " + param);
+            }
+        }
+
+        assertEquals(Map.of("bool", Map.of("should", List.of(Map.of("bool", Map.of("filter", List.of(
+                Map.of("terms", Map.of("flattened_filters.race", List.of("Asian"))))))))),
+                flattenedModel.buildQuery(Map.of("race", List.of("Asian")), RANGE_PARAMS, Set.of(), "files_table").get("query"));
+        Map<String, Object> params = Map.of("race", List.of("Asian"), "diagnosis", List.of("Neuroblastoma"));
+        assertEquals(model.buildQuery(params, RANGE_PARAMS, Set.of(), "files_table"),
+                flattenedModel.buildQuery(params, RANGE_PARAMS, Set.of(), "files_table"));
+        assertEquals(model.buildQuery(Map.of("race", List.of("Asian")), RANGE_PARAMS, Set.of(), "participants_table"),
+                flattenedModel.buildQuery(Map.of("race", List.of("Asian")), RANGE_PARAMS, Set.of(), "participants_table"));
+    }
+
+    private static Map<String, Object> row(String diagnosis, String... geneSymbols) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("diagnosis", diagnosis);
+        row.put("gene_symbol", List.of(geneSymbols));
+        return row;
+    }
+
+    @SafeVarargs
+    private static Map<String, Object> participant(String participantId, String race, Map<String, Object>... rows) {
+        Map<String, Object> participant = new HashMap<>();
+        participant.put("participant_id", participantId);
+        participant.put("race", race == null ? null : List.of(race));
+        participant.put("sample_diagnosis_genetic_analysis_filters", List.of(rows));
+        return participant;
+    }
+
+    // A files_table document, with flattened_filters built as the indexing query does
+    @SafeVarargs
+    private static Map<String, Object> file(String fileType, Map<String, Object>... combinedFilters) {
+        Map<String, List<Object>> flattened = new HashMap<>();
+        for (Map<String, Object> participant : combinedFilters) {
+            for (String field : List.of("participant_id", "race")) {
+                flattened.computeIfAbsent(field, key -> new ArrayList<>()).addAll(values(field, Map.of("", participant)));
+            }
+            for (String field : List.of("diagnosis", "gene_symbol")) {
+                flattened.computeIfAbsent(field, key -> new ArrayList<>())
+                        .addAll(values("sample_diagnosis_genetic_analysis_filters." + field, Map.of("", participant)));
+            }
+        }
+        return Map.of("file_type", fileType, "combined_filters", List.of(combinedFilters), "flattened_filters", flattened);
+    }
+
+    private static long count(List<Map<String, Object>> files, Map<String, Object> query) {
+        return files.stream().filter(file -> matches(query.get("query"), Map.of("", file))).count();
+    }
+
+    // Evaluates the clauses built here against a document, with the nested documents being matched bound by path
+    @SuppressWarnings("unchecked")
+    private static boolean matches(Object query, Map<String, Object> bound) {
+        Map<String, Object> clause = (Map<String, Object>) query;
+        if (clause.containsKey("bool")) {
+            Map<String, List<Object>> bool = (Map<String, List<Object>>) clause.get("bool");
+            List<Object> should = bool.getOrDefault("should", List.of());
+            return bool.getOrDefault("filter", List.of()).stream().allMatch(inner -> matches(inner, bound))
+                    && bool.getOrDefault("must", List.of()).stream().allMatch(inner -> matches(inner, bound))
+                    && bool.getOrDefault("must_not", List.of()).stream().noneMatch(inner -> matches(inner, bound))
+                    && (should.isEmpty() || should.stream().anyMatch(inner -> matches(inner, bound)));
+        }
+        if (clause.containsKey("nested")) {
+            Map<String, Object> nested = (Map<String, Object>) clause.get("nested");
+            String path = (String) nested.get("path");
+            for (Object document : values(path, bound)) {
+                Map<String, Object> inner = new HashMap<>(bound);
+                inner.put(path, document);
+                if (matches(nested.get("query"), inner)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (clause.containsKey("terms")) {
+            Map.Entry<String, Object> terms = ((Map<String, Object>) clause.get("terms")).entrySet().iterator().next();
+            return values(terms.getKey(), bound).stream().anyMatch(((List<Object>) terms.getValue())::contains);
+        }
+        if (clause.containsKey("match_all")) {
+            return true;
+        }
+        throw new IllegalArgumentException("Unexpected clause " + clause);
+    }
+
+    // Values of a field, from the innermost bound document on its path, with arrays and nulls flattened away
+    @SuppressWarnings("unchecked")
+    private static List<Object> values(String field, Map<String, Object> bound) {
+        String prefix = "";
+        for (String path : bound.keySet()) {
+            if (path.length() > prefix.length() && field.startsWith(path + ".")) {
+                prefix = path;
+            }
+        }
+        List<Object> current = List.of(bound.get(prefix));
+        for (String part : field.substring(prefix.isEmpty() ? 0 : prefix.length() + 1).split("\\.")) {
+            List<Object> next = new ArrayList<>();
+            for (Object document : current) {
+                Object value = ((Map<String, Object>) document).get(part);
+                if (value instanceof List) {
+                    ((List<Object>) value).stream().filter(Objects::nonNull).forEach(next::add);
+                } else if (value != null) {
+                    next.add(value);
+                }
+            }
+            current = next;
+        }
+        return current;
+    }
+}
@@ -0,0 +1,96 @@
+package gov.nih.nci.bento_ri.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for OpenSearchLimiter
+ */
+public class OpenSearchLimiterTest {
+
+    /**
+     * Requests past the limit wait for a permit, and give up after the longest wait
+     */
+    @Test
+    public void waitsForPermits() throws Exception {
+        OpenSearchLimiter limiter = new OpenSearchLimiter(1, 1, false, 5000, 0.5, 5000, new SimpleMeterRegistry());
+        OpenSearchLimiter.Permit permit = limiter.acquire();
+
+        CompletableFuture<OpenSearchLimiter.Permit> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (limiter.getQueued() == 0) {
+            Thread.sleep(1);
+        }
+        assertFalse(waiting.isDone());
+        permit.close();
+        waiting.get(5, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    /**
+     * Requests that can't get a permit in time fail instead of queueing forever
+     */
+    @Test
+    public void givesUpAfterMaxWait() throws Exception {
+        OpenSearchLimiter limiter = new OpenSearchLimiter(1, 1, false, 20, 0.5, 20, new SimpleMeterRegistry());
+        limiter.acquire();
+        assertThrows(OverloadedException.class, limiter::acquire);
+
+        limiter.setLimit(2);
+        limiter.acquire();
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    /**
+     * Bulk requests keep to their share of the limit and are shed while interactive ones still get through
+     */
+    @Test
+    public void shedsBulkRequestsFirst() throws Exception {
+        OpenSearchLimiter limiter = new OpenSearchLimiter(4, 1, false, 5000, 0.5, 20, new SimpleMeterRegistry());
+        OpenSearchLimiter.withPriority(OpenSearchLimiter.Priority.BULK, () -> {
+            limiter.acquire();
+            limiter.acquire();
+            assertThrows(OverloadedException.class, limiter::acquire);
+            return null;
+        });
+        assertEquals(2, limiter.getBulkInFlight());
+        assertEquals(OpenSearchLimiter.Priority.INTERACTIVE, OpenSearchLimiter.currentPriority());
+
+        limiter.acquire();
+        limiter.acquire();
+        assertEquals(4, limiter.getInFlight());
+    }
+
+    /**
+     * The limit shrinks while latency grows, and no further than the minimum
+     */
+    @Test
+    public void lowersLimitAsLatencyGrows() throws Exception {
+        OpenSearchLimiter limiter = new OpenSearchLimiter(16, 4, true, 5000, 0.5, 5000, new SimpleMeterRegistry());
+        for (long sleepMs = 1; sleepMs <= 64; sleepMs *= 2) {
+            OpenSearchLimiter.Permit[] permits = new OpenSearchLimiter.Permit[limiter.getLimit()];
+            for (int i = 0; i < permits.length; i++) {
+                permits[i] = limiter.acquire();
+            }
+            Thread.sleep(sleepMs);
+            for (OpenSearchLimiter.Permit permit : permits) {
+                permit.close();
+            }
+        }
+        assertTrue(limiter.getLimit() < 16);
+        assertTrue(limiter.getLimit() >= 4);
+    }
+}
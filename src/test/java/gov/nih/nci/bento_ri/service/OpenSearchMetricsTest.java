@@ -0,0 +1,125 @@
+package gov.nih.nci.bento_ri.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.Test;
+import org.opensearch.client.Request;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for OpenSearchMetrics
+ */
+public class OpenSearchMetricsTest {
+
+    /**
+     * Requests are tagged with the index of their endpoint and the kind of query they run
+     */
+    @Test
+    public void tagsIndexAndOperation() {
+        Request search = new Request("GET", "/files/_search");
+        search.setEntity(QueryWriter.toEntity(Map.of("size", 10)));
+        Request aggs = new Request("GET", "/files/_search");
+        aggs.setEntity(QueryWriter.toEntity(Map.of("size", 0, "aggs", Map.of())));
+        Request scroll = new Request("GET", "/files/_search");
+        scroll.addParameter("scroll", "1m");
+
+        assertEquals("search", OpenSearchMetrics.operation(search, true));
+        assertEquals("aggs", OpenSearchMetrics.operation(aggs, true));
+        assertEquals("scroll", OpenSearchMetrics.operation(scroll, true));
+        assertEquals("scroll", OpenSearchMetrics.operation(new Request("POST", "/_search/scroll"), true));
+        assertEquals("count", OpenSearchMetrics.operation(new Request("GET", "/participants/_count"), true));
+        assertEquals("msearch", OpenSearchMetrics.operation(new Request("GET", "/_msearch"), true));
+
+        // Bodies are only scanned when asked to, and a recorded operation is taken as it is
+        assertEquals("search", OpenSearchMetrics.operation(aggs, false));
+        Request recorded = new Request("GET", "/files/_search");
+        recorded.setEntity(QueryWriter.toEntity(Map.of("size", 0, "aggs", Map.of())));
+        OpenSearchMetrics.setOperation(recorded, "aggs");
+        assertEquals("aggs", OpenSearchMetrics.operation(recorded, false));
+        assertEquals("files", OpenSearchMetrics.index("/files/_search"));
+        assertEquals(OpenSearchMetrics.NONE, OpenSearchMetrics.index("/_msearch"));
+    }
+
+    /**
+     * A sample records the sizes, took and times of a request under the field it was sent for
+     */
+    @Test
+    public void recordsRequestsByField() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        OpenSearchMetrics metrics = new OpenSearchMetrics(true, registry, ObservationRegistry.NOOP);
+        Request request = new Request("GET", "/participants/_count");
+        request.setEntity(QueryWriter.toEntity(Map.of("query", Map.of("match_all", Map.of()))));
+        byte[] response = "{\"took\":7,\"count\":42}".getBytes(StandardCharsets.UTF_8);
+
+        OpenSearchMetrics.withField("numberOfParticipants", () -> {
+            OpenSearchMetrics.Sample sample = metrics.start(request);
+            try (InputStream in = sample.received(new ByteArrayInputStream(response))) {
+                in.readAllBytes();
+            }
+            sample.parsed(7, 42);
+            return null;
+        });
+
+        String[] tags = {"field", "numberOfParticipants", "index", "participants", "operation", "count"};
+        assertEquals((double) request.getEntity().getContentLength(), registry.get("opensearch.request.bytes").tags(tags).summary().totalAmount());
+        assertEquals((double) response.length, registry.get("opensearch.response.bytes").tags(tags).summary().totalAmount());
+        assertEquals(7.0, registry.get("opensearch.took").tags(tags).timer().totalTime(TimeUnit.MILLISECONDS));
+        assertEquals(1, registry.get("opensearch.latency").tags(tags).timer().count());
+        assertEquals(1, registry.get("opensearch.parse").tags(tags).timer().count());
+        assertEquals(OpenSearchMetrics.NONE, OpenSearchMetrics.currentField());
+    }
+
+    /**
+     * A request is traced as a span of the GraphQL field it was sent for, even on another thread
+     */
+    @Test
+    public void tracesRequestsInTheirFieldSpan() throws Exception {
+        ObservationRegistry observations = ObservationRegistry.create();
+        List<Observation.Context> stopped = new CopyOnWriteArrayList<>();
+        observations.observationConfig().observationHandler(new ObservationHandler<>() {
+            @Override
+            public boolean supportsContext(Observation.Context context) {
+                return true;
+            }
+
+            @Override
+            public void onStop(Observation.Context context) {
+                stopped.add(context);
+            }
+        });
+        AsyncFieldService fields = new AsyncFieldService(true, 2, 0, 1, 5000, "", "", false, new SimpleMeterRegistry(), observations);
+        OpenSearchMetrics metrics = new OpenSearchMetrics(true, new SimpleMeterRegistry(), observations);
+        Request request = new Request("GET", "/files/_search");
+        request.setEntity(QueryWriter.toEntity(Map.of("size", 0, "aggs", Map.of())));
+        byte[] response = "{\"took\":3,\"hits\":{\"total\":{\"value\":12}}}".getBytes(StandardCharsets.UTF_8);
+
+        fields.async("fileOverview", env -> {
+            OpenSearchMetrics.Sample sample = metrics.start(request);
+            try (InputStream in = sample.received(new ByteArrayInputStream(response))) {
+                in.readAllBytes();
+            }
+            sample.parsed(3, 12);
+            return null;
+        }).get(null).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, stopped.size());
+        Observation.Context span = stopped.get(0);
+        assertEquals("opensearch.request", span.getName());
+        assertEquals("graphql.field", span.getParentObservation().getContextView().getName());
+        assertEquals("fileOverview", span.getLowCardinalityKeyValue("field").getValue());
+        assertEquals("aggs", span.getLowCardinalityKeyValue("operation").getValue());
+        assertEquals("12", span.getHighCardinalityKeyValue("hits").getValue());
+        assertEquals(String.valueOf(response.length), span.getHighCardinalityKeyValue("response.bytes").getValue());
+    }
+}
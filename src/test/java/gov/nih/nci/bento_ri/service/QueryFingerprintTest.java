@@ -0,0 +1,89 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for QueryFingerprint
+ */
+public class QueryFingerprintTest {
+    private static final Set<String> RANGE_PARAMS = Set.of("age_at_diagnosis");
+
+    private static String fingerprint(Map<String, Object> params) {
+        return QueryFingerprint.of("searchParticipants", params, RANGE_PARAMS);
+    }
+
+    /**
+     * Argument order, value order and duplicate values don't change the key
+     */
+    @Test
+    public void ignoresOrderAndDuplicates() {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("race", List.of("Asian", "White"));
+        params.put("sex_at_birth", List.of("Female"));
+        Map<String, Object> reordered = new LinkedHashMap<>();
+        reordered.put("sex_at_birth", List.of("Female", "Female"));
+        reordered.put("race", List.of("White", "Asian"));
+
+        assertEquals(fingerprint(params), fingerprint(reordered));
+    }
+
+    /**
+     * Filters that select everything give the same key as no filter at all
+     */
+    @Test
+    public void dropsFiltersSelectingEverything() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("race", List.of(""));
+        params.put("sex_at_birth", List.of());
+        params.put("age_at_diagnosis", List.of(0));
+
+        assertEquals(fingerprint(Map.of()), fingerprint(params));
+    }
+
+    /**
+     * Values that concatenate to the same string still give different keys
+     */
+    @Test
+    public void distinguishesValueBoundaries() {
+        assertNotEquals(fingerprint(Map.of("study_id", List.of("1", "23"))),
+                fingerprint(Map.of("study_id", List.of("12", "3"))));
+        assertNotEquals(fingerprint(Map.of("age_at_diagnosis", List.of(1, 23))),
+                fingerprint(Map.of("age_at_diagnosis", List.of(12, 3))));
+        assertNotEquals(fingerprint(Map.of("study_id", List.of("a"), "race", List.of("b"))),
+                fingerprint(Map.of("study_id", List.of("a", "b"))));
+    }
+
+    /**
+     * Range bounds keep their order and a missing bound is allowed
+     */
+    @Test
+    public void encodesRanges() {
+        List<Integer> openUpper = new ArrayList<>();
+        openUpper.add(100);
+        openUpper.add(null);
+        List<Integer> openLower = new ArrayList<>();
+        openLower.add(null);
+        openLower.add(100);
+
+        assertNotEquals(fingerprint(Map.of("age_at_diagnosis", List.of(0, 100))),
+                fingerprint(Map.of("age_at_diagnosis", List.of(100, 0))));
+        assertNotEquals(fingerprint(Map.of("age_at_diagnosis", openUpper)),
+                fingerprint(Map.of("age_at_diagnosis", openLower)));
+    }
+
+    /**
+     * Lists of objects keep their order
+     */
+    @Test
+    public void keepsOrderOfObjectLists() {
+        Map<String, Object> race = Map.of("property", "race");
+        Map<String, Object> sex = Map.of("property", "sex_at_birth");
+
+        assertNotEquals(fingerprint(Map.of("charts", List.of(race, sex))),
+                fingerprint(Map.of("charts", List.of(sex, race))));
+    }
+}
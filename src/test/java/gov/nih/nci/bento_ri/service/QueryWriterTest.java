@@ -0,0 +1,76 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for QueryWriter
+ */
+public class QueryWriterTest {
+    private static final Gson gson = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
+
+    /**
+     * Bodies are the same JSON Gson writes for the same query
+     */
+    @Test
+    public void writesSameJsonAsGson() {
+        Map<String, Object> query = new LinkedHashMap<>();
+        query.put("query", Map.of("bool", Map.of("filter", List.of(
+                Map.of("terms", Map.of("race", List.of("Native Hawaiian or Other Pacific Islander", "\"quoted\"\n"))),
+                Map.of("range", Map.of("age_at_diagnosis", Map.of("gte", 0)))))));
+        query.put("size", 10);
+        query.put("min_score", 0.5);
+        query.put("track_total_hits", true);
+        query.put("search_after", null);
+
+        assertEquals(gson.toJson(query), new String(QueryWriter.toBytes(query), StandardCharsets.UTF_8));
+        // The reused buffer starts empty for the next body
+        assertEquals("{}", new String(QueryWriter.toBytes(Map.of()), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * NDJSON bodies hold one line per item, whatever its form
+     */
+    @Test
+    public void writesNdjsonLines() throws IOException {
+        JsonObject count = new JsonObject();
+        count.addProperty("size", 0);
+        List<Object> lines = List.of(Map.of("index", "participants"), "{\"size\":1}".getBytes(StandardCharsets.UTF_8), count);
+
+        assertEquals("{\"index\":\"participants\"}\n{\"size\":1}\n{\"size\":0}\n",
+                EntityUtils.toString(QueryWriter.toNdjsonEntity(lines)));
+    }
+
+    /**
+     * Equal bodies are written byte for byte the same, whatever order their maps and sets iterate in
+     */
+    @Test
+    public void writesEqualBodiesAlike() {
+        Map<String, Object> hashed = new HashMap<>();
+        hashed.put("size", 0);
+        hashed.put("query", Map.of("terms", Map.of("race", List.of("Asian", "White"))));
+        hashed.put("_source", new HashSet<>(List.of("id", "files", "study_id")));
+        hashed.put("aggs", Map.of("race", Map.of("terms", Map.of("field", "race", "size", 10000))));
+
+        Map<String, Object> sorted = new TreeMap<>();
+        sorted.put("aggs", Map.of("race", Map.of("terms", new TreeMap<>(Map.of("size", 10000, "field", "race")))));
+        sorted.put("query", Map.of("terms", Map.of("race", List.of("Asian", "White"))));
+        sorted.put("size", 0);
+        sorted.put("_source", new TreeSet<>(Set.of("study_id", "files", "id")));
+
+        String expected = "{\"_source\":[\"files\",\"id\",\"study_id\"],"
+                + "\"aggs\":{\"race\":{\"terms\":{\"field\":\"race\",\"size\":10000}}},"
+                + "\"query\":{\"terms\":{\"race\":[\"Asian\",\"White\"]}},\"size\":0}";
+        assertEquals(expected, new String(QueryWriter.toBytes(hashed), StandardCharsets.UTF_8));
+        assertArrayEquals(QueryWriter.toBytes(hashed), QueryWriter.toBytes(sorted));
+    }
+}
@@ -0,0 +1,326 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for TieredCacheService
+ * Two "nodes", each with its own L1 regions, share an in-memory stand-in for Redis
+ */
+public class TieredCacheServiceTest {
+    private static final String CHANNEL = "test:invalidate";
+
+    private InMemoryRedis redis;
+    private TieredCacheService nodeA;
+    private TieredCacheService nodeB;
+
+    @BeforeEach
+    public void setup() throws InterruptedException {
+        redis = new InMemoryRedis();
+        nodeA = new TieredCacheService(newCacheService(), redis.connect(), "test:", CHANNEL, -1, 5000, 2000, 10);
+        nodeB = new TieredCacheService(newCacheService(), redis.connect(), "test:", CHANNEL, -1, 5000, 2000, 10);
+        redis.awaitSubscribers(2);
+    }
+
+    @AfterEach
+    public void teardown() {
+        nodeA.close();
+        nodeB.close();
+    }
+
+    private static CacheService newCacheService() {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("test", Map.of("cache.stats.log_interval_minutes", "0")));
+        return new CacheService(environment);
+    }
+
+    /**
+     * A value computed on one node is served to the other from Redis
+     */
+    @Test
+    public void sharesValuesBetweenNodes() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        Map<String, Object> result = Map.of("numberOfParticipants", 42, "filterParticipantCountByRace",
+                List.of(Map.of("group", "Asian", "subjects", 7)));
+
+        Object fromA = nodeA.get(CacheService.FACET_COUNTS, "key", () -> {
+            loads.incrementAndGet();
+            return result;
+        });
+        Object fromB = nodeB.get(CacheService.FACET_COUNTS, "key", () -> {
+            loads.incrementAndGet();
+            return result;
+        });
+
+        assertEquals(1, loads.get());
+        assertEquals(result, fromA);
+        assertEquals(result, fromB);
+    }
+
+    /**
+     * While another node holds the population lock, a node waits for its result instead of loading
+     */
+    @Test
+    public void waitsForAnotherNodeToPopulate() throws Exception {
+        Map<String, Object> result = new HashMap<>(Map.of("numberOfStudies", 3));
+        redis.strings.put("test:lock:" + CacheService.STUDY_DETAILS + ":key", "other-node");
+        ScheduledExecutorService otherNode = Executors.newSingleThreadScheduledExecutor();
+        try {
+            otherNode.schedule(() -> redis.bytes.put("test:" + CacheService.STUDY_DETAILS + ":key", BinaryCodec.encode(result)),
+                    200, TimeUnit.MILLISECONDS);
+
+            Object value = nodeB.get(CacheService.STUDY_DETAILS, "key", () -> fail("Loader must not run while another node holds the lock"));
+
+            assertEquals(result, value);
+        } finally {
+            otherNode.shutdownNow();
+        }
+    }
+
+    /**
+     * A node stops waiting as soon as the node holding the lock gives up without a result, and loads it itself
+     */
+    @Test
+    public void loadsOnceAnotherNodeGivesUp() throws Exception {
+        String lockKey = "test:lock:" + CacheService.STUDY_DETAILS + ":key";
+        redis.strings.put(lockKey, "other-node");
+        ScheduledExecutorService otherNode = Executors.newSingleThreadScheduledExecutor();
+        try {
+            otherNode.schedule(() -> redis.strings.remove(lockKey), 100, TimeUnit.MILLISECONDS);
+
+            long start = System.nanoTime();
+            Object value = nodeB.get(CacheService.STUDY_DETAILS, "key", () -> 7);
+
+            assertEquals(7, value);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+            assertNotNull(redis.bytes.get("test:" + CacheService.STUDY_DETAILS + ":key"));
+        } finally {
+            otherNode.shutdownNow();
+        }
+    }
+
+    /**
+     * Concurrent misses on the same key within a node share a single load
+     */
+    @Test
+    public void coalescesConcurrentMisses() throws Exception {
+        TieredCacheService node = new TieredCacheService(newCacheService(), null, "test:", CHANNEL, -1, 5000, 2000, 10);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(callers.submit(() -> node.get(CacheService.FACET_COUNTS, "key", () -> {
+                    loads.incrementAndGet();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return 42;
+                })));
+            }
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<Integer> result : results) {
+                assertEquals(42, (int) result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            callers.shutdownNow();
+            node.close();
+        }
+    }
+
+    /**
+     * Invalidating on one node drops the entry from Redis and from every node's L1
+     */
+    @Test
+    public void invalidatesEveryNode() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        TieredCacheService.Loader<Integer> loader = loads::incrementAndGet;
+        nodeA.get(CacheService.FACET_COUNTS, "key", loader);
+        nodeB.get(CacheService.FACET_COUNTS, "key", loader);
+        assertEquals(1, loads.get());
+
+        nodeA.invalidate(CacheService.FACET_COUNTS, "key");
+
+        assertEquals(2, (int) nodeB.get(CacheService.FACET_COUNTS, "key", loader));
+        assertEquals(2, (int) nodeA.get(CacheService.FACET_COUNTS, "key", loader));
+    }
+
+    /**
+     * A region's index forgets the entries that have expired, expires with its latest entry, and is
+     * what invalidating the region deletes by
+     */
+    @Test
+    public void prunesExpiredEntriesFromIndex() throws Exception {
+        TieredCacheService node = new TieredCacheService(newCacheService(), redis.connect(), "test:", CHANNEL, 1, 5000, 2000, 10);
+        try {
+            String indexKey = "test:index:" + CacheService.FACET_COUNTS;
+            node.get(CacheService.FACET_COUNTS, "old", () -> 1);
+            assertEquals(Set.of("old"), redis.indexes.get(indexKey).keySet());
+            assertEquals(1L, (long) redis.indexTtls.get(indexKey));
+
+            Thread.sleep(1100);
+            node.get(CacheService.FACET_COUNTS, "new", () -> 2);
+            assertEquals(Set.of("new"), redis.indexes.get(indexKey).keySet());
+
+            node.invalidateAll(CacheService.FACET_COUNTS);
+            assertNull(redis.bytes.get("test:" + CacheService.FACET_COUNTS + ":new"));
+            assertFalse(redis.indexes.containsKey(indexKey));
+        } finally {
+            node.close();
+        }
+    }
+
+    /**
+     * Result maps survive the binary encoding, including compressed payloads
+     */
+    @Test
+    public void binaryCodecRoundTrip() throws Exception {
+        List<Map<String, Object>> groups = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            groups.add(Map.of("group", "value " + i, "subjects", i));
+        }
+        Map<String, Object> value = new HashMap<>();
+        value.put("groups", groups);
+        value.put("range", Map.of("lowerBound", -1, "upperBound", 3650L, "mean", 12.5));
+        value.put("flag", true);
+        value.put("missing", null);
+
+        assertEquals(value, BinaryCodec.decode(BinaryCodec.encode(value)));
+        String[] ids = new String[]{"a", "b", "c"};
+        assertArrayEquals(ids, (String[]) BinaryCodec.decode(BinaryCodec.encode(ids)));
+    }
+
+    /**
+     * Stand-in for a Redis server; each connect() returns a client with its own subscription
+     */
+    private static class InMemoryRedis {
+        final Map<String, byte[]> bytes = new ConcurrentHashMap<>();
+        final Map<String, String> strings = new ConcurrentHashMap<>();
+        // Index members mapped to when they expire, and indexes mapped to their time to live
+        final Map<String, Map<String, Long>> indexes = new ConcurrentHashMap<>();
+        final Map<String, Long> indexTtls = new ConcurrentHashMap<>();
+        final List<Consumer<String>> subscribers = new CopyOnWriteArrayList<>();
+
+        void awaitSubscribers(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (subscribers.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, subscribers.size());
+        }
+
+        RedisStore connect() {
+            return new RedisStore() {
+                private final CountDownLatch closed = new CountDownLatch(1);
+
+                private String key(byte[] key) {
+                    return new String(key, java.nio.charset.StandardCharsets.UTF_8);
+                }
+
+                @Override
+                public byte[] get(byte[] key) {
+                    return bytes.get(key(key));
+                }
+
+                @Override
+                public void set(byte[] key, byte[] value, long ttlSeconds) {
+                    bytes.put(key(key), value);
+                }
+
+                @Override
+                public void delete(byte[] key) {
+                    bytes.remove(key(key));
+                }
+
+                @Override
+                public boolean setIfAbsent(String key, String value, long ttlMillis) {
+                    return strings.putIfAbsent(key, value) == null;
+                }
+
+                @Override
+                public boolean exists(String key) {
+                    return bytes.containsKey(key) || strings.containsKey(key) || indexes.containsKey(key);
+                }
+
+                @Override
+                public void deleteIfEquals(String key, String value) {
+                    strings.remove(key, value);
+                }
+
+                @Override
+                public void addToIndex(String key, String member, long expiresAtMillis, long ttlSeconds) {
+                    Map<String, Long> index = indexes.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+                    index.put(member, expiresAtMillis > 0 ? expiresAtMillis : Long.MAX_VALUE);
+                    long now = System.currentTimeMillis();
+                    index.values().removeIf(expiresAt -> expiresAt <= now);
+                    indexTtls.put(key, ttlSeconds);
+                }
+
+                @Override
+                public Set<String> getIndexMembers(String key) {
+                    long now = System.currentTimeMillis();
+                    Set<String> members = new HashSet<>();
+                    indexes.getOrDefault(key, Map.of()).forEach((member, expiresAt) -> {
+                        if (expiresAt > now) {
+                            members.add(member);
+                        }
+                    });
+                    return members;
+                }
+
+                @Override
+                public void delete(String key) {
+                    bytes.remove(key);
+                    strings.remove(key);
+                    indexes.remove(key);
+                    indexTtls.remove(key);
+                }
+
+                @Override
+                public void publish(String channel, String message) {
+                    subscribers.forEach(subscriber -> subscriber.accept(message));
+                }
+
+                @Override
+                public void subscribe(String channel, Consumer<String> listener) {
+                    subscribers.add(listener);
+                    try {
+                        closed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        subscribers.remove(listener);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    closed.countDown();
+                }
+            };
+        }
+    }
+}